@@ -0,0 +1,65 @@
+package com.aerospike.usecases.rtb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.client.Key;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.DeviceIdCodec;
+
+/**
+ * Cost of turning the numeric device id into the string or binary form stored as the record key, and of
+ * computing the record key (including its digest) from each. This is done for every generated device and
+ * every lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeviceIdBenchmark {
+    private long id = 0;
+    private final String deviceId = Device.idToString(123_456_789);
+
+    @Benchmark
+    public String idToString() {
+        return Device.idToString(id++);
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        // The original implementation of idToString, as a baseline
+        long thisId = id++;
+        return String.format("73dacfc7-cd3a-%04x-8c43-%012x", thisId^0x2621, thisId);
+    }
+
+    @Benchmark
+    public long stringToId() {
+        return Device.stringToId(deviceId);
+    }
+
+    @Benchmark
+    public byte[] idToBytes() {
+        return DeviceIdCodec.toBytes(id++ & DeviceIdCodec.MAX_BINARY_ID);
+    }
+
+    @Benchmark
+    public Key stringKey() {
+        return new Key("test", "devices", Device.idToString(id++));
+    }
+
+    @Benchmark
+    public Key binaryKey() {
+        return new Key("test", "devices", DeviceIdCodec.toBytes(id++ & DeviceIdCodec.MAX_BINARY_ID));
+    }
+}
@@ -0,0 +1,108 @@
+package com.aerospike.usecases.rtb.benchmarks;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Operation;
+import com.aerospike.mapper.tools.AeroMapper;
+import com.aerospike.usecases.rtb.DataPopulator;
+import com.aerospike.usecases.rtb.NativeStorageEngine;
+import com.aerospike.usecases.rtb.PackedSegmentCodec;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Client CPU cost of the native, packed and object mapper engines, for both the write side (converting a
+ * <code>Device</code> into what is sent to the server) and the read side (converting what the server returns
+ * back into <code>SegmentInstance</code>s). No server is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineEncodingBenchmark {
+    @Param({"10", "100", "1000"})
+    private int segmentsPerDevice;
+
+    private NativeStorageEngine nativeEngine;
+    private AeroMapper mapper;
+    private Device device;
+    private List<SimpleEntry<Long, Object>> nativeReadResult;
+    private Map<String, Object> mapperRecord;
+    private byte[] packedRecord;
+
+    @Setup
+    public void setup() {
+        IAerospikeClient client = OfflineClient.create();
+        this.nativeEngine = new NativeStorageEngine(client, "test");
+        this.mapper = new AeroMapper.Builder(client).build();
+
+        this.device = new Device(Device.idToString(1));
+        long now = new Date().getTime();
+        for (int i = 0; i < segmentsPerDevice; i++) {
+            device.getSegments().add(new SegmentInstance(i * 7L, new Date(now + TimeUnit.DAYS.toMillis(i % DataPopulator.DAYS_TO_KEEP_SEGMENTS)), 0L, "www.google.com"));
+        }
+
+        // This mirrors the KEY_VALUE result of the map read in getActiveSegments
+        this.nativeReadResult = new ArrayList<>();
+        for (SegmentInstance segment : device.getSegments()) {
+            nativeReadResult.add(new SimpleEntry<>(segment.getSegmentId(), 
+                    Arrays.asList(segment.getExpiry().getTime(), segment.getFlags(), segment.getPartnerId())));
+        }
+        this.mapperRecord = mapper.convertToMap(device);
+        this.packedRecord = PackedSegmentCodec.encode(device.getSegments());
+    }
+
+    @Benchmark
+    public Operation[] nativeWrite() {
+        return nativeEngine.getSaveOperations(device);
+    }
+
+    @Benchmark
+    public void nativeRead(Blackhole blackhole) {
+        for (SimpleEntry<Long, Object> entry : nativeReadResult) {
+            blackhole.consume(nativeEngine.toSegmentInstance(entry));
+        }
+    }
+
+    @Benchmark
+    public byte[] packedWrite() {
+        return PackedSegmentCodec.encode(device.getSegments());
+    }
+
+    @Benchmark
+    public List<SegmentInstance> packedRead() {
+        return PackedSegmentCodec.decode(packedRecord, Long.MIN_VALUE);
+    }
+
+    @Benchmark
+    public Map<String, Object> mapperWrite() {
+        return mapper.convertToMap(device);
+    }
+
+    @Benchmark
+    public Device mapperRead() {
+        return mapper.convertToObject(Device.class, mapperRecord);
+    }
+}
@@ -0,0 +1,43 @@
+package com.aerospike.usecases.rtb.benchmarks;
+
+import java.lang.reflect.Proxy;
+
+import com.aerospike.client.IAerospikeClient;
+
+/**
+ * Create an <code>IAerospikeClient</code> which is never connected to a server. The default policy getters
+ * return new default policies, which is all the storage engines need to be constructed, and any call which
+ * would need a server throws an <code>UnsupportedOperationException</code>. This lets the client side code
+ * paths be benchmarked without a cluster.
+ */
+public class OfflineClient {
+    private OfflineClient() {
+    }
+
+    public static IAerospikeClient create() {
+        return (IAerospikeClient) Proxy.newProxyInstance(OfflineClient.class.getClassLoader(),
+                new Class<?>[] { IAerospikeClient.class },
+                (proxy, method, args) -> {
+                    String name = method.getName();
+                    boolean isPolicyGetter = (name.startsWith("get") || name.startsWith("copy"))
+                            && (name.endsWith("PolicyDefault") || name.endsWith("PolicyWriteDefault"));
+                    if (isPolicyGetter && method.getParameterCount() == 0) {
+                        return method.getReturnType().getConstructor().newInstance();
+                    }
+                    switch (name) {
+                    case "isConnected":
+                        return false;
+                    case "close":
+                        return null;
+                    case "toString":
+                        return "OfflineClient";
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        throw new UnsupportedOperationException("The offline client does not support " + name);
+                    }
+                });
+    }
+}
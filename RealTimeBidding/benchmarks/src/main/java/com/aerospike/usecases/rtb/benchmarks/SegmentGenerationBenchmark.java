@@ -0,0 +1,57 @@
+package com.aerospike.usecases.rtb.benchmarks;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.usecases.rtb.DataPopulator;
+import com.aerospike.usecases.rtb.SegmentBuffer;
+import com.aerospike.usecases.rtb.SegmentGenerator;
+import com.aerospike.usecases.rtb.model.Device;
+
+/**
+ * Cost of generating a device and its segments with the <code>SegmentGenerator</code> used by the <code>DataPopulator</code>,
+ * excluding the save, both as objects and into a reusable buffer as the native engine saves them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentGenerationBenchmark {
+    @Param({"10", "100", "1000"})
+    private long avgSegmentsPerDevice;
+
+    private SegmentGenerator generator;
+    private SegmentBuffer buffer;
+    private long id = 0;
+
+    @Setup
+    public void setup() {
+        this.generator = new SegmentGenerator(42, 10_000, avgSegmentsPerDevice, new Date().getTime(), DataPopulator.PARTNER_ID);
+        this.buffer = new SegmentBuffer(SegmentGenerator.MAX_SEGMENTS_PER_DEVICE);
+    }
+
+    @Benchmark
+    public Device createDevice() {
+        return generator.createDevice(id++);
+    }
+
+    @Benchmark
+    public SegmentBuffer generateIntoBuffer() {
+        generator.generate(id++, buffer);
+        return buffer;
+    }
+}
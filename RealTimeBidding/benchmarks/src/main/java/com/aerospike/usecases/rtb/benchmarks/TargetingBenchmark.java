@@ -0,0 +1,105 @@
+package com.aerospike.usecases.rtb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aerospike.usecases.rtb.targeting.Campaign;
+import com.aerospike.usecases.rtb.targeting.SegmentBitmap;
+import com.aerospike.usecases.rtb.targeting.SegmentExpression;
+import com.aerospike.usecases.rtb.targeting.TargetingIndex;
+
+/**
+ * Devices matched per second by a single thread, against a set of random campaigns. Each campaign is an OR of
+ * up to 3 ANDs of up to 3 segments, and about one in five campaigns also excludes a segment. The
+ * <code>evaluate</code> benchmark checks every campaign expression directly, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TargetingBenchmark {
+    private static final int DEVICES = 1024;
+
+    @Param({"1000", "10000"})
+    private int campaigns;
+
+    @Param({"100"})
+    private int segmentsPerDevice;
+
+    @Param({"10000"})
+    private int segmentCount;
+
+    private List<Campaign> campaignList;
+    private TargetingIndex.Matcher matcher;
+    private SegmentBitmap[] devices;
+    private int device = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        campaignList = new ArrayList<>(campaigns);
+        for (int i = 0; i < campaigns; i++) {
+            SegmentExpression[] clauses = new SegmentExpression[1 + random.nextInt(3)];
+            for (int c = 0; c < clauses.length; c++) {
+                SegmentExpression[] segments = new SegmentExpression[1 + random.nextInt(3)];
+                for (int s = 0; s < segments.length; s++) {
+                    segments[s] = SegmentExpression.segment(random.nextInt(segmentCount));
+                }
+                clauses[c] = SegmentExpression.and(segments);
+            }
+            SegmentExpression expression = SegmentExpression.or(clauses);
+            if (random.nextInt(5) == 0) {
+                expression = SegmentExpression.and(expression, SegmentExpression.not(SegmentExpression.segment(random.nextInt(segmentCount))));
+            }
+            campaignList.add(new Campaign(i, expression));
+        }
+        matcher = TargetingIndex.compile(campaignList).newMatcher();
+
+        devices = new SegmentBitmap[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            long[] segmentIds = new long[segmentsPerDevice];
+            for (int s = 0; s < segmentIds.length; s++) {
+                segmentIds[s] = random.nextInt(segmentCount);
+            }
+            devices[i] = SegmentBitmap.of(segmentIds);
+        }
+    }
+
+    private SegmentBitmap nextDevice() {
+        device = (device + 1) & (DEVICES - 1);
+        return devices[device];
+    }
+
+    @Benchmark
+    public int match() {
+        return matcher.match(nextDevice());
+    }
+
+    @Benchmark
+    public int evaluate() {
+        SegmentBitmap segments = nextDevice();
+        int matches = 0;
+        for (Campaign campaign : campaignList) {
+            if (campaign.getExpression().matches(segments)) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
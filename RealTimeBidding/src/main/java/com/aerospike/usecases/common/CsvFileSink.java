@@ -0,0 +1,48 @@
+package com.aerospike.usecases.common;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write metrics to a CSV file, one row per interval. The header is derived from the metrics passed to
+ * the first report, so the set of metrics should not change once reporting has started.
+ */
+public class CsvFileSink implements MetricsSink {
+    private final PrintWriter writer;
+    private boolean headerWritten = false;
+
+    public CsvFileSink(String fileName) throws IOException {
+        this.writer = new PrintWriter(new FileWriter(fileName));
+    }
+
+    @Override
+    public void report(long timestampMs, long elapsedMs, List<MonitorMetric> metrics) {
+        if (!headerWritten) {
+            StringBuilder header = new StringBuilder("timestamp,elapsedMs");
+            for (MonitorMetric metric : metrics) {
+                for (String key : metric.getValues().keySet()) {
+                    header.append(',').append(metric.getName()).append('.').append(key);
+                }
+            }
+            writer.println(header);
+            headerWritten = true;
+        }
+        StringBuilder row = new StringBuilder();
+        row.append(timestampMs).append(',').append(elapsedMs);
+        for (MonitorMetric metric : metrics) {
+            for (Map.Entry<String, Number> entry : metric.getValues().entrySet()) {
+                row.append(',').append(entry.getValue());
+            }
+        }
+        writer.println(row);
+        writer.flush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
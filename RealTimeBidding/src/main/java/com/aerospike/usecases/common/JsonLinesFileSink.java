@@ -0,0 +1,43 @@
+package com.aerospike.usecases.common;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Write metrics to a file as JSON lines, one object per interval. For example:
+ * <pre>
+ * {"timestamp":1718677604000,"elapsedMs":1000,"metrics":{"inserted":{"count":2500,"rate":2500}}}
+ * </pre>
+ */
+public class JsonLinesFileSink implements MetricsSink {
+    private final PrintWriter writer;
+
+    public JsonLinesFileSink(String fileName) throws IOException {
+        this.writer = new PrintWriter(new FileWriter(fileName));
+    }
+
+    @Override
+    public void report(long timestampMs, long elapsedMs, List<MonitorMetric> metrics) {
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("timestamp", timestampMs);
+        line.put("elapsedMs", elapsedMs);
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (MonitorMetric metric : metrics) {
+            values.put(metric.getName(), metric.getValues());
+        }
+        line.put("metrics", values);
+        writer.println(JSONValue.toJSONString(line));
+        writer.flush();
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
@@ -0,0 +1,165 @@
+package com.aerospike.usecases.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies which many threads can record into concurrently without locking.
+ * <p/>
+ * Buckets are log-linear: values below 64 have a bucket each, and above that every power of 2 is split into 32
+ * equally sized buckets, so any recorded value is within about 3% of its bucket bounds. Values are clamped to
+ * 2<sup>40</sup> (about 18 minutes in nanoseconds).
+ * <p/>
+ * To avoid threads contending on the same hot buckets, the counts are striped over several arrays, with each
+ * thread picking a stripe from its id. Recording a value is a bucket index calculation and an atomic increment,
+ * plus a compare-and-set in the rare case the value is a new maximum. Reading the histogram sums the stripes.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final long MAX_VALUE = (1L << MAX_MAGNITUDE) - 1;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder totalValue = new LongAdder();
+    private final AtomicLong maxValue = new AtomicLong();
+    private final AtomicLong intervalMaxValue = new AtomicLong();
+
+    public LatencyHistogram() {
+        int stripeCount = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.stripes = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new AtomicLongArray(BUCKET_COUNT);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int)value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int)((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return ((long)(SUB_BUCKET_COUNT + (index & (SUB_BUCKET_COUNT - 1)))) << shift;
+    }
+
+    static long bucketUpperBound(int index) {
+        return bucketLowerBound(index + 1) - 1;
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Record a single value, typically a latency in nanoseconds. Negative values are treated as 0.
+     * @param value
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(MAX_VALUE, value));
+        int stripe = (int)(Thread.currentThread().getId() & stripeMask);
+        stripes[stripe].getAndIncrement(bucketIndex(clamped));
+        totalValue.add(clamped);
+        updateMax(maxValue, clamped);
+        updateMax(intervalMaxValue, clamped);
+    }
+
+    /**
+     * Take a snapshot of everything recorded so far.
+     * @return
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return new Snapshot(counts, totalValue.sum(), maxValue.get());
+    }
+
+    /**
+     * Take a snapshot of the values recorded since the <code>previous</code> snapshot. Note that the maximum
+     * of the interval is tracked by the histogram, so interval snapshots should be taken by a single reader.
+     * @param previous - the cumulative snapshot taken at the end of the last interval
+     * @param current - the cumulative snapshot taken at the end of this interval
+     * @return
+     */
+    public Snapshot intervalSnapshot(Snapshot previous, Snapshot current) {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = current.counts[i] - (previous == null ? 0 : previous.counts[i]);
+        }
+        long total = current.total - (previous == null ? 0 : previous.total);
+        return new Snapshot(counts, total, intervalMaxValue.getAndSet(0));
+    }
+
+    /**
+     * An immutable view of the histogram at a point in time
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long total, long max) {
+            this.counts = counts;
+            long count = 0;
+            for (long thisCount : counts) {
+                count += thisCount;
+            }
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * Return the value at the passed percentile. This is the upper bound of the bucket containing the
+         * percentile, but never more than the largest recorded value.
+         * @param percentile - a value from 0 to 100, eg 99.9
+         * @return
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= target) {
+                    return Math.min(max, bucketUpperBound(i));
+                }
+            }
+            return max;
+        }
+    }
+}
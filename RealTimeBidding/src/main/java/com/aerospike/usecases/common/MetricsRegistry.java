@@ -0,0 +1,79 @@
+package com.aerospike.usecases.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.GaugeMetric;
+import com.aerospike.usecases.common.MonitorMetric.RateMetric;
+import com.aerospike.usecases.common.MonitorMetric.ResultCodeMetric;
+import com.aerospike.usecases.common.MonitorMetric.TimingMetric;
+
+/**
+ * A set of named metrics. Metrics are created on first use and subsequent requests for the same name
+ * return the same metric, so independent components can share a metric by name. Metrics are reported in
+ * the order they were registered.
+ */
+public class MetricsRegistry {
+    private final Map<String, MonitorMetric> metrics = new LinkedHashMap<>();
+
+    /**
+     * Register an existing metric. If a metric with the same name is already registered, it is replaced.
+     * @param metric
+     * @return the passed metric
+     */
+    public synchronized <T extends MonitorMetric> T register(T metric) {
+        metrics.put(metric.getName(), metric);
+        return metric;
+    }
+
+    private synchronized <T extends MonitorMetric> T getOrCreate(String name, Class<T> type, Function<String, T> creator) {
+        MonitorMetric existing = metrics.get(name);
+        if (existing == null) {
+            T metric = creator.apply(name);
+            metrics.put(name, metric);
+            return metric;
+        }
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException(String.format("Metric '%s' is already registered as a %s, not a %s",
+                    name, existing.getClass().getSimpleName(), type.getSimpleName()));
+        }
+        return type.cast(existing);
+    }
+
+    public CounterMetric counter(String name, String description) {
+        return getOrCreate(name, CounterMetric.class, n -> new CounterMetric(n, description));
+    }
+
+    public RateMetric rate(String name, String description) {
+        return getOrCreate(name, RateMetric.class, n -> new RateMetric(n, description));
+    }
+
+    public GaugeMetric gauge(String name, String description) {
+        return getOrCreate(name, GaugeMetric.class, n -> new GaugeMetric(n, description));
+    }
+
+    public GaugeMetric gauge(String name, String description, LongSupplier supplier) {
+        return getOrCreate(name, GaugeMetric.class, n -> new GaugeMetric(n, description, supplier));
+    }
+
+    public ResultCodeMetric resultCodes(String name, String description) {
+        return getOrCreate(name, ResultCodeMetric.class, n -> new ResultCodeMetric(n, description));
+    }
+
+    public TimingMetric timer(String name, String description) {
+        return getOrCreate(name, TimingMetric.class, n -> new TimingMetric(n, description));
+    }
+
+    /**
+     * Return a point in time copy of the registered metrics
+     * @return
+     */
+    public synchronized List<MonitorMetric> getMetrics() {
+        return new ArrayList<>(metrics.values());
+    }
+}
@@ -0,0 +1,18 @@
+package com.aerospike.usecases.common;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * A destination for metrics in a machine-readable form. The <code>MonitorService</code> calls <code>report</code>
+ * once per interval, after every metric has been sampled, always from the same thread.
+ */
+public interface MetricsSink extends Closeable {
+    /**
+     * Report the sampled metrics
+     * @param timestampMs - the wall clock time of the sample, in milliseconds since the epoch
+     * @param elapsedMs - the time since monitoring started, in milliseconds
+     * @param metrics - the metrics, which have just been sampled
+     */
+    void report(long timestampMs, long elapsedMs, List<MonitorMetric> metrics);
+}
@@ -1,50 +1,378 @@
 package com.aerospike.usecases.common;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
+import com.aerospike.client.ResultCode;
+
+/**
+ * A metric reported by the <code>MonitorService</code>. Once per interval the service calls <code>sample</code>
+ * to capture the state of the metric, then prints it with <code>toString</code> and passes it to any
+ * <code>MetricsSink</code>s, which export the values returned by <code>getValues</code>.
+ * <p/>
+ * The counting metrics are built on <code>LongAdder</code>s, so many threads can update them without
+ * contending on a single shared atomic.
+ */
 public abstract class MonitorMetric {
     private final String name;
     private final String description;
-    
+
     public MonitorMetric(String name, String description) {
         this.name = name;
         this.description = description;
     }
-    
+
     public String getName() {
         return name;
     }
-    
+
     public String getDescription() {
         return description;
     }
-    
+
+    /**
+     * Capture the state of the metric at the end of an interval. This is called by a single thread.
+     * @param intervalNs - the length of the interval which has just finished, in nanoseconds
+     */
+    public abstract void sample(long intervalNs);
+
+    /**
+     * Return the values captured by the last call to <code>sample</code>, keyed by a short name.
+     * @return
+     */
+    public abstract Map<String, Number> getValues();
+
+    /**
+     * Whether the named value is a running total which only ever increases, so sinks can export it as a counter.
+     * By default only the <code>count</code> value is.
+     * @param valueName - a key of the map returned by <code>getValues</code>
+     * @return
+     */
+    public boolean isCumulative(String valueName) {
+        return "count".equals(valueName);
+    }
+
+    /**
+     * A count of events, for example the number of records which failed to insert.
+     */
+    public static class CounterMetric extends MonitorMetric {
+        private final LongAdder count = new LongAdder();
+        private long lastTotal = 0;
+        private long total = 0;
+        private long delta = 0;
+
+        public CounterMetric(String name, String description) {
+            super(name, description);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void sample(long intervalNs) {
+            this.total = count.sum();
+            this.delta = total - lastTotal;
+            this.lastTotal = total;
+        }
+
+        @Override
+        public Map<String, Number> getValues() {
+            Map<String, Number> values = new LinkedHashMap<>();
+            values.put("count", total);
+            values.put("interval_count", delta);
+            return values;
+        }
+
+        public String toString() {
+            return String.format("%,d (last %,d)", total, delta);
+        }
+    }
+
+    /**
+     * A count of failures broken down by Aerospike <code>ResultCode</code>, so it can be seen whether a run is
+     * failing with timeouts, overloaded devices, hot keys or something else entirely.
+     * <p/>
+     * The console shows the total count of every code seen, by name. So that the exported columns do not change
+     * as new codes are seen, the values exported to sinks are the totals, one count for each of the codes caused
+     * by an overloaded or unavailable cluster, and one count for all the other codes.
+     */
+    public static class ResultCodeMetric extends MonitorMetric {
+        private static final int[] EXPORTED_CODES = {
+                ResultCode.TIMEOUT,
+                ResultCode.DEVICE_OVERLOAD,
+                ResultCode.KEY_BUSY,
+                ResultCode.PARTITION_UNAVAILABLE,
+                ResultCode.BATCH_QUEUES_FULL,
+                ResultCode.NO_MORE_CONNECTIONS,
+                ResultCode.SERVER_NOT_AVAILABLE,
+                ResultCode.ASYNC_QUEUE_FULL,
+                ResultCode.MAX_ERROR_RATE
+        };
+        private static final Map<Integer, String> NAMES = getNames();
+        private final Map<Integer, LongAdder> counts = new ConcurrentHashMap<>();
+        private final LongAdder count = new LongAdder();
+        private Map<Integer, Long> totals = new TreeMap<>();
+        private long lastTotal = 0;
+        private long total = 0;
+        private long delta = 0;
+
+        public ResultCodeMetric(String name, String description) {
+            super(name, description);
+        }
+
+        /**
+         * The names of the <code>ResultCode</code> constants, keyed by their value. Where two constants have
+         * the same value the first is used.
+         */
+        private static Map<Integer, String> getNames() {
+            Map<Integer, String> names = new HashMap<>();
+            for (Field field : ResultCode.class.getFields()) {
+                if (field.getType() == int.class && Modifier.isStatic(field.getModifiers())) {
+                    try {
+                        names.putIfAbsent(field.getInt(null), field.getName());
+                    }
+                    catch (IllegalAccessException ignored) {
+                    }
+                }
+            }
+            return names;
+        }
+
+        /**
+         * The name of a result code, for example <code>DEVICE_OVERLOAD</code>
+         */
+        public static String getName(int resultCode) {
+            String name = NAMES.get(resultCode);
+            return name == null ? "CODE_" + resultCode : name;
+        }
+
+        public void increment(int resultCode) {
+            counts.computeIfAbsent(resultCode, code -> new LongAdder()).increment();
+            count.increment();
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        public long get(int resultCode) {
+            LongAdder adder = counts.get(resultCode);
+            return adder == null ? 0 : adder.sum();
+        }
+
+        @Override
+        public void sample(long intervalNs) {
+            Map<Integer, Long> totals = new TreeMap<>();
+            counts.forEach((code, adder) -> totals.put(code, adder.sum()));
+            this.totals = totals;
+            this.total = count.sum();
+            this.delta = total - lastTotal;
+            this.lastTotal = total;
+        }
+
+        @Override
+        public Map<String, Number> getValues() {
+            Map<String, Number> values = new LinkedHashMap<>();
+            values.put("count", total);
+            values.put("interval_count", delta);
+            long other = total;
+            for (int code : EXPORTED_CODES) {
+                long codeTotal = totals.getOrDefault(code, 0L);
+                values.put(getName(code).toLowerCase(), codeTotal);
+                other -= codeTotal;
+            }
+            values.put("other", other);
+            return values;
+        }
+
+        @Override
+        public boolean isCumulative(String valueName) {
+            // Everything but the interval count is a running total
+            return !"interval_count".equals(valueName);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%,d (last %,d)", total, delta));
+            if (!totals.isEmpty()) {
+                String separator = " [";
+                for (Map.Entry<Integer, Long> entry : totals.entrySet()) {
+                    sb.append(separator).append(getName(entry.getKey())).append(": ").append(String.format("%,d", entry.getValue()));
+                    separator = ", ";
+                }
+                sb.append(']');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A count of events which is reported as a rate per second over the last interval, for example the
+     * number of devices inserted.
+     */
+    public static class RateMetric extends MonitorMetric {
+        private final LongAdder count = new LongAdder();
+        private long lastTotal = 0;
+        private long total = 0;
+        private long ratePerSecond = 0;
+
+        public RateMetric(String name, String description) {
+            super(name, description);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void sample(long intervalNs) {
+            this.total = count.sum();
+            this.ratePerSecond = intervalNs <= 0 ? 0 : (total - lastTotal) * 1_000_000_000L / intervalNs;
+            this.lastTotal = total;
+        }
+
+        @Override
+        public Map<String, Number> getValues() {
+            Map<String, Number> values = new LinkedHashMap<>();
+            values.put("count", total);
+            values.put("rate", ratePerSecond);
+            return values;
+        }
+
+        public String toString() {
+            return String.format("%,d/sec (total %,d)", ratePerSecond, total);
+        }
+    }
+
+    /**
+     * A value which can go up or down, for example a queue size. The value is either set explicitly or read
+     * from a supplier when the metric is sampled.
+     */
+    public static class GaugeMetric extends MonitorMetric {
+        private final LongSupplier supplier;
+        private volatile long current;
+        private long value;
+
+        public GaugeMetric(String name, String description) {
+            this(name, description, null);
+        }
+
+        public GaugeMetric(String name, String description, LongSupplier supplier) {
+            super(name, description);
+            this.supplier = supplier;
+        }
+
+        public void set(long value) {
+            this.current = value;
+        }
+
+        @Override
+        public void sample(long intervalNs) {
+            this.value = supplier == null ? current : supplier.getAsLong();
+        }
+
+        @Override
+        public Map<String, Number> getValues() {
+            Map<String, Number> values = new LinkedHashMap<>();
+            values.put("value", value);
+            return values;
+        }
+
+        public String toString() {
+            return String.format("%,d", value);
+        }
+    }
+
+    /**
+     * Track the latency of an operation. The latencies are recorded in a <code>LatencyHistogram</code> so
+     * along with the averages, each interval reports the p50, p90, p99, p99.9 and maximum latencies, both
+     * for the interval and cumulatively.
+     */
     public static class TimingMetric extends MonitorMetric {
-        private final AtomicLong totalTime = new AtomicLong();
-        private final AtomicLong count = new AtomicLong();
-        private long lastCount = 0;
-        private long lastTime = 0;
-        
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private LatencyHistogram.Snapshot lastSnapshot = null;
+        private LatencyHistogram.Snapshot delta = null;
+
         public TimingMetric(String name, String description) {
             super(name, description);
         }
         public void addTime(long timeNs) {
-            totalTime.addAndGet(timeNs);
-            count.incrementAndGet();
+            histogram.record(timeNs);
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        @Override
+        public void sample(long intervalNs) {
+            LatencyHistogram.Snapshot total = histogram.snapshot();
+            this.delta = histogram.intervalSnapshot(lastSnapshot, total);
+            this.lastSnapshot = total;
+        }
+
+        private static void addValues(Map<String, Number> values, String prefix, LatencyHistogram.Snapshot snapshot) {
+            values.put(prefix + "count", snapshot.getCount());
+            values.put(prefix + "mean_us", snapshot.getMean() / 1_000);
+            values.put(prefix + "p50_us", snapshot.getValueAtPercentile(50) / 1_000);
+            values.put(prefix + "p90_us", snapshot.getValueAtPercentile(90) / 1_000);
+            values.put(prefix + "p99_us", snapshot.getValueAtPercentile(99) / 1_000);
+            values.put(prefix + "p999_us", snapshot.getValueAtPercentile(99.9) / 1_000);
+            values.put(prefix + "max_us", snapshot.getMax() / 1_000);
+        }
+
+        @Override
+        public Map<String, Number> getValues() {
+            if (lastSnapshot == null) {
+                sample(0);
+            }
+            Map<String, Number> values = new LinkedHashMap<>();
+            addValues(values, "", lastSnapshot);
+            addValues(values, "interval_", delta);
+            return values;
         }
-        
+
+        private static String formatPercentiles(LatencyHistogram.Snapshot snapshot) {
+            return String.format("p50: %,dus, p90: %,dus, p99: %,dus, p99.9: %,dus, max: %,dus",
+                    snapshot.getValueAtPercentile(50) / 1_000,
+                    snapshot.getValueAtPercentile(90) / 1_000,
+                    snapshot.getValueAtPercentile(99) / 1_000,
+                    snapshot.getValueAtPercentile(99.9) / 1_000,
+                    snapshot.getMax() / 1_000);
+        }
+
         public String toString() {
-            long totalTime = this.totalTime.get();
-            long totalCount = Math.max(1, this.count.get());
-            long deltaTime = totalTime - lastTime;
-            long deltaCount = this.count.get() - lastCount;
-            long deltaLatency = deltaCount > 0 ? deltaTime / deltaCount : 0;
-            this.lastCount = totalCount;
-            this.lastTime = totalTime;
-            return String.format("Avg latency: %,dus, iterations: %,d, last latency: %,dus, last iterations: %,d", 
-                    (totalTime/1_000) / totalCount, totalCount,
-                    deltaLatency/1_000, deltaCount);
-            
+            if (lastSnapshot == null) {
+                sample(0);
+            }
+            LatencyHistogram.Snapshot total = lastSnapshot;
+            return String.format("Avg latency: %,dus, iterations: %,d, last latency: %,dus, last iterations: %,d, last [%s], total [%s]",
+                    total.getMean()/1_000, total.getCount(),
+                    delta.getMean()/1_000, delta.getCount(),
+                    formatPercentiles(delta), formatPercentiles(total));
         }
     }
 }
@@ -3,34 +3,80 @@ package com.aerospike.usecases.common;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.aerospike.client.Log;
+
 public class MonitorService {
-    private List<MonitorMetric> metrics;
+    private final MetricsRegistry registry;
+    private final List<MetricsSink> sinks = new ArrayList<>();
     private Thread monitorThread;
     private volatile boolean terminate = false;
     private volatile boolean hasTerminated = false;
     private volatile long startTime;
-    
+    private long lastSampleTime;
+
     public MonitorService(MonitorMetric ...metrics) {
-        this.metrics = new ArrayList<>();
+        this.registry = new MetricsRegistry();
         for (MonitorMetric thisMetric : metrics) {
-            this.metrics.add(thisMetric);
+            this.registry.register(thisMetric);
         }
     }
-    
+
+    /**
+     * Monitor all the metrics in the passed registry, including any which are added to it after monitoring starts.
+     * @param registry
+     */
+    public MonitorService(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
     public synchronized void addMetric(MonitorMetric metric) {
-        this.metrics.add(metric);
+        this.registry.register(metric);
     }
-    
-    private String getMetrics() {
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Add a sink which is passed the metrics every interval, in addition to them being printed. The sink is
+     * not closed by this service.
+     * @param sink
+     */
+    public synchronized void addSink(MetricsSink sink) {
+        this.sinks.add(sink);
+    }
+
+    /**
+     * Sample every metric, report them to the sinks and return them formatted for the console.
+     */
+    private synchronized String getMetrics() {
+        long now = System.nanoTime();
+        List<MonitorMetric> metrics = registry.getMetrics();
+        for (MonitorMetric metric : metrics) {
+            metric.sample(now - this.lastSampleTime);
+        }
+        this.lastSampleTime = now;
+        long timeInMs = (now - this.startTime) / 1_000_000;
+        for (MetricsSink sink : sinks) {
+            try {
+                sink.report(System.currentTimeMillis(), timeInMs, metrics);
+            }
+            catch (RuntimeException e) {
+                Log.warn("Failed to report metrics to " + sink + ": " + e);
+            }
+        }
         StringBuilder sb = new StringBuilder();
-        long timeInNs = System.nanoTime() - this.startTime;
-        sb.append(String.format("%,5dms: ", timeInNs / 1_000_000));
+        sb.append(String.format("%,5dms: ", timeInMs));
         for (MonitorMetric metric : metrics) {
+            // Label each metric when there is more than one, otherwise the output cannot be told apart
+            if (metrics.size() > 1) {
+                sb.append(metric.getName()).append(": ");
+            }
             sb.append(metric).append(' ');
         }
         return sb.toString();
     }
-    
+
     public void startMonitoring() {
         this.monitorThread = new Thread(() -> {
             while (!terminate) {
@@ -46,9 +92,10 @@ public class MonitorService {
         this.monitorThread.setName("Monitor Thread");
         this.monitorThread.setDaemon(true);
         this.startTime = System.nanoTime();
+        this.lastSampleTime = this.startTime;
         this.monitorThread.start();
     }
-    
+
     public void endMonitoring() {
         if (this.monitorThread != null) {
             this.terminate = true;
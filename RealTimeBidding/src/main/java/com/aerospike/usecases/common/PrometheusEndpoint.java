@@ -0,0 +1,75 @@
+package com.aerospike.usecases.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.Log;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serve the metrics in the Prometheus text exposition format on <code>http://&lt;host&gt;:&lt;port&gt;/metrics</code>,
+ * using the HTTP server built into the JDK.
+ * <p/>
+ * The text is rendered when the metrics are reported, so a scrape returns the values of the last interval
+ * and never interferes with the sampling. Each value of a metric becomes a separate Prometheus metric
+ * named <code>rtb_&lt;metric&gt;_&lt;value&gt;</code>. The running totals are typed as counters, named with the
+ * conventional <code>_total</code> suffix in place of the value name for the <code>count</code> value, so
+ * <code>rtb_&lt;metric&gt;_total</code> and <code>rtb_&lt;metric&gt;_&lt;value&gt;_total</code>. Everything else,
+ * including the interval counts, is a gauge.
+ */
+public class PrometheusEndpoint implements MetricsSink {
+    private static final String PREFIX = "rtb_";
+    private final HttpServer server;
+    private volatile byte[] body = new byte[0];
+
+    public PrometheusEndpoint(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/metrics", exchange -> {
+            byte[] response = body;
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        });
+        this.server.start();
+        Log.info(String.format("Serving Prometheus metrics on port %d", port));
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    @Override
+    public void report(long timestampMs, long elapsedMs, List<MonitorMetric> metrics) {
+        StringBuilder sb = new StringBuilder();
+        for (MonitorMetric metric : metrics) {
+            for (Map.Entry<String, Number> entry : metric.getValues().entrySet()) {
+                boolean counter = metric.isCumulative(entry.getKey());
+                String name = PREFIX + sanitize(metric.getName());
+                if (!counter || !entry.getKey().equals("count")) {
+                    name += "_" + sanitize(entry.getKey());
+                }
+                if (counter) {
+                    name += "_total";
+                }
+                String type = counter ? "counter" : "gauge";
+                if (metric.getDescription() != null && !metric.getDescription().isEmpty()) {
+                    sb.append("# HELP ").append(name).append(' ').append(metric.getDescription()).append('\n');
+                }
+                sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                sb.append(name).append(' ').append(entry.getValue()).append('\n');
+            }
+        }
+        this.body = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,66 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.aerospike.client.Record;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * The non-blocking equivalent of <code>StorageEngine</code>. Each method starts the same operation as the
+ * <code>StorageEngine</code> method of the same name without the <code>Async</code> suffix, and returns a future
+ * which is completed with the same result, or completed exceptionally with the exception the synchronous method
+ * would have thrown. No thread is parked while the operation is in flight, so a bid pipeline can compose the
+ * lookups with its own non-blocking stages.
+ * <p/>
+ * Futures may be completed on an event loop or an engine thread. Stages which block or take a long time should be
+ * attached with the <code>...Async</code> methods of <code>CompletableFuture</code> and an executor of the caller's.
+ */
+public interface AsyncStorageEngine {
+
+    /**
+     * @see StorageEngine#saveDevice(Device)
+     */
+    CompletableFuture<Void> saveDeviceAsync(Device device);
+
+    /**
+     * @see StorageEngine#saveDevices(List)
+     */
+    CompletableFuture<int[]> saveDevicesAsync(List<Device> devices);
+
+    /**
+     * @see StorageEngine#insertSegmentAndRemoveExpired(String, SegmentInstance)
+     */
+    CompletableFuture<Void> insertSegmentAndRemoveExpiredAsync(String deviceId, SegmentInstance segment);
+
+    /**
+     * @see StorageEngine#insertSegments(String, List, boolean)
+     */
+    CompletableFuture<Long> insertSegmentsAsync(String deviceId, List<SegmentInstance> segments, boolean removeExpired);
+
+    /**
+     * @see StorageEngine#insertSegments(List)
+     */
+    CompletableFuture<int[]> insertSegmentsAsync(List<Device> devices);
+
+    /**
+     * @see StorageEngine#getActiveSegments(String)
+     */
+    CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(String deviceId);
+
+    /**
+     * @see StorageEngine#getActiveSegments(String, SegmentFilter)
+     */
+    CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(String deviceId, SegmentFilter filter);
+
+    /**
+     * @see StorageEngine#getActiveSegments(List)
+     */
+    CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(List<String> deviceIds);
+
+    /**
+     * @see StorageEngine#getCountOfActiveAndExpiredSegments(String)
+     */
+    CompletableFuture<Record> getCountOfActiveAndExpiredSegmentsAsync(String deviceId);
+}
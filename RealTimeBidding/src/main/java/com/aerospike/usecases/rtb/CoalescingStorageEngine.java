@@ -0,0 +1,358 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.aerospike.client.Record;
+import com.aerospike.usecases.common.MonitorMetric;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.GaugeMetric;
+import com.aerospike.usecases.common.MonitorMetric.ResultCodeMetric;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Coalesces the segments inserted into each device over a short window into a single write, in front of any
+ * other <code>StorageEngine</code>. Segments for a device tend to arrive in bursts from one partner pipeline, and
+ * without coalescing every segment is a separate write which also re-runs the removal of expired segments
+ * over the whole map.
+ * <p/>
+ * The first segment inserted into a device starts its window. The buffered segments are written with one
+ * <code>insertSegments</code> call when the window ends or the maximum number of segments is reached, whichever
+ * comes first. The earliest expiry of each device returned by the write is remembered, and while it has not
+ * passed the next write of the device skips the removal of expired segments, as there cannot be any. Expiries
+ * are remembered in a fixed size table indexed by device, so a device which has been displaced from the table
+ * simply has its expired segments removed on its next write.
+ * <p/>
+ * The timed writes run on a pool of flush threads, which should be about as large as the number of threads or
+ * requests inserting, since each write blocks its thread for a round trip. The number of devices buffered is
+ * bounded: once <code>MAX_PENDING_PER_THREAD</code> devices per flush thread are waiting, a thread which inserts a
+ * segment writes its device itself rather than leaving it for the pool. This slows the inserting threads to the
+ * rate the database can take instead of letting the buffers grow without limit when the flushes fall behind.
+ * <p/>
+ * Inserts return as soon as the segment is buffered, so the caller never sees a failed write. Failures are
+ * counted in the metrics and a sample of them is logged, and if a <code>RetryQueue</code> is set the write is
+ * retried and, if it keeps failing, written to the dead-letter file. Otherwise its segments are lost. A
+ * read or save of a device through this engine writes its buffered segments first, so this engine always
+ * reads its own writes. Call <code>close</code> to write any buffered segments before exiting.
+ */
+public class CoalescingStorageEngine implements StorageEngine, AutoCloseable {
+    private static final int EXPIRY_TABLE_SIZE = 1 << 16;
+    public static final int MAX_FLUSH_THREADS = 256;
+    public static final int MAX_PENDING_PER_THREAD = 1_000;
+
+    /**
+     * The segments buffered for one device. Once flushed it is closed and a new one is created for the device.
+     */
+    private static class PendingInserts {
+        private final List<SegmentInstance> segments = new ArrayList<>();
+        private boolean flushed = false;
+        private ScheduledFuture<?> timer;
+    }
+
+    /**
+     * The earliest expiry of a device after its last write
+     */
+    private static class TrackedExpiry {
+        private final String deviceId;
+        private final long earliestExpiry;
+
+        TrackedExpiry(String deviceId, long earliestExpiry) {
+            this.deviceId = deviceId;
+            this.earliestExpiry = earliestExpiry;
+        }
+    }
+
+    private final StorageEngine delegate;
+    private final long windowMs;
+    private final int maxSegments;
+    private final int maxPending;
+    private final Map<String, PendingInserts> pending = new ConcurrentHashMap<>();
+    // A lossy table of the earliest expiry of recently written devices. Entries are immutable, so races only lose updates.
+    private final TrackedExpiry[] expiries = new TrackedExpiry[EXPIRY_TABLE_SIZE];
+    private final ScheduledThreadPoolExecutor scheduler;
+    private volatile RetryQueue retries;
+    // The devices with buffered segments, counted separately as the size of a ConcurrentHashMap is not constant time
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    // Inserts buffer under the read lock and close takes the write lock, so no segment is buffered after the final flush
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+    private final CounterMetric segmentsBuffered = new CounterMetric("coalescedSegments", "Segments passed to insertSegmentAndRemoveExpired");
+    private final CounterMetric writes = new CounterMetric("coalescedWrites", "Writes of buffered segments to the database");
+    private final CounterMetric removalsSkipped = new CounterMetric("removalsSkipped", "Writes which skipped removing expired segments as none had expired");
+    private final CounterMetric failures = new CounterMetric("coalescedFailures", "Writes of buffered segments which failed");
+    private final ResultCodeMetric errorCodes = new ResultCodeMetric("coalescedErrors", "Failed writes of buffered segments by result code");
+    private final ErrorTracker errors = new ErrorTracker(errorCodes);
+    private final CounterMetric callerFlushes = new CounterMetric("callerFlushes", "Writes made by the inserting thread as too many devices were buffered");
+    private final GaugeMetric pendingDevices = new GaugeMetric("coalescePending", "Devices with buffered segments", () -> pendingCount.get());
+
+    /**
+     * Create the coalescing engine
+     * @param delegate - the engine which does the database operations
+     * @param windowMs - the longest time a segment is buffered before it is written
+     * @param maxSegments - the most segments buffered for a device before they are written
+     * @param flushThreads - the number of threads the timed writes run on, typically the number of threads or
+     * requests inserting segments. This is capped at <code>MAX_FLUSH_THREADS</code>.
+     */
+    public CoalescingStorageEngine(StorageEngine delegate, long windowMs, int maxSegments, int flushThreads) {
+        if (windowMs <= 0 || maxSegments <= 0 || flushThreads <= 0) {
+            throw new IllegalArgumentException("The coalescing window, maximum number of segments and number of flush threads must all be positive");
+        }
+        this.delegate = delegate;
+        this.windowMs = windowMs;
+        this.maxSegments = maxSegments;
+        int threads = Math.min(MAX_FLUSH_THREADS, flushThreads);
+        this.maxPending = threads * MAX_PENDING_PER_THREAD;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Coalescing Flusher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Buffers written early cancel their timer, which must then leave the queue rather than wait out the window
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    public StorageEngine getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Retry the writes of buffered segments which fail on this queue, and write those which keep failing to its
+     * dead-letter file. The failures are still counted in the metrics of this engine.
+     * @param retries - the queue, or null to only count the failures
+     */
+    public void setRetryQueue(RetryQueue retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Return the metrics of the coalescing: the segments buffered, the writes made, how many of those skipped
+     * the expiry removal, failed writes, failed writes by result code, writes made by inserting threads because
+     * too many devices were buffered and the number of devices currently buffered
+     * @return
+     */
+    public List<MonitorMetric> getMetrics() {
+        List<MonitorMetric> metrics = new ArrayList<>();
+        metrics.add(segmentsBuffered);
+        metrics.add(writes);
+        metrics.add(removalsSkipped);
+        metrics.add(failures);
+        metrics.add(errorCodes);
+        metrics.add(callerFlushes);
+        metrics.add(pendingDevices);
+        return metrics;
+    }
+
+    private int getExpirySlot(String deviceId) {
+        int hash = deviceId.hashCode();
+        return (hash ^ (hash >>> 16)) & (EXPIRY_TABLE_SIZE - 1);
+    }
+
+    private long getTrackedExpiry(String deviceId) {
+        TrackedExpiry tracked = expiries[getExpirySlot(deviceId)];
+        return tracked != null && tracked.deviceId.equals(deviceId) ? tracked.earliestExpiry : Long.MIN_VALUE;
+    }
+
+    @Override
+    public void insertSegmentAndRemoveExpired(String deviceId, SegmentInstance segment) {
+        PendingInserts inserts = null;
+        boolean isFull = false;
+        Lock lock = closeLock.readLock();
+        lock.lock();
+        try {
+            if (!closed) {
+                segmentsBuffered.increment();
+                while (inserts == null) {
+                    PendingInserts current = pending.computeIfAbsent(deviceId, id -> {
+                        PendingInserts created = new PendingInserts();
+                        pendingCount.incrementAndGet();
+                        created.timer = scheduler.schedule(() -> flush(id, created), windowMs, TimeUnit.MILLISECONDS);
+                        return created;
+                    });
+                    synchronized (current) {
+                        // If this lost a race with a flush, which will remove the entry, retry with a new one
+                        if (!current.flushed) {
+                            current.segments.add(segment);
+                            isFull = current.segments.size() >= maxSegments;
+                            inserts = current;
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (inserts == null) {
+            delegate.insertSegmentAndRemoveExpired(deviceId, segment);
+        }
+        else if (isFull) {
+            flush(deviceId, inserts);
+        }
+        else if (pendingCount.get() > maxPending) {
+            // The flush threads are falling behind, so this thread writes its own device rather than adding to the backlog
+            callerFlushes.increment();
+            flush(deviceId, inserts);
+        }
+    }
+
+    /**
+     * Write the buffered segments of the device. Only one thread writes a given set of buffered segments.
+     */
+    private void flush(String deviceId, PendingInserts inserts) {
+        List<SegmentInstance> segments;
+        synchronized (inserts) {
+            if (inserts.flushed) {
+                return;
+            }
+            inserts.flushed = true;
+            segments = inserts.segments;
+        }
+        pending.remove(deviceId, inserts);
+        pendingCount.decrementAndGet();
+        if (inserts.timer != null) {
+            inserts.timer.cancel(false);
+        }
+        long tracked = getTrackedExpiry(deviceId);
+        boolean removeExpired = tracked == Long.MIN_VALUE || tracked < System.currentTimeMillis();
+        if (!removeExpired) {
+            removalsSkipped.increment();
+        }
+        try {
+            writes.increment();
+            long earliestExpiry = delegate.insertSegments(deviceId, segments, removeExpired);
+            expiries[getExpirySlot(deviceId)] = new TrackedExpiry(deviceId, earliestExpiry);
+        }
+        catch (RuntimeException e) {
+            failures.increment();
+            expiries[getExpirySlot(deviceId)] = null;
+            int resultCode = errors.record("insertSegments", deviceId, e);
+            RetryQueue retries = this.retries;
+            if (retries != null) {
+                // The earliest expiry of the device is no longer known, so the retry removes any expired segments
+                retries.retry("insertSegments", deviceId, () -> segments, resultCode,
+                        () -> delegate.insertSegments(deviceId, segments, true), null);
+            }
+        }
+    }
+
+    /**
+     * Write the buffered segments of the device now, if it has any
+     * @param deviceId
+     */
+    public void flush(String deviceId) {
+        PendingInserts inserts = pending.get(deviceId);
+        if (inserts != null) {
+            flush(deviceId, inserts);
+        }
+    }
+
+    /**
+     * Write the buffered segments of every device now
+     */
+    public void flushAll() {
+        for (Map.Entry<String, PendingInserts> entry : pending.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public long insertSegments(String deviceId, List<SegmentInstance> segments, boolean removeExpired) {
+        flush(deviceId);
+        long earliestExpiry = delegate.insertSegments(deviceId, segments, removeExpired);
+        expiries[getExpirySlot(deviceId)] = new TrackedExpiry(deviceId, earliestExpiry);
+        return earliestExpiry;
+    }
+
+    @Override
+    public int[] insertSegments(List<Device> devices) {
+        for (Device device : devices) {
+            flush(device.getId());
+            expiries[getExpirySlot(device.getId())] = null;
+        }
+        return delegate.insertSegments(devices);
+    }
+
+    @Override
+    public void saveDevice(Device device) {
+        flush(device.getId());
+        expiries[getExpirySlot(device.getId())] = null;
+        delegate.saveDevice(device);
+    }
+
+    @Override
+    public int[] saveDevices(List<Device> devices) {
+        for (Device device : devices) {
+            flush(device.getId());
+            expiries[getExpirySlot(device.getId())] = null;
+        }
+        return delegate.saveDevices(devices);
+    }
+
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId) {
+        flush(deviceId);
+        return delegate.getActiveSegments(deviceId);
+    }
+
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId, SegmentFilter filter) {
+        flush(deviceId);
+        return delegate.getActiveSegments(deviceId, filter);
+    }
+
+    @Override
+    public List<SegmentInstance> getActiveSegments(List<String> deviceIds) {
+        for (String deviceId : deviceIds) {
+            flush(deviceId);
+        }
+        return delegate.getActiveSegments(deviceIds);
+    }
+
+    @Override
+    public Record getCountOfActiveAndExpiredSegments(String deviceId) {
+        flush(deviceId);
+        return delegate.getCountOfActiveAndExpiredSegments(deviceId);
+    }
+
+    /**
+     * Write all the buffered segments and stop the background flushing, waiting for any writes already running.
+     * Segments inserted after this is called are written straight away.
+     */
+    @Override
+    public void close() {
+        Lock lock = closeLock.writeLock();
+        lock.lock();
+        try {
+            closed = true;
+            // Drop the timers which have not fired, but let any write in progress finish rather than interrupting it
+            scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            scheduler.shutdown();
+        }
+        finally {
+            lock.unlock();
+        }
+        flushAll();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s coalescing inserts over %dms or %d segments", delegate, windowMs, maxSegments);
+    }
+}
@@ -0,0 +1,279 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+
+/**
+ * Limits the number of requests in flight, adjusting the limit to the cluster with additive increase,
+ * multiplicative decrease (AIMD), the way TCP adjusts its congestion window.
+ * <p/>
+ * Completions are grouped into windows of as many requests as the current limit, so a window is roughly one
+ * round trip of the whole pipeline. If a window completes with an average latency within the latency target and
+ * an error rate within the error rate target, the limit grows by one. A timeout or overload result code, such as
+ * <code>DEVICE_OVERLOAD</code> while the server is defragmenting or <code>KEY_BUSY</code> on a hot device, cuts the
+ * limit by the backoff ratio straight away, as does a window which misses either target. The limit is cut at most
+ * once per window, as the requests still in flight when it is cut were sent under the old limit.
+ * <p/>
+ * A limiter with the same minimum and maximum never changes its limit, and behaves as a semaphore.
+ */
+public class ConcurrencyLimiter {
+    public static final double DEFAULT_BACKOFF_RATIO = 0.75;
+
+    private enum Outcome {
+        SUCCESS,
+        ERROR,
+        OVERLOAD
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNs;
+    private final double errorRateTarget;
+    private final double backoffRatio;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition belowLimit = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private volatile int limit;
+    private int inFlight;
+    private int windowCount;
+    private int windowErrors;
+    private long windowLatencyNs;
+    private boolean backedOffInWindow;
+
+    /**
+     * Create an adaptive limiter
+     * @param initialLimit - the limit to start at
+     * @param minLimit - the limit is never cut below this
+     * @param maxLimit - the limit never grows beyond this
+     * @param latencyTargetMs - the highest average latency of a window at which the limit still grows
+     * @param errorRateTarget - the highest fraction of failed requests in a window at which the limit still grows
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyTargetMs, double errorRateTarget) {
+        this(initialLimit, minLimit, maxLimit, latencyTargetMs, errorRateTarget, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * Create an adaptive limiter
+     * @param initialLimit - the limit to start at
+     * @param minLimit - the limit is never cut below this
+     * @param maxLimit - the limit never grows beyond this
+     * @param latencyTargetMs - the highest average latency of a window at which the limit still grows
+     * @param errorRateTarget - the highest fraction of failed requests in a window at which the limit still grows
+     * @param backoffRatio - the limit is multiplied by this when it is cut
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long latencyTargetMs, double errorRateTarget, double backoffRatio) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(String.format("The limits must satisfy 0 < minimum <= initial <= maximum, not %d, %d and %d",
+                    minLimit, initialLimit, maxLimit));
+        }
+        if (!(backoffRatio > 0 && backoffRatio < 1)) {
+            throw new IllegalArgumentException("The backoff ratio must be between 0 and 1, not " + backoffRatio);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTargetNs = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+        this.errorRateTarget = errorRateTarget;
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * Create a limiter which always allows <code>limit</code> requests in flight
+     */
+    public static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(limit, limit, limit, Long.MAX_VALUE / 1_000_000, 1.0);
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a request can be sent
+     * @return The time the request was allowed, to pass to <code>release</code>
+     * @throws InterruptedException
+     */
+    public long acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= limit) {
+                belowLimit.await();
+            }
+            inFlight++;
+        }
+        finally {
+            lock.unlock();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Wait until a request can be sent, ignoring interrupts
+     * @return The time the request was allowed, to pass to <code>release</code>
+     */
+    public long acquireUninterruptibly() {
+        lock.lock();
+        try {
+            while (inFlight >= limit) {
+                belowLimit.awaitUninterruptibly();
+            }
+            inFlight++;
+        }
+        finally {
+            lock.unlock();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Wait until there are no requests in flight
+     * @throws InterruptedException
+     */
+    public void awaitIdle() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight > 0) {
+                idle.await();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the result code shows the cluster or client is overloaded, rather than a problem with the request
+     */
+    public static boolean isOverload(int resultCode) {
+        switch (resultCode) {
+        case ResultCode.TIMEOUT:
+        case ResultCode.DEVICE_OVERLOAD:
+        case ResultCode.KEY_BUSY:
+        case ResultCode.BATCH_QUEUES_FULL:
+        case ResultCode.NO_MORE_CONNECTIONS:
+        case ResultCode.ASYNC_QUEUE_FULL:
+        case ResultCode.MAX_ERROR_RATE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Release a request which has completed
+     * @param acquiredTime - the time returned by <code>acquire</code>
+     * @param error - the exception the request failed with, or null if it succeeded
+     */
+    public void release(long acquiredTime, Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        Outcome outcome;
+        if (error == null) {
+            outcome = Outcome.SUCCESS;
+        }
+        else if (error instanceof AerospikeException.Timeout || error instanceof RejectedExecutionException
+                || (error instanceof AerospikeException && isOverload(((AerospikeException)error).getResultCode()))) {
+            outcome = Outcome.OVERLOAD;
+        }
+        else {
+            outcome = Outcome.ERROR;
+        }
+        release(System.nanoTime() - acquiredTime, outcome);
+    }
+
+    /**
+     * Release a batch request which has completed, using the worst of the result codes of its records
+     * @param acquiredTime - the time returned by <code>acquire</code>
+     * @param resultCodes - the <code>ResultCode</code> of each record in the batch
+     */
+    public void release(long acquiredTime, int[] resultCodes) {
+        Outcome outcome = Outcome.SUCCESS;
+        for (int resultCode : resultCodes) {
+            if (isOverload(resultCode)) {
+                outcome = Outcome.OVERLOAD;
+                break;
+            }
+            if (resultCode != ResultCode.OK) {
+                outcome = Outcome.ERROR;
+            }
+        }
+        release(System.nanoTime() - acquiredTime, outcome);
+    }
+
+    private void release(long latencyNs, Outcome outcome) {
+        lock.lock();
+        try {
+            inFlight--;
+            windowCount++;
+            windowLatencyNs += latencyNs;
+            if (outcome != Outcome.SUCCESS) {
+                windowErrors++;
+            }
+            if (outcome == Outcome.OVERLOAD && !backedOffInWindow) {
+                backOff();
+            }
+            else if (windowCount >= limit) {
+                if (!backedOffInWindow) {
+                    if (windowErrors > errorRateTarget * windowCount || windowLatencyNs / windowCount > latencyTargetNs) {
+                        backOff();
+                    }
+                    else if (limit < maxLimit) {
+                        limit++;
+                    }
+                }
+                startWindow();
+            }
+            // One request completed, but if the limit grew there is room for one more waiter for each step it grew
+            for (int free = limit - inFlight; free > 0 && lock.hasWaiters(belowLimit); free--) {
+                belowLimit.signal();
+            }
+            if (inFlight == 0) {
+                idle.signalAll();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void backOff() {
+        limit = Math.max(minLimit, (int)(limit * backoffRatio));
+        startWindow();
+        backedOffInWindow = true;
+    }
+
+    private void startWindow() {
+        windowCount = 0;
+        windowErrors = 0;
+        windowLatencyNs = 0;
+        backedOffInWindow = false;
+    }
+
+    @Override
+    public String toString() {
+        return minLimit == maxLimit ? String.format("fixed limit of %d", limit)
+                : String.format("adaptive limit from %d to %d, currently %d", minLimit, maxLimit, limit);
+    }
+}
@@ -1,108 +1,871 @@
 package com.aerospike.usecases.rtb;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Random;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+import com.aerospike.usecases.common.MetricsRegistry;
+import com.aerospike.usecases.common.MetricsSink;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.RateMetric;
 import com.aerospike.usecases.common.MonitorMetric.TimingMetric;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
 import com.aerospike.client.Log;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.async.EventLoops;
+import com.aerospike.client.listener.RecordListener;
 import com.aerospike.usecases.common.MonitorService;
 import com.aerospike.usecases.rtb.model.Device;
 import com.aerospike.usecases.rtb.model.SegmentInstance;
 
 public class DataPopulator {
     public static final int DAYS_TO_KEEP_SEGMENTS = 30;
-    private final AtomicLong devicesInserted = new AtomicLong();
-    private final AtomicLong segmentsCreated = new AtomicLong();
-    private final AtomicLong deviceInsertsFailed = new AtomicLong();
+    public static final String PARTNER_ID = "www.google.com";
+    public static final int DEFAULT_CHUNK_SIZE = 10_000;
+    private static final int MIN_CHUNKS_PER_THREAD = 4;
+    private static final int SLOWEST_CHUNKS_SHOWN = 5;
+    private static final int MAX_MISMATCHES_SHOWN = 10;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final TimingMetric timer = metrics.timer("timer", "Latency of each save to the storage engine");
+    private final RateMetric devicesInserted = metrics.rate("inserted", "Devices inserted");
+    private final RateMetric segmentsCreated = metrics.rate("segments", "Segments inserted");
+    private final CounterMetric deviceInsertsFailed = metrics.counter("failed", "Devices which failed to insert");
+    private final ErrorTracker errors = new ErrorTracker(metrics.resultCodes("errors", "Failed saves by result code"));
+    private final TimingMetric chunkTimer = metrics.timer("chunk", "Time to generate and save each chunk of devices");
+    private final AtomicLong chunksDone = new AtomicLong();
+    private final List<long[]> chunkTimes = new ArrayList<>();
+    private final List<MetricsSink> sinks = new ArrayList<>();
     private final StorageEngine storageEngine;
+    private double rate = 0;
+    private volatile RateSchedule schedule;
+    private volatile ConcurrencyLimiter limiter;
+    private long seed = ThreadLocalRandom.current().nextLong();
+    private long baseTime = new Date().getTime();
+    private boolean seedSet = false;
+    private boolean baseTimeSet = false;
+    private int maxRetries = RetryQueue.DEFAULT_MAX_RETRIES;
+    private Path deadLetterFile = null;
     
     public DataPopulator(StorageEngine storageEngine) {
         this.storageEngine = storageEngine;
+        metrics.gauge("chunks", "Chunks of devices completed", chunksDone::get);
     }
     
     /**
-     * Create an expiry date. Make ~20% of the dates in the past
-     * @param now - the baseline time
-     * @return A date object in the desired range.
+     * Limit the number of saves in flight with an adaptive limiter, which finds the highest concurrency the 
+     * cluster can sustain within its latency and error rate targets. The number of threads, or the number of 
+     * commands in flight when generating asynchronously, is then the most the limiter can grow to.
+     * @param limiter
      */
-    private Date chooseExpiryDate(long now) {
-        long millisInDayRange = TimeUnit.DAYS.toMillis(DAYS_TO_KEEP_SEGMENTS);
-        long millisInPast = millisInDayRange / 4;
-        long selectedOffset = ThreadLocalRandom.current().nextLong(millisInDayRange + millisInPast);
-        long selectedTIme = now + selectedOffset;
-        return new Date(selectedTIme);
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        if (limiter != null && this.limiter == null) {
+            metrics.gauge("limit", "The current limit on saves in flight", () -> this.limiter.getLimit());
+        }
+        this.limiter = limiter;
+    }
+    
+    private long acquirePermit() {
+        ConcurrencyLimiter limiter = this.limiter;
+        return limiter == null ? System.nanoTime() : limiter.acquireUninterruptibly();
+    }
+    
+    private void releasePermit(long acquiredTime, Throwable error) {
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null) {
+            limiter.release(acquiredTime, error);
+        }
+    }
+    
+    private void releasePermit(long acquiredTime, int[] resultCodes) {
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null) {
+            limiter.release(acquiredTime, resultCodes);
+        }
+    }
+    
+    /**
+     * Set how saves which fail are handled. A save which fails because the cluster is overloaded or briefly 
+     * unavailable is retried after a backoff, and a device which still cannot be saved is written to the 
+     * dead-letter file, with its segments generated again from its id, and counted as failed.
+     * @param maxRetries - the most times a save is retried, 0 to never retry. Defaults to <code>RetryQueue.DEFAULT_MAX_RETRIES</code>
+     * @param deadLetterFile - the file devices which cannot be saved are appended to, or null to only count them
+     */
+    public void setRetries(int maxRetries, Path deadLetterFile) {
+        this.maxRetries = maxRetries;
+        this.deadLetterFile = deadLetterFile;
+    }
+    
+    private RetryQueue createRetryQueue(int threads) throws IOException {
+        RetryQueue retries = new RetryQueue(errors, maxRetries, RetryQueue.DEFAULT_CAPACITY, threads, deadLetterFile);
+        retries.getMetrics().forEach(metrics::register);
+        return retries;
     }
     
     /**
-     * Generate the devices and segments for a range of ids. Note that in a real world scenario the ids would be systematically generated
+     * Save a device again from the retry queue, counting it once it has been saved
+     */
+    private void retrySave(RetryQueue.Operation save, int segmentCount) throws Exception {
+        long permit = acquirePermit();
+        try {
+            save.run();
+        }
+        catch (Exception e) {
+            releasePermit(permit, e);
+            throw e;
+        }
+        releasePermit(permit, (Throwable)null);
+        this.devicesInserted.increment();
+        this.segmentsCreated.add(segmentCount);
+    }
+    
+    /**
+     * A retry which generates the device again from its id, as the buffers it was generated into have since been re-used
+     */
+    private RetryQueue.Operation resave(long deviceId, long numberOfSegments, long avgSegmentsPerDevice) {
+        return () -> {
+            SegmentGenerator generator = createGenerator(numberOfSegments, avgSegmentsPerDevice);
+            if (storageEngine instanceof NativeStorageEngine) {
+                SegmentBuffer segments = new SegmentBuffer(SegmentGenerator.MAX_SEGMENTS_PER_DEVICE);
+                boolean finished = generator.generate(deviceId, segments);
+                retrySave(() -> ((NativeStorageEngine)storageEngine).saveDevice(deviceId, finished, segments), segments.size());
+            }
+            else {
+                Device device = generator.createDevice(deviceId);
+                retrySave(() -> storageEngine.saveDevice(device), device.getSegments().size());
+            }
+        };
+    }
+    
+    /**
+     * The segments of a device, generated again from its id, for the dead-letter file of a device whose buffers
+     * have since been re-used
+     */
+    private Supplier<List<SegmentInstance>> regenerate(long deviceId, long numberOfSegments, long avgSegmentsPerDevice) {
+        return () -> createGenerator(numberOfSegments, avgSegmentsPerDevice).createDevice(deviceId).getSegments();
+    }
+    
+    /**
+     * Tell the chunk a device handed to the retry queue has been saved or given up on
+     */
+    private RetryQueue.Completion deviceDone(ChunkTracker chunk) {
+        return success -> {
+            if (!success) {
+                this.deviceInsertsFailed.increment();
+            }
+            chunk.deviceDone(success);
+        };
+    }
+    
+    /**
+     * Set the seed the devices are generated from. Generating the same devices with the same seed, base time, 
+     * number of segments and average segments per device always gives the same data. Defaults to a random seed.
+     * @param seed
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.seedSet = true;
+    }
+    
+    public long getSeed() {
+        return seed;
+    }
+    
+    /**
+     * Set the time the segment expiry times are generated around, so a data set can be generated again or verified
+     * later. Defaults to the time this populator was created.
+     * @param baseTime - milliseconds since the epoch
+     */
+    public void setBaseTime(long baseTime) {
+        this.baseTime = baseTime;
+        this.baseTimeSet = true;
+    }
+    
+    public long getBaseTime() {
+        return baseTime;
+    }
+    
+    private SegmentGenerator createGenerator(long numberOfSegments, long avgSegmentsPerDevice) {
+        return new SegmentGenerator(seed, numberOfSegments, avgSegmentsPerDevice, baseTime, PARTNER_ID);
+    }
+    
+    /**
+     * Issue the saves on a fixed schedule at this rate, rather than each thread saving its next device as soon as
+     * the previous save returns. Latency is then measured from when each save was due, so stalls are not hidden.
+     * With a batch size each batch is one save.
+     * @param savesPerSecond - the target rate, or 0 to save as fast as possible
+     */
+    public void setRate(double savesPerSecond) {
+        if (savesPerSecond > 0 && this.rate <= 0) {
+            metrics.gauge("behind", "Milliseconds the saves are behind the target rate", () -> schedule == null ? 0 : schedule.getLagMs());
+        }
+        this.rate = savesPerSecond;
+    }
+    
+    /**
+     * Start a new schedule at the configured rate, if there is one
+     */
+    private void startSchedule() {
+        this.schedule = rate > 0 ? new RateSchedule(rate) : null;
+    }
+    
+    /**
+     * Return the time the next save should be measured from. With a rate this waits until the save is due and 
+     * returns the time it was due, otherwise it returns the current time.
+     */
+    private long nextStartTime() {
+        RateSchedule schedule = this.schedule;
+        return schedule == null ? System.nanoTime() : schedule.awaitNext();
+    }
+    
+    /**
+     * Add a sink which the generation metrics are exported to every interval, in addition to being printed.
+     * @param sink
+     */
+    public void addMetricsSink(MetricsSink sink) {
+        this.sinks.add(sink);
+    }
+    
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+    
+    private MonitorService createMonitor() {
+        MonitorService monitor = new MonitorService(metrics);
+        sinks.forEach(monitor::addSink);
+        return monitor;
+    }
+    
+    /**
+     * Create a single device with a random number of segments, centered around <code>avgSegmentsPerDevice</code>,
+     * from the seed of this populator. This creates a <code>SegmentGenerator</code> per call, so to generate many
+     * devices use a <code>SegmentGenerator</code> directly.
+     * @param deviceId - the numeric id of the device
+     * @param numberOfSegments - the size of the pool segment ids are selected from
+     * @param avgSegmentsPerDevice - the average number of segments to assign to the device
+     * @param now - the baseline time for segment expiry
+     * @return the populated device
+     */
+    public Device createDevice(long deviceId, long numberOfSegments, long avgSegmentsPerDevice, long now) {
+        return new SegmentGenerator(seed, numberOfSegments, avgSegmentsPerDevice, now, PARTNER_ID).createDevice(deviceId);
+    }
+    
+    /**
+     * Generate the devices and segments for a chunk of ids. Note that in a real world scenario the ids would be systematically generated
      * like UUIDs or similar. However, for ease of simulating this process
+     * <p/>
+     * The <code>NativeStorageEngine</code> saves the generated segments straight from the generator's buffers, 
+     * other engines are passed <code>Device</code> objects. Devices which fail to save are handed to the retry
+     * queue, and the chunk is told about each device once it has been saved or given up on.
      * @param numberOfSegments
-     * @param startDevice
-     * @param endDevice
+     * @param chunk - the ids to generate
      * @param avgSegmentsPerDevice
      */
-    private void generateDevices(TimingMetric timer, long numberOfSegments, long startDevice, long endDevice, long avgSegmentsPerDevice) {
+    private void generateDevices(TimingMetric timer, RetryQueue retries, ChunkTracker chunk, long numberOfSegments, long avgSegmentsPerDevice, int batchSize) {
+        long startDevice = chunk.start;
+        long endDevice = chunk.end;
         if (Log.debugEnabled()) {
-            Log.debug(String.format("    generateDevices(%d, %d, %d, %d)\n", 
-                numberOfSegments, startDevice, endDevice, avgSegmentsPerDevice));
+            Log.debug(String.format("    generateDevices(%d, %d, %d, %d, %d)\n", 
+                numberOfSegments, startDevice, endDevice, avgSegmentsPerDevice, batchSize));
         }
-        Random random = ThreadLocalRandom.current();
-        long now = new Date().getTime();
+        SegmentGenerator generator = createGenerator(numberOfSegments, avgSegmentsPerDevice);
+        NativeStorageEngine nativeEngine = storageEngine instanceof NativeStorageEngine ? (NativeStorageEngine)storageEngine : null;
         
+        if (batchSize > 1 && nativeEngine != null) {
+            long[] deviceIds = new long[batchSize];
+            boolean[] finished = new boolean[batchSize];
+            SegmentBuffer[] buffers = new SegmentBuffer[batchSize];
+            for (int i = 0; i < batchSize; i++) {
+                buffers[i] = new SegmentBuffer();
+            }
+            int count = 0;
+            for (long thisDeviceId = startDevice; thisDeviceId < endDevice; thisDeviceId++) {
+                deviceIds[count] = thisDeviceId;
+                finished[count] = generator.generate(thisDeviceId, buffers[count]);
+                if (++count >= batchSize) {
+                    saveBatch(timer, retries, chunk, nativeEngine, deviceIds, finished, buffers, count, numberOfSegments, avgSegmentsPerDevice);
+                    count = 0;
+                }
+            }
+            saveBatch(timer, retries, chunk, nativeEngine, deviceIds, finished, buffers, count, numberOfSegments, avgSegmentsPerDevice);
+            return;
+        }
+        if (batchSize > 1) {
+            List<Device> batch = new ArrayList<>(batchSize);
+            for (long thisDeviceId = startDevice; thisDeviceId < endDevice; thisDeviceId++) {
+                batch.add(generator.createDevice(thisDeviceId));
+                if (batch.size() >= batchSize) {
+                    saveBatch(timer, retries, chunk, batch);
+                }
+            }
+            saveBatch(timer, retries, chunk, batch);
+            return;
+        }
+        SegmentBuffer segments = new SegmentBuffer(SegmentGenerator.MAX_SEGMENTS_PER_DEVICE);
         for (long thisDeviceId = startDevice; thisDeviceId < endDevice; thisDeviceId++) {
-            Device device = new Device(Device.idToString(thisDeviceId));
-            device.setFinished(random.nextBoolean());
-            long segmentsToGenerate = Math.max(0, Math.min(1000,(long)(avgSegmentsPerDevice + (avgSegmentsPerDevice / 2) * random.nextGaussian()))); 
-            for (long thisSegment = 0; thisSegment < segmentsToGenerate; thisSegment++) {
-                long segmentId = Math.abs(random.nextLong()) % numberOfSegments;
-                device.getSegments().add(new SegmentInstance(segmentId, chooseExpiryDate(now), 0L, "www.google.com"));
+            boolean finished = false;
+            Device device = null;
+            int segmentCount;
+            if (nativeEngine != null) {
+                finished = generator.generate(thisDeviceId, segments);
+                segmentCount = segments.size();
             }
-
+            else {
+                device = generator.createDevice(thisDeviceId);
+                segmentCount = device.getSegments().size();
+            }
+            long startTime = nextStartTime();
+            long permit = acquirePermit();
             try {
-                long startTime = System.nanoTime();
-                this.storageEngine.saveDevice(device);
+                if (nativeEngine != null) {
+                    nativeEngine.saveDevice(thisDeviceId, finished, segments);
+                }
+                else {
+                    this.storageEngine.saveDevice(device);
+                }
+                releasePermit(permit, (Throwable)null);
                 timer.addTime(System.nanoTime() - startTime);
-                this.devicesInserted.incrementAndGet();
-                this.segmentsCreated.addAndGet(device.getSegments().size());
+                this.devicesInserted.increment();
+                this.segmentsCreated.add(segmentCount);
+                chunk.deviceDone(true);
             }
             catch (Exception e) {
-                e.printStackTrace();
-                this.deviceInsertsFailed.incrementAndGet();
+                releasePermit(permit, e);
+                retries.failed("saveDevice", Device.idToString(thisDeviceId), regenerate(thisDeviceId, numberOfSegments, avgSegmentsPerDevice), e, 
+                        resave(thisDeviceId, numberOfSegments, avgSegmentsPerDevice), deviceDone(chunk));
+            }
+        }
+    }
+    
+    /**
+     * Save a batch of devices in a single call to the storage engine, accounting for each device individually. 
+     * The batch is cleared once saved.
+     * @param timer
+     * @param batch
+     */
+    private void saveBatch(TimingMetric timer, RetryQueue retries, ChunkTracker chunk, List<Device> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long startTime = nextStartTime();
+        long permit = acquirePermit();
+        try {
+            int[] results = this.storageEngine.saveDevices(batch);
+            releasePermit(permit, results);
+            timer.addTime(System.nanoTime() - startTime);
+            for (int i = 0; i < results.length; i++) {
+                Device device = batch.get(i);
+                if (results[i] == ResultCode.OK) {
+                    recordSaved(chunk, device.getSegments().size());
+                }
+                else {
+                    retries.failed("saveDevices", device.getId(), device::getSegments, results[i], 
+                            () -> retrySave(() -> storageEngine.saveDevice(device), device.getSegments().size()), deviceDone(chunk));
+                }
+            }
+        }
+        catch (Exception e) {
+            releasePermit(permit, e);
+            for (Device device : batch) {
+                retries.failed("saveDevices", device.getId(), device::getSegments, e, 
+                        () -> retrySave(() -> storageEngine.saveDevice(device), device.getSegments().size()), deviceDone(chunk));
+            }
+        }
+        batch.clear();
+    }
+    
+    /**
+     * Save a batch of devices held in segment buffers in a single call to the native storage engine. Devices
+     * which fail are generated again when they are retried, as the buffers are re-used for the next batch.
+     */
+    private void saveBatch(TimingMetric timer, RetryQueue retries, ChunkTracker chunk, NativeStorageEngine nativeEngine, 
+            long[] deviceIds, boolean[] finished, SegmentBuffer[] segments, int count, long numberOfSegments, long avgSegmentsPerDevice) {
+        if (count == 0) {
+            return;
+        }
+        long startTime = nextStartTime();
+        long permit = acquirePermit();
+        try {
+            int[] results = nativeEngine.saveDevices(deviceIds, finished, segments, count);
+            releasePermit(permit, results);
+            timer.addTime(System.nanoTime() - startTime);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] == ResultCode.OK) {
+                    recordSaved(chunk, segments[i].size());
+                }
+                else {
+                    retries.failed("saveDevices", Device.idToString(deviceIds[i]), regenerate(deviceIds[i], numberOfSegments, avgSegmentsPerDevice), results[i], 
+                            resave(deviceIds[i], numberOfSegments, avgSegmentsPerDevice), deviceDone(chunk));
+                }
+            }
+        }
+        catch (Exception e) {
+            releasePermit(permit, e);
+            for (int i = 0; i < count; i++) {
+                retries.failed("saveDevices", Device.idToString(deviceIds[i]), regenerate(deviceIds[i], numberOfSegments, avgSegmentsPerDevice), e, 
+                        resave(deviceIds[i], numberOfSegments, avgSegmentsPerDevice), deviceDone(chunk));
+            }
+        }
+    }
+    
+    private void recordSaved(ChunkTracker chunk, int segmentCount) {
+        this.devicesInserted.increment();
+        this.segmentsCreated.add(segmentCount);
+        chunk.deviceDone(true);
+    }
+    
+    /**
+     * Open the progress file, adopting the seed and base time of the run being resumed if there is one. A seed or
+     * base time which was set explicitly must match the one in the file, otherwise the resumed run would write
+     * different devices to those the user asked for.
+     * @throws IllegalArgumentException if the seed or base time was set and differs from the one in the file
+     */
+    private GenerationProgress openProgress(Path progressFile, long numberOfSegments, long avgSegmentsPerDevice) throws IOException {
+        GenerationProgress progress = new GenerationProgress(progressFile, seed, baseTime, numberOfSegments, avgSegmentsPerDevice);
+        if ((seedSet && progress.getSeed() != seed) || (baseTimeSet && progress.getBaseTime() != baseTime)) {
+            long fileSeed = progress.getSeed();
+            long fileBaseTime = progress.getBaseTime();
+            progress.close();
+            throw new IllegalArgumentException(String.format("The progress file '%s' is for a run with seed %d and base time %d, "
+                    + "so cannot be resumed with seed %s and base time %s", progressFile, fileSeed, fileBaseTime,
+                    seedSet ? Long.toString(seed) : "(unset)", baseTimeSet ? Long.toString(baseTime) : "(unset)"));
+        }
+        this.seed = progress.getSeed();
+        this.baseTime = progress.getBaseTime();
+        return progress;
+    }
+    
+    /**
+     * The number of devices in each chunk
+     * @param chunkSize - the requested size, or 0 to choose a size which gives each thread at least a few chunks
+     * so the threads finish at about the same time
+     */
+    private static int getChunkSize(int chunkSize, long numberOfDevices, int numberOfThreads) {
+        if (chunkSize > 0) {
+            return chunkSize;
+        }
+        return (int)Math.max(1, Math.min(DEFAULT_CHUNK_SIZE, numberOfDevices / ((long)numberOfThreads * MIN_CHUNKS_PER_THREAD)));
+    }
+    
+    /**
+     * Split the ids into chunks, leaving out the chunks completed by a previous run
+     * @return The first id of each chunk
+     */
+    private static long[] getChunks(long numberOfDevices, int chunkSize, GenerationProgress progress) {
+        List<Long> chunks = new ArrayList<>();
+        for (long start = 0; start < numberOfDevices; start += chunkSize) {
+            if (!progress.isDone(start, Math.min(numberOfDevices, start + chunkSize))) {
+                chunks.add(start);
             }
         }
+        long done = progress.countDone(numberOfDevices);
+        if (done > 0) {
+            System.out.printf("Resuming generation, %,d of %,d devices were already generated\n", done, numberOfDevices);
+        }
+        return chunks.stream().mapToLong(Long::longValue).toArray();
+    }
+    
+    /**
+     * Record a completed chunk. A chunk with failed devices is left out of the progress file so it is 
+     * generated again when the run is resumed.
+     */
+    private void completeChunk(GenerationProgress progress, long start, long end, long elapsedNs, long failed) {
+        chunkTimer.addTime(elapsedNs);
+        chunksDone.incrementAndGet();
+        synchronized (chunkTimes) {
+            chunkTimes.add(new long[] {start, end, elapsedNs});
+        }
+        if (failed > 0) {
+            Log.warn(String.format("%,d devices in chunk %d-%d failed, it will be generated again on the next run", failed, start, end));
+            return;
+        }
+        try {
+            progress.complete(start, end);
+        }
+        catch (IOException e) {
+            Log.warn(String.format("Could not record chunk %d-%d in the progress file, it will be generated again on the next run: %s", start, end, e));
+        }
+    }
+    
+    /**
+     * Print the median chunk throughput and the slowest chunks, so stragglers caused by a slow thread or a hot
+     * node can be seen
+     */
+    private void printChunkSummary() {
+        List<long[]> chunks;
+        synchronized (chunkTimes) {
+            chunks = new ArrayList<>(chunkTimes);
+            chunkTimes.clear();
+        }
+        if (chunks.isEmpty()) {
+            return;
+        }
+        // Sort by throughput, slowest first
+        chunks.sort((a, b) -> Double.compare(devicesPerSecond(a), devicesPerSecond(b)));
+        System.out.printf("Completed %,d chunks, median %,.0f devices/sec per chunk. Slowest chunks:\n", 
+                chunks.size(), devicesPerSecond(chunks.get(chunks.size() / 2)));
+        for (long[] chunk : chunks.subList(0, Math.min(SLOWEST_CHUNKS_SHOWN, chunks.size()))) {
+            System.out.printf("\t%d-%d: %,dms, %,.0f devices/sec\n", chunk[0], chunk[1], 
+                    TimeUnit.NANOSECONDS.toMillis(chunk[2]), devicesPerSecond(chunk));
+        }
+    }
+    
+    private static double devicesPerSecond(long[] chunk) {
+        return (chunk[1] - chunk[0]) * 1e9 / Math.max(1, chunk[2]);
+    }
+    
+    private void printSeed() {
+        System.out.printf("Generating devices with seed %d and base time %d\n", seed, baseTime);
+    }
+    
+    /**
+     * Print a summary of the generation run, so the throughput of different loading strategies can be compared.
+     * @param elapsedNs - the duration of the run in nanoseconds
+     */
+    private void printSummary(long elapsedNs) {
+        long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNs));
+        System.out.printf("Inserted %,d devices with %,d segments in %,dms (%,d devices/sec), %,d devices failed\n",
+                devicesInserted.get(), segmentsCreated.get(), elapsedMs, 
+                devicesInserted.get() * 1000 / elapsedMs, deviceInsertsFailed.get());
     }
     
     public void generateDevices(long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice, int numberOfThreads) {
+        generateDevices(numberOfSegments, numberOfDevices, avgSegmentsPerDevice, numberOfThreads, 1);
+    }
+    
+    /**
+     * Generate the devices using a pool of threads. If <code>batchSize</code> is greater than 1, each thread
+     * groups that many devices into a single batch write. The client splits each batch into one command per
+     * node, so larger batches give fewer round trips per device.
+     * @param numberOfSegments
+     * @param numberOfDevices
+     * @param avgSegmentsPerDevice
+     * @param numberOfThreads
+     * @param batchSize - the number of devices to write in each batch, 1 to write each device individually
+     */
+    public void generateDevices(long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice, int numberOfThreads, int batchSize) {
+        generateDevices(numberOfSegments, numberOfDevices, avgSegmentsPerDevice, numberOfThreads, batchSize, ThreadMode.PLATFORM);
+    }
+    
+    /**
+     * Generate the devices on platform or virtual threads. Each thread has one save in flight at a time, so with
+     * virtual threads <code>numberOfThreads</code> is the number of concurrent requests, and can be set far higher
+     * than the number of cores.
+     * @param numberOfSegments
+     * @param numberOfDevices
+     * @param avgSegmentsPerDevice
+     * @param numberOfThreads
+     * @param batchSize - the number of devices to write in each batch, 1 to write each device individually
+     * @param threadMode - whether to use a pool of platform threads or a virtual thread per concurrent request
+     */
+    public void generateDevices(long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice, int numberOfThreads, int batchSize, ThreadMode threadMode) {
+        try {
+            generateDevices(numberOfSegments, numberOfDevices, avgSegmentsPerDevice, numberOfThreads, batchSize, threadMode, 0, null);
+        }
+        catch (IOException e) {
+            // Only the progress file can throw this
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Generate the devices on platform or virtual threads, a chunk at a time. The ids are split into chunks of
+     * <code>chunkSize</code> devices and each thread takes the next chunk from a shared queue when it finishes 
+     * its current one, so a thread which is slowed down, for example by a hot node, does less of the work rather
+     * than holding up the end of the run.
+     * <p/>
+     * If a progress file is given, each completed chunk is recorded in it, and chunks recorded by a previous
+     * run are skipped. The seed and base time of the previous run are used, so the resumed run writes the same 
+     * devices; a seed or base time which was set explicitly must match them. Chunks with failed devices are not recorded, so they are generated again on the next run.
+     * @param numberOfSegments
+     * @param numberOfDevices
+     * @param avgSegmentsPerDevice
+     * @param numberOfThreads
+     * @param batchSize - the number of devices to write in each batch, 1 to write each device individually
+     * @param threadMode - whether to use a pool of platform threads or a virtual thread per concurrent request
+     * @param chunkSize - the number of devices in each chunk, or 0 to choose a size from the number of devices and threads
+     * @param progressFile - the file completed chunks are recorded in, or null to not record progress
+     * @throws IOException if the progress file cannot be read or written
+     */
+    public void generateDevices(long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice, int numberOfThreads, int batchSize, 
+            ThreadMode threadMode, int chunkSize, Path progressFile) throws IOException {
         if (Log.debugEnabled()) {
-            Log.debug(String.format("generateDevices(%d, %d, %d, %d)\n", 
-                    numberOfSegments, numberOfDevices, avgSegmentsPerDevice, numberOfThreads));
-        }
-        TimingMetric timer = new TimingMetric("timer", "");
-        MonitorService monitor = new MonitorService(timer);
-        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
-        long remainingDevices = numberOfDevices;
-        monitor.startMonitoring();
-        for (int i = 0; i < numberOfThreads; i++) {
-            final long thisDevices = remainingDevices / (numberOfThreads-i);
-            final long startDevice = numberOfDevices - remainingDevices;
-            remainingDevices -= thisDevices;
-            executor.submit(() -> {
-                this.generateDevices(timer, numberOfSegments, startDevice, startDevice + thisDevices, avgSegmentsPerDevice);
-            });
-        }
-        executor.shutdown();
+            Log.debug(String.format("generateDevices(%d, %d, %d, %d, %d, %s, %d, %s)\n", 
+                    numberOfSegments, numberOfDevices, avgSegmentsPerDevice, numberOfThreads, batchSize, threadMode, chunkSize, progressFile));
+        }
+        try (GenerationProgress progress = openProgress(progressFile, numberOfSegments, avgSegmentsPerDevice);
+                RetryQueue retries = createRetryQueue(numberOfThreads)) {
+            printSeed();
+            int size = getChunkSize(chunkSize, numberOfDevices, numberOfThreads);
+            long[] chunks = getChunks(numberOfDevices, size, progress);
+            if (chunks.length == 0) {
+                System.out.println("All the devices have already been generated");
+                return;
+            }
+            AtomicInteger nextChunk = new AtomicInteger();
+            MonitorService monitor = createMonitor();
+            ExecutorService executor = threadMode.newExecutor(numberOfThreads);
+            long startTime = System.nanoTime();
+            startSchedule();
+            monitor.startMonitoring();
+            for (int i = 0; i < numberOfThreads; i++) {
+                executor.submit(() -> {
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunks.length) {
+                        ChunkTracker tracker = new ChunkTracker(progress, chunks[chunk], Math.min(numberOfDevices, chunks[chunk] + size));
+                        this.generateDevices(timer, retries, tracker, numberOfSegments, avgSegmentsPerDevice, batchSize);
+                        tracker.allIssued();
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.DAYS);
+                // Wait for the devices still being retried
+                retries.awaitIdle();
+            }
+            catch (InterruptedException ignored) {
+                System.out.println("Ignoring InterruptedException");
+            }
+            monitor.endMonitoring();
+            printSummary(System.nanoTime() - startTime);
+            printChunkSummary();
+            System.out.flush();
+        }
+    }
+    
+    /**
+     * Generate the devices using the asynchronous client. Rather than parking a thread per outstanding request, 
+     * a single thread generates the devices and hands them to the event loops, with up to <code>maxCommandsInFlight</code>
+     * commands outstanding at any one time. This is a total across the cluster, not a limit per node, so it is
+     * typically set to the number of commands each node should handle multiplied by the number of nodes.
+     * <p/>
+     * This requires a <code>NativeStorageEngine</code> on a client which has been created with event loops.
+     * @param eventLoops - the event loops the client was created with
+     * @param numberOfSegments
+     * @param numberOfDevices
+     * @param avgSegmentsPerDevice
+     * @param maxCommandsInFlight - the maximum number of outstanding asynchronous commands
+     */
+    public void generateDevicesAsync(EventLoops eventLoops, long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice, int maxCommandsInFlight) {
         try {
-            executor.awaitTermination(1, TimeUnit.DAYS);
+            generateDevicesAsync(eventLoops, numberOfSegments, numberOfDevices, avgSegmentsPerDevice, maxCommandsInFlight, 0, null);
+        }
+        catch (IOException e) {
+            // Only the progress file can throw this
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Generate the devices using the asynchronous client, recording each completed chunk of devices in a 
+     * progress file so an interrupted run can be resumed. A chunk is complete once the last of its commands has
+     * completed. See <code>generateDevices</code> for how chunks and the progress file work.
+     * @param eventLoops - the event loops the client was created with
+     * @param numberOfSegments
+     * @param numberOfDevices
+     * @param avgSegmentsPerDevice
+     * @param maxCommandsInFlight - the maximum number of outstanding asynchronous commands
+     * @param chunkSize - the number of devices in each chunk, or 0 to choose a size from the number of devices
+     * @param progressFile - the file completed chunks are recorded in, or null to not record progress
+     * @throws IOException if the progress file cannot be read or written
+     */
+    public void generateDevicesAsync(EventLoops eventLoops, long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice, int maxCommandsInFlight,
+            int chunkSize, Path progressFile) throws IOException {
+        if (Log.debugEnabled()) {
+            Log.debug(String.format("generateDevicesAsync(%d, %d, %d, %d, %d, %s)\n", 
+                    numberOfSegments, numberOfDevices, avgSegmentsPerDevice, maxCommandsInFlight, chunkSize, progressFile));
+        }
+        if (!(storageEngine instanceof NativeStorageEngine)) {
+            throw new IllegalStateException("Asynchronous generation requires the NativeStorageEngine, not " + storageEngine);
+        }
+        NativeStorageEngine nativeEngine = (NativeStorageEngine)storageEngine;
+        try (GenerationProgress progress = openProgress(progressFile, numberOfSegments, avgSegmentsPerDevice);
+                RetryQueue retries = createRetryQueue(maxCommandsInFlight)) {
+            printSeed();
+            int size = getChunkSize(chunkSize, numberOfDevices, 1);
+            long[] chunks = getChunks(numberOfDevices, size, progress);
+            if (chunks.length == 0) {
+                System.out.println("All the devices have already been generated");
+                return;
+            }
+            MonitorService monitor = createMonitor();
+            ConcurrencyLimiter inFlight = limiter != null ? limiter : ConcurrencyLimiter.fixed(maxCommandsInFlight);
+            SegmentGenerator generator = createGenerator(numberOfSegments, avgSegmentsPerDevice);
+            SegmentBuffer segments = new SegmentBuffer(SegmentGenerator.MAX_SEGMENTS_PER_DEVICE);
+            long runStartTime = System.nanoTime();
+            startSchedule();
+            monitor.startMonitoring();
+            try {
+                for (long chunkStart : chunks) {
+                    // The last device of a chunk may complete on an event loop, so the chunk is recorded on a retry thread
+                    ChunkTracker chunk = new ChunkTracker(progress, chunkStart, Math.min(numberOfDevices, chunkStart + size), retries::execute);
+                    for (long thisDeviceId = chunk.start; thisDeviceId < chunk.end; thisDeviceId++) {
+                        long deviceId = thisDeviceId;
+                        boolean finished = generator.generate(deviceId, segments);
+                        int segmentCount = segments.size();
+                        // Waiting for a free slot counts towards the latency when there is a schedule
+                        long startTime = nextStartTime();
+                        long permit = inFlight.acquire();
+                        try {
+                            // The operations are packed before this returns, so the buffer can be re-used for the next device
+                            nativeEngine.saveDevice(eventLoops.next(), new RecordListener() {
+                                @Override
+                                public void onSuccess(Key key, Record record) {
+                                    timer.addTime(System.nanoTime() - startTime);
+                                    devicesInserted.increment();
+                                    segmentsCreated.add(segmentCount);
+                                    // Hand over any work before the release, so it is waited for once nothing is in flight
+                                    chunk.deviceDone(true);
+                                    inFlight.release(permit, (Throwable)null);
+                                }
+                                
+                                @Override
+                                public void onFailure(AerospikeException exception) {
+                                    // Recording the failure may log it or write it to the dead-letter file, which must not block the event loop
+                                    retries.execute(() -> retries.failed("saveDevice", Device.idToString(deviceId), regenerate(deviceId, numberOfSegments, avgSegmentsPerDevice), 
+                                            exception, resave(deviceId, numberOfSegments, avgSegmentsPerDevice), deviceDone(chunk)));
+                                    inFlight.release(permit, exception);
+                                }
+                            }, thisDeviceId, finished, segments);
+                        }
+                        catch (Exception e) {
+                            // The command could not be queued, so the listener will never be called
+                            inFlight.release(permit, e);
+                            retries.failed("saveDevice", Device.idToString(thisDeviceId), regenerate(thisDeviceId, numberOfSegments, avgSegmentsPerDevice), e, 
+                                    resave(thisDeviceId, numberOfSegments, avgSegmentsPerDevice), deviceDone(chunk));
+                        }
+                    }
+                    chunk.allIssued();
+                }
+                // Wait for all outstanding commands to complete, and then for the devices still being retried.
+                inFlight.awaitIdle();
+                retries.awaitIdle();
+            }
+            catch (InterruptedException ignored) {
+                System.out.println("Ignoring InterruptedException");
+            }
+            monitor.endMonitoring();
+            printSummary(System.nanoTime() - runStartTime);
+            printChunkSummary();
+            System.out.flush();
+        }
+    }
+    
+    /**
+     * Tracks the outstanding saves of a chunk, including asynchronous commands and devices being retried, so the
+     * chunk can be recorded when the last one completes, on whichever thread that is.
+     */
+    private class ChunkTracker {
+        private final GenerationProgress progress;
+        private final long start;
+        private final long end;
+        private final long startTime = System.nanoTime();
+        // One per device, plus one which is released once every command of the chunk has been issued
+        private final AtomicLong outstanding;
+        private final AtomicLong failed = new AtomicLong();
+        private final Executor completer;
+        
+        ChunkTracker(GenerationProgress progress, long start, long end) {
+            this(progress, start, end, Runnable::run);
+        }
+        
+        /**
+         * @param completer - runs the recording of the chunk in the progress file once it is complete
+         */
+        ChunkTracker(GenerationProgress progress, long start, long end, Executor completer) {
+            this.progress = progress;
+            this.start = start;
+            this.end = end;
+            this.outstanding = new AtomicLong(end - start + 1);
+            this.completer = completer;
+        }
+        
+        void deviceDone(boolean success) {
+            if (!success) {
+                failed.incrementAndGet();
+            }
+            release();
+        }
+        
+        void allIssued() {
+            release();
+        }
+        
+        private void release() {
+            if (outstanding.decrementAndGet() == 0) {
+                long elapsedNs = System.nanoTime() - startTime;
+                completer.execute(() -> completeChunk(progress, start, end, elapsedNs, failed.get()));
+            }
+        }
+    }
+    
+    /**
+     * Check the active segments of the first <code>numberOfDevices</code> devices in the database against the 
+     * segments generated again from the seed and base time of this populator, which must be the ones the 
+     * devices were generated with, along with the same number of segments and average segments per device.
+     * Each segment read must have been generated with the same expiry, flags and partner, and every generated
+     * segment which is still active must be read.
+     * @param numberOfSegments
+     * @param numberOfDevices
+     * @param avgSegmentsPerDevice
+     * @return The number of devices which did not match
+     */
+    public long verifyDevices(long numberOfSegments, long numberOfDevices, long avgSegmentsPerDevice) {
+        System.out.printf("Verifying devices generated with seed %d and base time %d\n", seed, baseTime);
+        SegmentGenerator generator = createGenerator(numberOfSegments, avgSegmentsPerDevice);
+        SegmentBuffer expected = new SegmentBuffer(SegmentGenerator.MAX_SEGMENTS_PER_DEVICE);
+        long mismatches = 0;
+        for (long thisDeviceId = 0; thisDeviceId < numberOfDevices; thisDeviceId++) {
+            generator.generate(thisDeviceId, expected);
+            String deviceId = Device.idToString(thisDeviceId);
+            List<SegmentInstance> actual = storageEngine.getActiveSegments(deviceId);
+            // Segments which expire while the device is read may or may not be returned
+            String problem = compare(expected, actual, System.currentTimeMillis());
+            if (problem != null && ++mismatches <= MAX_MISMATCHES_SHOWN) {
+                System.out.printf("Device %d (%s): %s\n", thisDeviceId, deviceId, problem);
+            }
         }
-        catch (InterruptedException ignored) {
-            System.out.println("Ignoring InterruptedException");
+        System.out.printf("Verified %,d devices, %,d did not match\n", numberOfDevices, mismatches);
+        return mismatches;
+    }
+    
+    private static String compare(SegmentBuffer expected, List<SegmentInstance> actual, long now) {
+        int activeFound = 0;
+        for (SegmentInstance segment : actual) {
+            int index = expected.indexOf(segment.getSegmentId());
+            if (index < 0) {
+                return "segment " + segment.getSegmentId() + " was not generated";
+            }
+            long expiry = segment.getExpiry() == null ? 0 : segment.getExpiry().getTime();
+            if (expiry != expected.getExpiry(index) || segment.getFlags() != expected.getFlags(index) 
+                    || !Objects.equals(segment.getPartnerId(), expected.getPartnerId(index))) {
+                return String.format("segment %d has expiry %d, flags %d, partner %s but was generated with expiry %d, flags %d, partner %s",
+                        segment.getSegmentId(), expiry, segment.getFlags(), segment.getPartnerId(), 
+                        expected.getExpiry(index), expected.getFlags(index), expected.getPartnerId(index));
+            }
+            if (expiry > now) {
+                activeFound++;
+            }
+        }
+        int active = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            if (expected.getExpiry(i) > now) {
+                active++;
+            }
         }
-        monitor.endMonitoring();
-        System.out.flush();
+        return activeFound == active ? null : String.format("%d active segments were generated but %d were read", active, activeFound);
     }
 }
@@ -0,0 +1,570 @@
+package com.aerospike.usecases.rtb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.BatchRecord;
+import com.aerospike.client.BatchWrite;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Log;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.BatchWritePolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.query.PartitionFilter;
+import com.aerospike.usecases.common.MetricsRegistry;
+import com.aerospike.usecases.common.MetricsSink;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.RateMetric;
+import com.aerospike.usecases.common.MonitorService;
+
+/**
+ * Export a set of devices to snapshot files for offline analysis or to seed another cluster, and restore
+ * them again.
+ * <p/>
+ * The partitions are split into a number of ranges, each exported to its own file, and the files are written in
+ * parallel. Within a file the partitions are scanned one at a time, and each partition is written as a self
+ * contained block (a separate gzip member when compressed). After each block is on disk the offset of the end of
+ * the block and the next partition are recorded in a checkpoint file next to the snapshot file. An interrupted
+ * export truncates each file back to its checkpoint and carries on from the next partition, so an export can be
+ * resumed without scanning any finished partition again.
+ * <p/>
+ * Records are stored with their digest, user key, remaining time to live and bins, using a small tagged binary
+ * encoding of the bin values which keeps ordered maps ordered. This makes the snapshot independent of the storage
+ * layout, so the native, mapper and packed sets can all be exported. A restore reads the files in parallel and
+ * replaces each record with a batch write, into the same set in the namespace of the cluster it is connected to.
+ */
+public class DeviceSnapshot {
+    public static final String FILE_SUFFIX = ".snap";
+    public static final String COMPRESSED_SUFFIX = ".snap.gz";
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int MAGIC = 0x52544253; // "RTBS"
+    private static final int VERSION = 1;
+    private static final int RECORD = 1;
+
+    // Bin value tags
+    private static final int NULL = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int STRING = 3;
+    private static final int BYTES = 4;
+    private static final int LIST = 5;
+    private static final int MAP = 6;
+    private static final int ORDERED_MAP = 7;
+    private static final int BOOLEAN = 8;
+
+    private final IAerospikeClient client;
+    private final String namespace;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final RateMetric records = metrics.rate("records", "Records exported or restored");
+    private final RateMetric bytes = metrics.rate("bytes", "Bytes of snapshot written");
+    private final CounterMetric failures = metrics.counter("failed", "Records which could not be restored");
+    private final ErrorTracker errors = new ErrorTracker(metrics.resultCodes("errors", "Failed restores of records or whole batches by result code"));
+    private final AtomicLong partitionsDone = new AtomicLong();
+    private final List<MetricsSink> sinks = new ArrayList<>();
+
+    public DeviceSnapshot(IAerospikeClient client, String namespace) {
+        this.client = client;
+        this.namespace = namespace;
+        metrics.gauge("partitions", "Partitions exported", partitionsDone::get);
+    }
+
+    /**
+     * Add a sink which the export and restore metrics are exported to every interval, in addition to being printed.
+     * @param sink
+     */
+    public void addMetricsSink(MetricsSink sink) {
+        this.sinks.add(sink);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The position reached by the export of one file: all partitions before <code>nextPartition</code> are
+     * in the first <code>offset</code> bytes of the file.
+     */
+    private static class Checkpoint {
+        private final int nextPartition;
+        private final long offset;
+
+        Checkpoint(int nextPartition, long offset) {
+            this.nextPartition = nextPartition;
+            this.offset = offset;
+        }
+    }
+
+    private static Path getCheckpointFile(Path file) {
+        return file.resolveSibling(file.getFileName() + CHECKPOINT_SUFFIX);
+    }
+
+    private static Checkpoint readCheckpoint(Path file) throws IOException {
+        Path checkpointFile = getCheckpointFile(file);
+        if (!Files.exists(checkpointFile)) {
+            return null;
+        }
+        String[] parts = new String(Files.readAllBytes(checkpointFile), StandardCharsets.UTF_8).trim().split(" ");
+        if (parts.length != 2) {
+            throw new IOException("Invalid checkpoint file " + checkpointFile);
+        }
+        return new Checkpoint(Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+    }
+
+    private static void writeCheckpoint(Path file, Checkpoint checkpoint) throws IOException {
+        Path checkpointFile = getCheckpointFile(file);
+        Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(temp, (checkpoint.nextPartition + " " + checkpoint.offset).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Export a set to snapshot files in a directory, resuming any earlier export of the same set into it
+     * @param setName - the set to export
+     * @param directory - the directory to write the files to, which is created if needed
+     * @param fileCount - the number of partition ranges, each written to its own file
+     * @param parallelism - the number of files written at once
+     * @param compress - whether to gzip the files
+     * @throws IOException
+     */
+    public void export(String setName, Path directory, int fileCount, int parallelism, boolean compress) throws IOException {
+        if (fileCount <= 0 || fileCount > Node.PARTITIONS || parallelism <= 0) {
+            throw new IllegalArgumentException("The number of files must be between 1 and " + Node.PARTITIONS + " and the parallelism must be positive");
+        }
+        Files.createDirectories(directory);
+        ScanPolicy scanPolicy = new ScanPolicy(client.getScanPolicyDefault());
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            int first = i * Node.PARTITIONS / fileCount;
+            int end = (i + 1) * Node.PARTITIONS / fileCount;
+            Path file = directory.resolve(String.format("%s-%04d-%04d%s", setName, first, end - 1, compress ? COMPRESSED_SUFFIX : FILE_SUFFIX));
+            tasks.add(() -> exportFile(setName, file, first, end, compress, scanPolicy));
+        }
+        System.out.printf("Exporting %s.%s to %,d files in %s, %d at a time\n", namespace, setName, fileCount, directory, parallelism);
+        long elapsedMs = run(tasks, parallelism);
+        System.out.printf("Exported %,d records (%,d bytes) from %,d partitions in %,dms (%,d records/sec)\n",
+                records.get(), bytes.get(), partitionsDone.get(), elapsedMs, records.get() * 1000 / elapsedMs);
+    }
+
+    private void exportFile(String setName, Path file, int firstPartition, int endPartition, boolean compress, ScanPolicy scanPolicy) throws IOException {
+        Checkpoint checkpoint = Files.exists(file) ? readCheckpoint(file) : null;
+        try (FileOutputStream fileOut = new FileOutputStream(file.toFile(), true)) {
+            FileChannel channel = fileOut.getChannel();
+            if (checkpoint == null) {
+                channel.truncate(0);
+                writeBlock(channel, compress, out -> {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(setName);
+                });
+                checkpoint = new Checkpoint(firstPartition, channel.size());
+                writeCheckpoint(file, checkpoint);
+            }
+            else {
+                // Discard anything written after the last finished partition
+                channel.truncate(checkpoint.offset);
+                partitionsDone.addAndGet(checkpoint.nextPartition - firstPartition);
+            }
+            for (int partition = checkpoint.nextPartition; partition < endPartition; partition++) {
+                long start = channel.size();
+                int thisPartition = partition;
+                writeBlock(channel, compress, out -> scanPartition(setName, thisPartition, scanPolicy, out));
+                channel.force(false);
+                writeCheckpoint(file, new Checkpoint(partition + 1, channel.size()));
+                bytes.add(channel.size() - start);
+                partitionsDone.incrementAndGet();
+            }
+        }
+    }
+
+    private void scanPartition(String setName, int partition, ScanPolicy scanPolicy, DataOutputStream out) throws IOException {
+        try {
+            // A partition lives on one node, so the callback is never called concurrently
+            client.scanPartitions(scanPolicy, PartitionFilter.id(partition), namespace, setName, (Key key, Record record) -> {
+                try {
+                    writeRecord(out, key, record);
+                    records.increment();
+                }
+                catch (IOException e) {
+                    throw new AerospikeException(ResultCode.CLIENT_ERROR, "Failed to write the snapshot of " + key, e);
+                }
+            });
+        }
+        catch (AerospikeException ae) {
+            if (ae.getCause() instanceof IOException) {
+                throw (IOException)ae.getCause();
+            }
+            throw ae;
+        }
+    }
+
+    private interface BlockWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Append a block to the end of the file. When compressing, each block is a complete gzip member, so the
+     * file can be truncated after any block and still be read.
+     */
+    private static void writeBlock(FileChannel channel, boolean compress, BlockWriter writer) throws IOException {
+        channel.position(channel.size());
+        // Finishing a block does not close the file, as the stream is never closed
+        OutputStream file = new OutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte)b}, 0, 1);
+            }
+        };
+        GZIPOutputStream gzip = compress ? new GZIPOutputStream(file, 65536) : null;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(compress ? gzip : file, 65536));
+        writer.write(out);
+        out.flush();
+        if (gzip != null) {
+            gzip.finish();
+        }
+    }
+
+    static void writeRecord(DataOutputStream out, Key key, Record record) throws IOException {
+        out.writeByte(RECORD);
+        out.write(key.digest);
+        writeValue(out, key.userKey == null ? null : key.userKey.getObject());
+        out.writeInt(record.getTimeToLive());
+        out.writeShort(record.bins.size());
+        for (Map.Entry<String, Object> bin : record.bins.entrySet()) {
+            out.writeUTF(bin.getKey());
+            writeValue(out, bin.getValue());
+        }
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(LONG);
+            out.writeLong(((Number)value).longValue());
+        }
+        else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number)value).doubleValue());
+        }
+        else if (value instanceof String) {
+            byte[] data = ((String)value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        else if (value instanceof byte[]) {
+            byte[] data = (byte[])value;
+            out.writeByte(BYTES);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        }
+        else if (value instanceof List) {
+            List<?> list = (List<?>)value;
+            out.writeByte(LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        }
+        else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>)value;
+            // The client returns key ordered maps as sorted maps
+            out.writeByte(map instanceof SortedMap ? ORDERED_MAP : MAP);
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Cannot export a bin value of type " + value.getClass().getName());
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case LONG:
+            return in.readLong();
+        case DOUBLE:
+            return in.readDouble();
+        case STRING: {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        case BYTES: {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return data;
+        }
+        case BOOLEAN:
+            return in.readBoolean();
+        case LIST: {
+            int size = in.readInt();
+            List<Object> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(readValue(in));
+            }
+            return list;
+        }
+        case MAP:
+        case ORDERED_MAP: {
+            int size = in.readInt();
+            Map<Object, Object> map = tag == ORDERED_MAP ? new TreeMap<>() : new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(in);
+                map.put(key, readValue(in));
+            }
+            return map;
+        }
+        default:
+            throw new IOException("Invalid value tag " + tag + " in snapshot");
+        }
+    }
+
+    /**
+     * Restore every snapshot file in a directory. Records which already exist are replaced.
+     * @param directory - the directory holding the files written by <code>export</code>
+     * @param parallelism - the number of files read at once
+     * @param batchSize - the number of records written in each batch
+     * @throws IOException
+     */
+    public void restore(Path directory, int parallelism, int batchSize) throws IOException {
+        if (parallelism <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("The parallelism and batch size must be positive");
+        }
+        List<Task> tasks = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*{" + FILE_SUFFIX + "," + COMPRESSED_SUFFIX + "}")) {
+            for (Path file : files) {
+                tasks.add(() -> restoreFile(file, batchSize));
+            }
+        }
+        if (tasks.isEmpty()) {
+            throw new IllegalArgumentException("No snapshot files found in " + directory);
+        }
+        System.out.printf("Restoring %,d files from %s into namespace %s, %d at a time\n", tasks.size(), directory, namespace, parallelism);
+        long elapsedMs = run(tasks, parallelism);
+        System.out.printf("Restored %,d records in %,dms (%,d records/sec), %,d records failed\n",
+                records.get(), elapsedMs, records.get() * 1000 / elapsedMs, failures.get());
+    }
+
+    /**
+     * A stream which ends at the checkpointed end of a file, so a partition which was being written when an
+     * export was interrupted is ignored
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read();
+            if (result >= 0) {
+                remaining--;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int result = super.read(b, off, (int)Math.min(len, remaining));
+            if (result > 0) {
+                remaining -= result;
+            }
+            return result;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(remaining, super.available());
+        }
+    }
+
+    private void restoreFile(Path file, int batchSize) throws IOException {
+        Checkpoint checkpoint = readCheckpoint(file);
+        long limit = checkpoint == null ? Files.size(file) : checkpoint.offset;
+        InputStream raw = new LimitedInputStream(new FileInputStream(file.toFile()), limit);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                file.toString().endsWith(COMPRESSED_SUFFIX) ? new GZIPInputStream(raw, 65536) : raw, 65536))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a snapshot file");
+            }
+            String setName = in.readUTF();
+            BatchPolicy batchPolicy = new BatchPolicy(client.getBatchPolicyDefault());
+            BatchWritePolicy baseWritePolicy = new BatchWritePolicy(client.getBatchWritePolicyDefault());
+            baseWritePolicy.sendKey = true;
+            baseWritePolicy.recordExistsAction = RecordExistsAction.REPLACE;
+            // A record which never expired must not pick up the namespace default time to live
+            BatchWritePolicy neverExpireWritePolicy = new BatchWritePolicy(baseWritePolicy);
+            neverExpireWritePolicy.expiration = -1;
+            List<BatchRecord> batch = new ArrayList<>(batchSize);
+            int tag;
+            while ((tag = in.read()) >= 0) {
+                if (tag != RECORD) {
+                    throw new IOException("Invalid record tag " + tag + " in " + file);
+                }
+                byte[] digest = new byte[20];
+                in.readFully(digest);
+                Object userKey = readValue(in);
+                int ttl = in.readInt();
+                Operation[] operations = new Operation[in.readUnsignedShort()];
+                for (int i = 0; i < operations.length; i++) {
+                    String name = in.readUTF();
+                    Object value = readValue(in);
+                    operations[i] = Operation.put(new Bin(name, value instanceof SortedMap ? Value.get((SortedMap<?, ?>)value) : Value.get(value)));
+                }
+                Key key = userKey == null ? new Key(namespace, digest, setName, null) : new Key(namespace, setName, Value.get(userKey));
+                BatchWritePolicy writePolicy = neverExpireWritePolicy;
+                if (ttl != -1) {
+                    // A record due to expire within the second keeps a one second time to live rather than the namespace default
+                    writePolicy = new BatchWritePolicy(baseWritePolicy);
+                    writePolicy.expiration = Math.max(1, ttl);
+                }
+                batch.add(new BatchWrite(writePolicy, key, operations));
+                if (batch.size() >= batchSize) {
+                    writeBatch(batchPolicy, batch);
+                }
+            }
+            writeBatch(batchPolicy, batch);
+        }
+        if (checkpoint == null) {
+            Log.warn(file + " has no checkpoint, so the whole file was restored");
+        }
+    }
+
+    private void writeBatch(BatchPolicy batchPolicy, List<BatchRecord> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            client.operate(batchPolicy, batch);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Records which were not processed retain their error result code, so just fall through
+        }
+        catch (AerospikeException ae) {
+            failures.add(batch.size());
+            errors.record("restore", String.format("a batch of %d records from %s", batch.size(), batch.get(0).key), ae);
+            batch.clear();
+            return;
+        }
+        for (BatchRecord record : batch) {
+            if (record.resultCode == ResultCode.OK) {
+                records.increment();
+            }
+            else {
+                failures.increment();
+                errors.record("restore", record.key, record.resultCode);
+            }
+        }
+        batch.clear();
+    }
+
+    private interface Task {
+        void call() throws IOException;
+    }
+
+    /**
+     * Run the tasks on a pool of threads, reporting the metrics while they run, and return the elapsed time
+     */
+    private long run(List<Task> tasks, int parallelism) throws IOException {
+        MonitorService monitor = new MonitorService(metrics);
+        sinks.forEach(monitor::addSink);
+        monitor.startMonitoring();
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Task task : tasks) {
+                futures.add(executor.submit(() -> {
+                    task.call();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+            monitor.endMonitoring();
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+}
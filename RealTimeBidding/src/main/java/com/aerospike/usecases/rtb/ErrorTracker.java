@@ -0,0 +1,129 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Log;
+import com.aerospike.client.ResultCode;
+import com.aerospike.usecases.common.MonitorMetric.ResultCodeMetric;
+
+/**
+ * Counts the failures of storage engine operations by result code, and logs a sample of them.
+ * <p/>
+ * During a cluster incident every thread fails at once, so logging every failure floods the console and the
+ * threads end up queued on the console rather than on the cluster. Instead the first failure with each result
+ * code is logged as a warning, then at most one per code per interval, along with how many failures with that
+ * code were not logged in between. The counts are kept in a <code>ResultCodeMetric</code> which the monitor
+ * reports every second.
+ */
+public class ErrorTracker {
+    public static final long DEFAULT_LOG_INTERVAL_MS = 5_000;
+
+    private static class CodeState {
+        private final AtomicLong nextLogTime = new AtomicLong(Long.MIN_VALUE);
+        private final LongAdder suppressed = new LongAdder();
+    }
+
+    private final Map<Integer, CodeState> states = new ConcurrentHashMap<>();
+    private final long logIntervalNs;
+    private volatile ResultCodeMetric metric;
+
+    /**
+     * Create a tracker which logs at most one failure per result code every <code>DEFAULT_LOG_INTERVAL_MS</code>
+     * @param metric - the metric to count the failures in, or null to only log them
+     */
+    public ErrorTracker(ResultCodeMetric metric) {
+        this(metric, DEFAULT_LOG_INTERVAL_MS);
+    }
+
+    /**
+     * Create a tracker
+     * @param metric - the metric to count the failures in, or null to only log them
+     * @param logIntervalMs - the shortest time between two logged failures with the same result code
+     */
+    public ErrorTracker(ResultCodeMetric metric, long logIntervalMs) {
+        this.metric = metric;
+        this.logIntervalNs = TimeUnit.MILLISECONDS.toNanos(logIntervalMs);
+    }
+
+    /**
+     * Count the failures in this metric from now on, for example once a warm-up phase has finished
+     * @param metric
+     */
+    public void setMetric(ResultCodeMetric metric) {
+        this.metric = metric;
+    }
+
+    public ResultCodeMetric getMetric() {
+        return metric;
+    }
+
+    /**
+     * Remove the wrappers added by futures and executors to find the exception an operation failed with
+     */
+    public static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    /**
+     * The <code>ResultCode</code> an operation failed with, which is <code>CLIENT_ERROR</code> for anything
+     * other than an <code>AerospikeException</code>
+     */
+    public static int getResultCode(Throwable error) {
+        error = unwrap(error);
+        return error instanceof AerospikeException ? ((AerospikeException)error).getResultCode() : ResultCode.CLIENT_ERROR;
+    }
+
+    /**
+     * Record a failed operation
+     * @param operation - the storage engine operation, for example <code>saveDevice</code>
+     * @param key - the device or devices the operation was on
+     * @param error - the exception the operation failed with
+     * @return The <code>ResultCode</code> of the failure
+     */
+    public int record(String operation, Object key, Throwable error) {
+        error = unwrap(error);
+        int resultCode = getResultCode(error);
+        record(operation, key, resultCode, error);
+        return resultCode;
+    }
+
+    /**
+     * Record a failed operation from the result code of one record of a batch
+     * @param operation - the storage engine operation, for example <code>saveDevices</code>
+     * @param key - the device the result code is for
+     * @param resultCode
+     */
+    public void record(String operation, Object key, int resultCode) {
+        record(operation, key, resultCode, null);
+    }
+
+    private void record(String operation, Object key, int resultCode, Throwable error) {
+        ResultCodeMetric metric = this.metric;
+        if (metric != null) {
+            metric.increment(resultCode);
+        }
+        CodeState state = states.computeIfAbsent(resultCode, code -> new CodeState());
+        long now = System.nanoTime();
+        long nextLogTime = state.nextLogTime.get();
+        if ((nextLogTime != Long.MIN_VALUE && now - nextLogTime < 0) || !state.nextLogTime.compareAndSet(nextLogTime, now + logIntervalNs)) {
+            state.suppressed.increment();
+            return;
+        }
+        long suppressed = state.suppressed.sumThenReset();
+        // The message of an AerospikeException already holds the result code, other exceptions need their type
+        String message = error == null ? ResultCode.getResultString(resultCode)
+                : error instanceof AerospikeException ? error.getMessage() : error.toString();
+        Log.warn(String.format("%s of %s failed with %s: %s%s", operation, key, ResultCodeMetric.getName(resultCode), message,
+                suppressed == 0 ? "" : String.format(" (%,d other failures with this code were not logged)", suppressed)));
+    }
+}
@@ -0,0 +1,230 @@
+package com.aerospike.usecases.rtb;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Log;
+import com.aerospike.client.Record;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapReturnType;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.exp.Exp;
+import com.aerospike.client.exp.MapExp;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.client.query.PartitionFilter;
+import com.aerospike.usecases.common.MetricsRegistry;
+import com.aerospike.usecases.common.MetricsSink;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.RateMetric;
+import com.aerospike.usecases.common.MonitorService;
+
+/**
+ * Remove the expired segments of every device, including devices which are never written to again and so
+ * never have their expired segments removed by <code>insertSegmentAndRemoveExpired</code>.
+ * <p/>
+ * The set is swept one partition at a time, with a number of partitions swept in parallel. Each partition is
+ * scanned with an expression which only returns the keys of devices which have at least one expired
+ * segment, so devices with nothing to remove are never sent to the client. The expired segments of each
+ * returned device are then removed with a single operate, which is filtered by the same expression so a
+ * device which has changed in the meantime is left alone.
+ * <p/>
+ * To limit the impact on live traffic the server throttles each partition scan, so the total rate is spread
+ * evenly over the partitions being swept in parallel. As each partition completes it is appended to an optional
+ * progress file, and partitions already in the file are skipped, so an interrupted sweep can be resumed.
+ * <p/>
+ * This works on the map layout used by the native and object mapper engines.
+ */
+public class ExpiredSegmentSweeper {
+    private static final String SEGMENT_NAME = "segments";
+
+    private final IAerospikeClient client;
+    private final String namespace;
+    private final String setName;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final RateMetric devicesSwept = metrics.rate("devices", "Devices which had expired segments removed");
+    private final RateMetric segmentsRemoved = metrics.rate("removed", "Expired segments removed");
+    private final CounterMetric deviceFailures = metrics.counter("failed", "Devices whose expired segments could not be removed");
+    private final ErrorTracker errors = new ErrorTracker(metrics.resultCodes("errors", "Devices which could not be swept by result code"));
+    private final AtomicLong partitionsDone = new AtomicLong();
+    private final List<MetricsSink> sinks = new ArrayList<>();
+
+    public ExpiredSegmentSweeper(IAerospikeClient client, String namespace, String setName) {
+        this.client = client;
+        this.namespace = namespace;
+        this.setName = setName;
+        metrics.gauge("partitions", "Partitions completed", partitionsDone::get);
+    }
+
+    /**
+     * Add a sink which the sweep metrics are exported to every interval, in addition to being printed.
+     * @param sink
+     */
+    public void addMetricsSink(MetricsSink sink) {
+        this.sinks.add(sink);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * An expression which is true if the device has at least one segment which expired before <code>now</code>
+     */
+    private static Exp hasExpiredSegments(long now) {
+        return Exp.gt(
+                MapExp.getByValueRange(MapReturnType.COUNT, Exp.val(Arrays.asList(0)), Exp.val(Arrays.asList(now)), Exp.mapBin(SEGMENT_NAME)),
+                Exp.val(0));
+    }
+
+    private static BitSet readProgress(Path progressFile) throws IOException {
+        BitSet done = new BitSet(Node.PARTITIONS);
+        if (progressFile != null && Files.exists(progressFile)) {
+            for (String line : Files.readAllLines(progressFile, StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    done.set(Integer.parseInt(line.trim()));
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Sweep every partition
+     * @param parallelism - the number of partitions to sweep at once
+     * @param recordsPerSecond - the approximate total number of records scanned per second, 0 for no limit
+     * @param progressFile - the file completed partitions are recorded in, or null to not record progress
+     * @throws IOException if the progress file cannot be read or written
+     */
+    public void sweep(int parallelism, int recordsPerSecond, Path progressFile) throws IOException {
+        sweep(0, Node.PARTITIONS, parallelism, recordsPerSecond, progressFile);
+    }
+
+    /**
+     * Sweep a range of partitions. Different processes can sweep different ranges to share the work.
+     * @param firstPartition - the first partition to sweep, from 0 to 4095
+     * @param partitionCount - the number of partitions to sweep
+     * @param parallelism - the number of partitions to sweep at once
+     * @param recordsPerSecond - the approximate total number of records scanned per second, 0 for no limit
+     * @param progressFile - the file completed partitions are recorded in, or null to not record progress
+     * @throws IOException if the progress file cannot be read or written
+     */
+    public void sweep(int firstPartition, int partitionCount, int parallelism, int recordsPerSecond, Path progressFile) throws IOException {
+        if (firstPartition < 0 || partitionCount <= 0 || firstPartition + partitionCount > Node.PARTITIONS) {
+            throw new IllegalArgumentException(String.format("Invalid partition range %d to %d, partitions must be between 0 and %d",
+                    firstPartition, firstPartition + partitionCount - 1, Node.PARTITIONS - 1));
+        }
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("The number of partitions to sweep in parallel must be positive");
+        }
+        BitSet done = readProgress(progressFile);
+        List<Integer> partitions = new ArrayList<>();
+        for (int partition = firstPartition; partition < firstPartition + partitionCount; partition++) {
+            if (!done.get(partition)) {
+                partitions.add(partition);
+            }
+        }
+        System.out.printf("Sweeping %,d partitions of %s.%s (%,d already done), %d at a time\n",
+                partitions.size(), namespace, setName, partitionCount - partitions.size(), parallelism);
+
+        ScanPolicy scanPolicy = new ScanPolicy(client.getScanPolicyDefault());
+        scanPolicy.includeBinData = false;
+        // Each scan is of one partition, so is on one node and throttled individually
+        scanPolicy.recordsPerSecond = recordsPerSecond <= 0 ? 0 : Math.max(1, recordsPerSecond / Math.min(parallelism, Math.max(1, partitions.size())));
+        WritePolicy writePolicy = new WritePolicy(client.getWritePolicyDefault());
+
+        MonitorService monitor = new MonitorService(metrics);
+        sinks.forEach(monitor::addSink);
+        monitor.startMonitoring();
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (BufferedWriter progress = progressFile == null ? null : Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            AtomicLong failedPartitions = new AtomicLong();
+            for (int partition : partitions) {
+                executor.execute(() -> {
+                    try {
+                        long failures = sweepPartition(partition, scanPolicy, writePolicy);
+                        if (failures > 0) {
+                            // Recording the partition would skip the failed devices on every later run
+                            failedPartitions.incrementAndGet();
+                            Log.warn(String.format("%,d devices in partition %d could not be swept, it will be swept on the next run", failures, partition));
+                            return;
+                        }
+                        partitionsDone.incrementAndGet();
+                        if (progress != null) {
+                            synchronized (progress) {
+                                progress.write(Integer.toString(partition));
+                                progress.newLine();
+                                progress.flush();
+                            }
+                        }
+                    }
+                    catch (AerospikeException | IOException e) {
+                        failedPartitions.incrementAndGet();
+                        Log.warn(String.format("Failed to sweep partition %d, it will be swept on the next run: %s", partition, e));
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            monitor.endMonitoring();
+            System.out.printf("Swept %,d partitions in %,dms: removed %,d expired segments from %,d devices, %,d devices and %,d partitions failed\n",
+                    partitionsDone.get(), elapsedMs, segmentsRemoved.get(), devicesSwept.get(), deviceFailures.get(), failedPartitions.get());
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            monitor.endMonitoring();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Remove the expired segments of every device in the partition
+     * @return The number of devices whose expired segments could not be removed
+     */
+    private long sweepPartition(int partition, ScanPolicy basePolicy, WritePolicy baseWritePolicy) {
+        AtomicLong failures = new AtomicLong();
+        long now = new Date().getTime();
+        ScanPolicy scanPolicy = new ScanPolicy(basePolicy);
+        scanPolicy.filterExp = Exp.build(hasExpiredSegments(now));
+        WritePolicy writePolicy = new WritePolicy(baseWritePolicy);
+        writePolicy.filterExp = scanPolicy.filterExp;
+        client.scanPartitions(scanPolicy, PartitionFilter.id(partition), namespace, setName, (Key key, Record record) -> {
+            try {
+                Record result = client.operate(writePolicy, key,
+                        MapOperation.removeByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(0)), Value.get(Arrays.asList(now)), MapReturnType.COUNT));
+                // A null result means the device no longer had expired segments by the time it was written
+                if (result != null) {
+                    devicesSwept.increment();
+                    segmentsRemoved.add(result.getLong(SEGMENT_NAME));
+                }
+            }
+            catch (AerospikeException ae) {
+                deviceFailures.increment();
+                failures.incrementAndGet();
+                // The partition is not recorded as done, so the device is swept again on the next run
+                errors.record("sweep", key, ae);
+            }
+        });
+        return failures.get();
+    }
+}
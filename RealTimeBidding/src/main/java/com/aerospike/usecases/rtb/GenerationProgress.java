@@ -0,0 +1,140 @@
+package com.aerospike.usecases.rtb;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The chunks of device ids a generate run has completed, recorded in a progress file so an interrupted run can
+ * be resumed without generating the completed chunks again.
+ * <p/>
+ * The first line of the file holds the seed, base time, number of segments and average segments per device of
+ * the run, and each following line holds the <code>start end</code> ids of a completed chunk, appended and
+ * flushed as each chunk completes. A resumed run uses the seed and base time in the file, so the devices it
+ * generates are the same as those the interrupted run would have generated. <code>DataPopulator</code> refuses
+ * to resume a run if a different seed or base time was given explicitly. A chunk is skipped if it is
+ * entirely covered by completed chunks, so the chunk size can change between runs.
+ */
+class GenerationProgress implements Closeable {
+    private final long seed;
+    private final long baseTime;
+    // Completed ranges, merged, keyed by their first id and holding their end (exclusive)
+    private final TreeMap<Long, Long> done = new TreeMap<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Open the progress file, creating it if it does not exist
+     * @param progressFile - the file, or null to not record progress
+     * @param seed - the seed of the run, used if the file is new
+     * @param baseTime - the base time of the run, used if the file is new
+     * @param numberOfSegments
+     * @param avgSegmentsPerDevice
+     * @throws IOException
+     * @throws IllegalArgumentException if the file was written by a run with different parameters
+     */
+    GenerationProgress(Path progressFile, long seed, long baseTime, long numberOfSegments, long avgSegmentsPerDevice) throws IOException {
+        if (progressFile == null) {
+            this.seed = seed;
+            this.baseTime = baseTime;
+            this.writer = null;
+            return;
+        }
+        List<String> lines = Files.exists(progressFile) ? Files.readAllLines(progressFile, StandardCharsets.UTF_8) : null;
+        if (lines == null || lines.isEmpty()) {
+            this.seed = seed;
+            this.baseTime = baseTime;
+            this.writer = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            writer.write(String.format("%d %d %d %d", seed, baseTime, numberOfSegments, avgSegmentsPerDevice));
+            writer.newLine();
+            writer.flush();
+            return;
+        }
+        String[] header = lines.get(0).trim().split("\\s+");
+        if (header.length != 4) {
+            throw new IllegalArgumentException(String.format("'%s' is not a generate progress file, the first line should be 'seed baseTime numSegments avgSegmentsPerDevice'", progressFile));
+        }
+        if (Long.parseLong(header[2]) != numberOfSegments || Long.parseLong(header[3]) != avgSegmentsPerDevice) {
+            throw new IllegalArgumentException(String.format("The progress file '%s' is for a run with %s segments and %s segments per device on average, "
+                    + "so cannot be resumed with %d and %d", progressFile, header[2], header[3], numberOfSegments, avgSegmentsPerDevice));
+        }
+        this.seed = Long.parseLong(header[0]);
+        this.baseTime = Long.parseLong(header[1]);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] range = line.trim().split("\\s+");
+            // A partially written last line is ignored, that chunk is generated again
+            if (range.length == 2) {
+                add(Long.parseLong(range[0]), Long.parseLong(range[1]));
+            }
+        }
+        this.writer = Files.newBufferedWriter(progressFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        // Start a fresh line in case the last one was partially written
+        writer.newLine();
+        writer.flush();
+    }
+
+    private void add(long start, long end) {
+        Map.Entry<Long, Long> before = done.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> after;
+        while ((after = done.ceilingEntry(start)) != null && after.getKey() <= end) {
+            end = Math.max(end, after.getValue());
+            done.remove(after.getKey());
+        }
+        done.put(start, end);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public long getBaseTime() {
+        return baseTime;
+    }
+
+    /**
+     * Whether every device id in <code>[start, end)</code> was completed by a previous run
+     */
+    public boolean isDone(long start, long end) {
+        Map.Entry<Long, Long> range = done.floorEntry(start);
+        return range != null && range.getValue() >= end;
+    }
+
+    /**
+     * The number of device ids below <code>limit</code> completed by previous runs
+     */
+    public long countDone(long limit) {
+        long count = 0;
+        for (Map.Entry<Long, Long> range : done.headMap(limit).entrySet()) {
+            count += Math.min(range.getValue(), limit) - range.getKey();
+        }
+        return count;
+    }
+
+    /**
+     * Record a completed chunk
+     */
+    public synchronized void complete(long start, long end) throws IOException {
+        if (writer != null) {
+            writer.write(start + " " + end);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.Random;
+
+/**
+ * Selects which device a workload operation is run against. Device ids are in the range
+ * <code>[0, numberOfDevices)</code>, matching the ids created by the <code>generate</code> command.
+ * <p/>
+ * Note that there is no need to scatter popular devices across the id space: the device id is hashed into
+ * the record digest, so adjacent ids are spread evenly across the partitions and nodes of the cluster anyway.
+ */
+public interface KeyDistribution {
+    /**
+     * Return the next device id to use.
+     * @param random - the random number source, typically <code>ThreadLocalRandom.current()</code>
+     * @return
+     */
+    long next(Random random);
+
+    /**
+     * Create a distribution from its name.
+     * @param name - one of 'uniform', 'zipf' or 'hotspot'
+     * @param numberOfDevices - the number of devices in the id space
+     * @param zipfExponent - the skew of the Zipfian distribution. Ignored by other distributions
+     * @param hotSetFraction - the fraction of the devices which are hot. Only used by the hotspot distribution
+     * @param hotOpsFraction - the fraction of the operations which go to the hot devices. Only used by the hotspot distribution
+     * @return
+     */
+    static KeyDistribution create(String name, long numberOfDevices, double zipfExponent, double hotSetFraction, double hotOpsFraction) {
+        switch (name.toLowerCase()) {
+        case "uniform":
+            return new Uniform(numberOfDevices);
+        case "zipf":
+        case "zipfian":
+            return new Zipfian(numberOfDevices, zipfExponent);
+        case "hotspot":
+            return new Hotspot(numberOfDevices, hotSetFraction, hotOpsFraction);
+        default:
+            throw new IllegalArgumentException("Unknown distribution '" + name + "'. Valid distributions are 'uniform', 'zipf' and 'hotspot'");
+        }
+    }
+
+    /**
+     * Every device is equally likely to be selected
+     */
+    public static class Uniform implements KeyDistribution {
+        private final long numberOfDevices;
+
+        public Uniform(long numberOfDevices) {
+            this.numberOfDevices = numberOfDevices;
+        }
+
+        @Override
+        public long next(Random random) {
+            return (long)(random.nextDouble() * numberOfDevices);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("uniform(%,d)", numberOfDevices);
+        }
+    }
+
+    /**
+     * Device <code>k</code> is selected with probability proportional to <code>1/(k+1)^exponent</code>, so device 0
+     * is the most popular. This uses the rejection-inversion method of H&ouml;rmann and Derflinger, which needs
+     * no tables and has a constant set up cost, so it is usable over billions of devices.
+     */
+    public static class Zipfian implements KeyDistribution {
+        private final long numberOfDevices;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralNumberOfDevices;
+        private final double s;
+
+        public Zipfian(long numberOfDevices, double exponent) {
+            if (exponent <= 0) {
+                throw new IllegalArgumentException("The Zipfian exponent must be positive, not " + exponent);
+            }
+            this.numberOfDevices = numberOfDevices;
+            this.exponent = exponent;
+            this.hIntegralX1 = hIntegral(1.5) - 1.0;
+            this.hIntegralNumberOfDevices = hIntegral(numberOfDevices + 0.5);
+            this.s = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2));
+        }
+
+        @Override
+        public long next(Random random) {
+            while (true) {
+                double u = hIntegralNumberOfDevices + random.nextDouble() * (hIntegralX1 - hIntegralNumberOfDevices);
+                double x = hIntegralInverse(u);
+                long k = (long)(x + 0.5);
+                if (k < 1) {
+                    k = 1;
+                }
+                else if (k > numberOfDevices) {
+                    k = numberOfDevices;
+                }
+                if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                    return k - 1;
+                }
+            }
+        }
+
+        private double hIntegral(double x) {
+            double logX = Math.log(x);
+            return helper2((1.0 - exponent) * logX) * logX;
+        }
+
+        private double h(double x) {
+            return Math.exp(-exponent * Math.log(x));
+        }
+
+        private double hIntegralInverse(double x) {
+            double t = x * (1.0 - exponent);
+            if (t < -1.0) {
+                t = -1.0;
+            }
+            return Math.exp(helper1(t) * x);
+        }
+
+        /**
+         * <code>log(1+x)/x</code>, accurate for x close to 0
+         */
+        private static double helper1(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.log1p(x) / x;
+            }
+            return 1.0 - x * (0.5 - x * (1.0 / 3.0 - x * 0.25));
+        }
+
+        /**
+         * <code>(exp(x)-1)/x</code>, accurate for x close to 0
+         */
+        private static double helper2(double x) {
+            if (Math.abs(x) > 1e-8) {
+                return Math.expm1(x) / x;
+            }
+            return 1.0 + x * 0.5 * (1.0 + x * (1.0 / 3.0) * (1.0 + x * 0.25));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("zipf(%,d, exponent=%.2f)", numberOfDevices, exponent);
+        }
+    }
+
+    /**
+     * A fraction of the operations go to a small, hot, set of devices. Both the hot and cold sets
+     * are selected uniformly.
+     */
+    public static class Hotspot implements KeyDistribution {
+        private final long numberOfDevices;
+        private final long hotDevices;
+        private final double hotOpsFraction;
+
+        public Hotspot(long numberOfDevices, double hotSetFraction, double hotOpsFraction) {
+            if (hotSetFraction < 0 || hotSetFraction > 1 || hotOpsFraction < 0 || hotOpsFraction > 1) {
+                throw new IllegalArgumentException("Hotspot fractions must be between 0 and 1");
+            }
+            this.numberOfDevices = numberOfDevices;
+            this.hotDevices = Math.max(1, Math.min(numberOfDevices, (long)(numberOfDevices * hotSetFraction)));
+            this.hotOpsFraction = hotOpsFraction;
+        }
+
+        @Override
+        public long next(Random random) {
+            if (hotDevices >= numberOfDevices || random.nextDouble() < hotOpsFraction) {
+                return (long)(random.nextDouble() * hotDevices);
+            }
+            return hotDevices + (long)(random.nextDouble() * (numberOfDevices - hotDevices));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hotspot(%,d, hotDevices=%,d, hotOps=%.0f%%)", numberOfDevices, hotDevices, hotOpsFraction * 100);
+        }
+    }
+}
@@ -3,16 +3,28 @@ package com.aerospike.usecases.rtb;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.BatchRead;
+import com.aerospike.client.BatchRecord;
+import com.aerospike.client.BatchWrite;
 import com.aerospike.client.Bin;
 import com.aerospike.client.IAerospikeClient;
 import com.aerospike.client.Key;
 import com.aerospike.client.Operation;
 import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
 import com.aerospike.client.Value;
+import com.aerospike.client.async.EventLoop;
 import com.aerospike.client.cdt.MapOperation;
 import com.aerospike.client.cdt.MapOrder;
 import com.aerospike.client.cdt.MapPolicy;
@@ -20,103 +32,541 @@ import com.aerospike.client.cdt.MapReturnType;
 import com.aerospike.client.cdt.MapWriteFlags;
 import com.aerospike.client.exp.Exp;
 import com.aerospike.client.exp.ExpOperation;
+import com.aerospike.client.exp.ExpReadFlags;
 import com.aerospike.client.exp.MapExp;
+import com.aerospike.client.listener.BatchOperateListListener;
+import com.aerospike.client.listener.RecordListener;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.BatchWritePolicy;
 import com.aerospike.client.policy.WritePolicy;
 import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.DeviceIdCodec;
 import com.aerospike.usecases.rtb.model.SegmentInstance;
 
-public class NativeStorageEngine implements StorageEngine {
+public class NativeStorageEngine implements StorageEngine, AsyncStorageEngine {
+    /**
+     * How the device id is stored in the record key. The digest of a record depends on the type and value
+     * of the key, so devices written in one mode can only be read in the same mode.
+     */
+    public enum KeyMode {
+        /** The UUID-style string returned from <code>Device.idToString</code>, as used by the object mapper */
+        STRING,
+        /** The 16 byte binary form of the id from <code>DeviceIdCodec</code>, which is smaller to store and send */
+        BINARY
+    }
+    
     private final String NAMESPACE;
     private static final String SET_NAME = "devices";
     
     private static final String SEGMENT_NAME = "segments";
     private static final String ID_NAME = "id";
+    private static final String EARLIEST_NAME = "earliest";
+
+    private static final MapPolicy SEGMENT_MAP_POLICY = new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.DEFAULT);
+    private static final Comparator<SegmentInstance> BY_SEGMENT_ID = Comparator.comparingLong(SegmentInstance::getSegmentId);
+    private static final ThreadLocal<SegmentMapEncoder> ENCODERS = ThreadLocal.withInitial(SegmentMapEncoder::new);
 
     private final WritePolicy writePolicy;
+    private final BatchPolicy batchPolicy;
+    private final BatchWritePolicy batchWritePolicy;
+    private final BatchPolicy batchReadPolicy;
     private final IAerospikeClient client;
+    private final KeyMode keyMode;
+    private final PartnerDictionary partnerDictionary;
     
     public NativeStorageEngine(IAerospikeClient client, String namespace) {
+        this(client, namespace, KeyMode.STRING, null);
+    }
+    
+    /**
+     * Create the engine
+     * @param client
+     * @param namespace
+     * @param keyMode - how the device id is stored in the record key
+     * @param partnerDictionary - if not null, partner ids are stored as their integer from this dictionary. Segments 
+     * which store the partner id as a string can still be read either way.
+     */
+    public NativeStorageEngine(IAerospikeClient client, String namespace, KeyMode keyMode, PartnerDictionary partnerDictionary) {
         this.NAMESPACE = namespace;
+        this.keyMode = keyMode;
+        this.partnerDictionary = partnerDictionary;
         WritePolicy writePolicy = new WritePolicy(client.getWritePolicyDefault());
         writePolicy.sendKey = true;
         this.writePolicy = writePolicy;
+        this.batchPolicy = client.getBatchParentPolicyWriteDefault();
+        BatchWritePolicy batchWritePolicy = new BatchWritePolicy(client.getBatchWritePolicyDefault());
+        batchWritePolicy.sendKey = true;
+        this.batchWritePolicy = batchWritePolicy;
+        this.batchReadPolicy = client.getBatchPolicyDefault();
         this.client = client;
     }
     
+    public KeyMode getKeyMode() {
+        return keyMode;
+    }
+    
     private Key getDeviceKey(Device device) {
         return getDeviceKey(device.getId());
     }
-    private Key getDeviceKey(String deviceId) {
+    
+    /**
+     * Return the record key of the device. Computing the key computes its digest, so callers which access the
+     * same device repeatedly can keep the key and pass it to the methods which take a <code>Key</code>.
+     * @param deviceId - the string form of the device id
+     * @return
+     */
+    public Key getDeviceKey(String deviceId) {
+        if (keyMode == KeyMode.BINARY) {
+            return getDeviceKey(DeviceIdCodec.parse(deviceId));
+        }
         return new Key(NAMESPACE, SET_NAME, deviceId);
     }
     
+    /**
+     * Return the record key of the device from its numeric id. In binary mode this avoids formatting the id as a string.
+     * @param deviceId - the numeric device id
+     * @return
+     */
+    public Key getDeviceKey(long deviceId) {
+        if (keyMode == KeyMode.BINARY) {
+            return new Key(NAMESPACE, SET_NAME, DeviceIdCodec.toBytes(deviceId));
+        }
+        return new Key(NAMESPACE, SET_NAME, DeviceIdCodec.toString(deviceId));
+    }
+    
+    /**
+     * Return the record key of a device from a previously computed digest, for example one stored by another 
+     * system. No hashing is done. The key has no user key, so operations using it do not store one.
+     * @param digest - the 20 byte digest of the record
+     * @return
+     */
+    public Key getDeviceKeyFromDigest(byte[] digest) {
+        return new Key(NAMESPACE, digest, SET_NAME, null);
+    }
+    
+    /**
+     * Build the operations needed to save the passed device. These are shared between the synchronous,
+     * batch and asynchronous save paths.
+     * <p/>
+     * All the segments are written with a single <code>putItems</code> of a key-ordered map rather than one
+     * <code>put</code> per segment, so the server applies one CDT operation per record. The segment tuples are
+     * encoded by a per-thread <code>SegmentMapEncoder</code>, which is safe as the operation is fully packed 
+     * before this method returns.
+     * @param device
+     * @return
+     */
+    public Operation[] getSaveOperations(Device device) {
+        return new Operation[] {
+                Operation.put(new Bin("isFinished", device.isFinished())),
+                MapOperation.putItems(SEGMENT_MAP_POLICY, SEGMENT_NAME, ENCODERS.get().encode(device.getSegments(), partnerDictionary))
+        };
+    }
+    
+    /**
+     * Build the operations needed to save a device held in a <code>SegmentBuffer</code>, for example one filled 
+     * by a <code>SegmentGenerator</code>. No object is created per segment. The buffer can be re-used as soon as 
+     * this returns.
+     * @param finished - the <code>isFinished</code> flag of the device
+     * @param segments
+     * @return
+     */
+    public Operation[] getSaveOperations(boolean finished, SegmentBuffer segments) {
+        return new Operation[] {
+                Operation.put(new Bin("isFinished", finished)),
+                MapOperation.putItems(SEGMENT_MAP_POLICY, SEGMENT_NAME, ENCODERS.get().encode(segments, partnerDictionary))
+        };
+    }
+    
     @Override
     public void saveDevice(Device device) {
-        int numSegments = device.getSegments().size();
-        Operation[] operations = new Operation[numSegments+1];
-        MapPolicy mapPolicy = new MapPolicy(MapOrder.KEY_ORDERED, MapWriteFlags.DEFAULT);
-        operations[0] = Operation.put(new Bin("isFinished", device.isFinished()));
-        for (int i = 0; i < numSegments; i++) {
-            SegmentInstance thisSegment =  device.getSegments().get(i);
-            List<Object> data = new ArrayList<>();
-            data.add(thisSegment.getExpiry() == null ? 0 : thisSegment.getExpiry().getTime());
-            data.add(thisSegment.getFlags());
-            data.add(thisSegment.getPartnerId());
-            operations[i+1] = MapOperation.put(mapPolicy, 
-                    SEGMENT_NAME, 
-                    Value.get(thisSegment.getSegmentId()), 
-                    Value.get(data));
-        }
         client.operate(this.writePolicy,
                 getDeviceKey(device),
-                operations);
+                getSaveOperations(device));
+    }
+
+    /**
+     * Save a device held in a <code>SegmentBuffer</code>, keyed by its numeric id
+     * @param deviceId - the numeric device id
+     * @param finished - the <code>isFinished</code> flag of the device
+     * @param segments
+     */
+    public void saveDevice(long deviceId, boolean finished, SegmentBuffer segments) {
+        client.operate(this.writePolicy,
+                getDeviceKey(deviceId),
+                getSaveOperations(finished, segments));
+    }
+
+    /**
+     * Save several devices held in <code>SegmentBuffer</code>s in a single batch
+     * @param deviceIds - the numeric device ids
+     * @param finished - the <code>isFinished</code> flag of each device
+     * @param segments - the segments of each device
+     * @param count - the number of devices to save from the start of the arrays
+     * @return An array containing the Aerospike <code>ResultCode</code> of each device
+     */
+    public int[] saveDevices(long[] deviceIds, boolean[] finished, SegmentBuffer[] segments, int count) {
+        List<BatchRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(new BatchWrite(this.batchWritePolicy, getDeviceKey(deviceIds[i]), getSaveOperations(finished[i], segments[i])));
+        }
+        try {
+            client.operate(this.batchPolicy, records);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Records which were not processed retain their error result code, so just fall through
+        }
+        return toResultCodes(records);
+    }
+
+    @Override
+    public int[] saveDevices(List<Device> devices) {
+        List<BatchRecord> records = getSaveRecords(devices);
+        try {
+            client.operate(this.batchPolicy, records);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Records which were not processed retain their error result code, so just fall through
+        }
+        return toResultCodes(records);
+    }
+
+    private List<BatchRecord> getSaveRecords(List<Device> devices) {
+        List<BatchRecord> records = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            records.add(new BatchWrite(this.batchWritePolicy, getDeviceKey(device), getSaveOperations(device)));
+        }
+        return records;
+    }
+
+    private static int[] toResultCodes(List<BatchRecord> records) {
+        int[] results = new int[records.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = records.get(i).resultCode;
+        }
+        return results;
+    }
+
+    /**
+     * Save the device using the asynchronous client. The call returns as soon as the command has been
+     * queued on the event loop, the outcome is passed to the listener.
+     * @param eventLoop - the event loop to run the command on. If null, the client will select one.
+     * @param listener - the listener to notify on completion
+     * @param device - the device to save
+     */
+    public void saveDevice(EventLoop eventLoop, RecordListener listener, Device device) {
+        client.operate(eventLoop, 
+                listener, 
+                this.writePolicy,
+                getDeviceKey(device),
+                getSaveOperations(device));
+    }
+
+    /**
+     * Save a device held in a <code>SegmentBuffer</code> using the asynchronous client. The buffer can be re-used 
+     * as soon as this returns.
+     * @param eventLoop - the event loop to run the command on. If null, the client will select one.
+     * @param listener - the listener to notify on completion
+     * @param deviceId - the numeric device id
+     * @param finished - the <code>isFinished</code> flag of the device
+     * @param segments
+     */
+    public void saveDevice(EventLoop eventLoop, RecordListener listener, long deviceId, boolean finished, SegmentBuffer segments) {
+        client.operate(eventLoop, 
+                listener, 
+                this.writePolicy,
+                getDeviceKey(deviceId),
+                getSaveOperations(finished, segments));
     }
 
     @Override
     public void insertSegmentAndRemoveExpired(String deviceId, SegmentInstance segment) {
-            List<Object> data = new ArrayList<>();
-            data.add(segment.getExpiry() == null ? 0 : segment.getExpiry().getTime());
-            data.add(segment.getFlags());
-            data.add(segment.getPartnerId());
-            long now = new Date().getTime();
-            
-            client.operate(writePolicy, getDeviceKey(deviceId),
-                    MapOperation.removeByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(0)), Value.get(Arrays.asList(now)), MapReturnType.NONE),
-                    MapOperation.put(MapPolicy.Default, SEGMENT_NAME, Value.get(segment.getSegmentId()), Value.get(data)));
+        insertSegmentAndRemoveExpired(getDeviceKey(deviceId), segment);
+    }
+    
+    /**
+     * Insert a segment into the device with the passed precomputed key and remove any expired segments
+     * @param deviceKey - the key returned by one of the <code>getDeviceKey</code> methods
+     * @param segment
+     */
+    public void insertSegmentAndRemoveExpired(Key deviceKey, SegmentInstance segment) {
+        client.operate(writePolicy, deviceKey, getInsertSegmentOperations(segment));
+    }
+
+    private Operation[] getInsertSegmentOperations(SegmentInstance segment) {
+        long now = new Date().getTime();
+        return new Operation[] {
+                MapOperation.removeByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(0)), Value.get(Arrays.asList(now)), MapReturnType.NONE),
+                MapOperation.put(MapPolicy.Default, SEGMENT_NAME, Value.get(segment.getSegmentId()), Value.get(new SegmentMapEncoder.SegmentTuple(segment, partnerDictionary)))
+        };
+    }
+
+    @Override
+    public long insertSegments(String deviceId, List<SegmentInstance> segments, boolean removeExpired) {
+        return insertSegments(getDeviceKey(deviceId), segments, removeExpired);
+    }
+    
+    /**
+     * Insert several segments into the device with the passed precomputed key in a single operate. All the 
+     * segments are written with one <code>putItems</code>, and the expired segments are removed at most once. The 
+     * operate also reads the lowest ranked segment, which is the one with the earliest expiry as the segment 
+     * tuples are ordered by expiry first.
+     * @param deviceKey - the key returned by one of the <code>getDeviceKey</code> methods
+     * @param segments
+     * @param removeExpired - true to also remove the expired segments
+     * @return The earliest expiry of the segments held by the device after the write, or <code>Long.MAX_VALUE</code> if it holds none
+     */
+    public long insertSegments(Key deviceKey, List<SegmentInstance> segments, boolean removeExpired) {
+        return toEarliestExpiry(client.operate(writePolicy, deviceKey, getInsertSegmentsOperations(segments, removeExpired)));
+    }
+
+    private Operation[] getInsertSegmentsOperations(List<SegmentInstance> segments, boolean removeExpired) {
+        long now = new Date().getTime();
+        List<Operation> operations = new ArrayList<>(3);
+        if (removeExpired) {
+            operations.add(MapOperation.removeByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(0)), Value.get(Arrays.asList(now)), MapReturnType.NONE));
+        }
+        operations.add(MapOperation.putItems(SEGMENT_MAP_POLICY, SEGMENT_NAME, ENCODERS.get().encode(segments, partnerDictionary)));
+        // Read into a separate result bin so it is not mixed in with the results of the map operations
+        operations.add(ExpOperation.read(EARLIEST_NAME, 
+                Exp.build(MapExp.getByRank(MapReturnType.VALUE, Exp.Type.LIST, Exp.val(0), Exp.mapBin(SEGMENT_NAME))), 
+                ExpReadFlags.EVAL_NO_FAIL));
+        return operations.toArray(new Operation[0]);
+    }
+
+    private static long toEarliestExpiry(Record record) {
+        List<?> earliest = record == null ? null : record.getList(EARLIEST_NAME);
+        if (earliest == null || earliest.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return ((Number)earliest.get(0)).longValue();
+    }
+
+    @Override
+    public int[] insertSegments(List<Device> devices) {
+        List<BatchRecord> records = getInsertSegmentsRecords(devices);
+        try {
+            client.operate(this.batchPolicy, records);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Records which were not processed retain their error result code, so just fall through
+        }
+        return toResultCodes(records);
+    }
+
+    private List<BatchRecord> getInsertSegmentsRecords(List<Device> devices) {
+        long now = new Date().getTime();
+        Operation removeExpired = MapOperation.removeByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(0)), Value.get(Arrays.asList(now)), MapReturnType.NONE);
+        List<BatchRecord> records = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            records.add(new BatchWrite(this.batchWritePolicy, getDeviceKey(device), new Operation[] {
+                    removeExpired,
+                    MapOperation.putItems(SEGMENT_MAP_POLICY, SEGMENT_NAME, ENCODERS.get().encode(device.getSegments(), partnerDictionary))
+            }));
+        }
+        return records;
     }
 
     /**
      * Convert a <code>SimpleEntry</code> into a <code>SegmentInstance</code>, unpacking the appropriate
-     * key and list values into the appropriate parts of the structure
+     * key and list values into the appropriate parts of the structure. Partner ids stored as integers are
+     * translated through the partner dictionary.
      * @param entry
      * @return
      */
     public SegmentInstance toSegmentInstance(SimpleEntry<Long, Object> entry) {
         SegmentInstance result = new SegmentInstance();
         result.setSegmentId(entry.getKey());
-        List<Object> objects = (List<Object>) entry.getValue();
+        List<?> objects = (List<?>) entry.getValue();
         result.setExpiry(objects.get(0) == null ? null : new Date((long)objects.get(0)));
         result.setFlags((long)objects.get(1));
-        result.setPartnerId((String)objects.get(2));
+        result.setPartnerId(toPartnerId(entry.getKey(), objects.get(2)));
         return result;
     }
     
+    private String toPartnerId(long segmentId, Object partner) {
+        if (partner instanceof Number) {
+            if (partnerDictionary == null) {
+                throw new IllegalStateException("Segment " + segmentId + " has a partner encoded with the partner dictionary, but no dictionary is in use");
+            }
+            return partnerDictionary.getPartnerId(((Number)partner).intValue());
+        }
+        return (String)partner;
+    }
+    
     @Override
     public List<SegmentInstance> getActiveSegments(String deviceId) {
+        return getActiveSegments(getDeviceKey(deviceId));
+    }
+    
+    /**
+     * Get a list of all non-expired segment data associated with the device with the passed precomputed key
+     * @param deviceKey - the key returned by one of the <code>getDeviceKey</code> methods
+     * @return
+     */
+    public List<SegmentInstance> getActiveSegments(Key deviceKey) {
         long now = new Date().getTime();
-        Record record = client.operate(
-                writePolicy, 
-                getDeviceKey(deviceId), 
-                MapOperation.getByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(now)), Value.INFINITY, MapReturnType.KEY_VALUE));
-        
-        // This is returned as an ordered list of SimpleEntry
-        List<SimpleEntry<Long, Object>> segments = (List<SimpleEntry<Long, Object>>) record.getList(SEGMENT_NAME);
+        Record record = client.operate(writePolicy, deviceKey, getActiveSegmentsOperation(now));
+        return toSegments(record);
+    }
+    
+    private Operation getActiveSegmentsOperation(long now) {
+        return MapOperation.getByValueRange(SEGMENT_NAME, Value.get(Arrays.asList(now)), Value.INFINITY, MapReturnType.KEY_VALUE);
+    }
+    
+    /**
+     * Return the result of a <code>KEY_VALUE</code> read of the segments map, which is an ordered list of
+     * <code>SimpleEntry</code>, or null if the record or bin is missing
+     */
+    @SuppressWarnings("unchecked")
+    private static List<SimpleEntry<Long, Object>> getSegmentEntries(Record record) {
+        return record == null ? null : (List<SimpleEntry<Long, Object>>) record.getList(SEGMENT_NAME);
+    }
+
+    /**
+     * Convert the result of <code>getActiveSegmentsOperation</code> into segments. A missing record or bin has no segments.
+     */
+    private List<SegmentInstance> toSegments(Record record) {
+        List<SimpleEntry<Long, Object>> segments = getSegmentEntries(record);
+        if (segments == null) {
+            return new ArrayList<>();
+        }
         return segments.stream().map(this::toSegmentInstance).collect(Collectors.toList());
     }
     
+    @Override
+    public List<SegmentInstance> getActiveSegments(List<String> deviceIds) {
+        List<Key> keys = new ArrayList<>(deviceIds.size());
+        for (String deviceId : deviceIds) {
+            keys.add(getDeviceKey(deviceId));
+        }
+        return getActiveSegmentsForKeys(keys);
+    }
+    
+    /**
+     * Get the merged non-expired segments of the devices with the passed precomputed keys, in a single batch.
+     * Devices which do not exist are ignored, any other failure throws.
+     * @param deviceKeys - keys returned by the <code>getDeviceKey</code> methods
+     * @return The merged segments, in ascending segment id order
+     */
+    public List<SegmentInstance> getActiveSegmentsForKeys(List<Key> deviceKeys) {
+        List<BatchRecord> records = getActiveSegmentsRecords(deviceKeys);
+        try {
+            client.operate(this.batchReadPolicy, records);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Each record carries its own result code, which is checked below
+        }
+        return mergeSegments(records);
+    }
+
+    private List<BatchRecord> getActiveSegmentsRecords(List<Key> deviceKeys) {
+        long now = new Date().getTime();
+        Operation[] operations = new Operation[] { getActiveSegmentsOperation(now) };
+        List<BatchRecord> records = new ArrayList<>(deviceKeys.size());
+        for (Key key : deviceKeys) {
+            records.add(new BatchRead(key, operations));
+        }
+        return records;
+    }
+
+    private List<SegmentInstance> mergeSegments(List<BatchRecord> records) {
+        List<SegmentInstance> segments = new ArrayList<>();
+        for (BatchRecord record : records) {
+            if (record.resultCode == ResultCode.OK) {
+                segments.addAll(toSegments(record.record));
+            }
+            else if (record.resultCode != ResultCode.KEY_NOT_FOUND_ERROR) {
+                throw new AerospikeException(record.resultCode, "Failed to read the segments of " + record.key);
+            }
+        }
+        return SegmentMerger.merge(segments);
+    }
+    
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId, SegmentFilter filter) {
+        return getActiveSegments(getDeviceKey(deviceId), filter);
+    }
+    
+    /**
+     * Get the non-expired segments of the device with the passed precomputed key which match the filter.
+     * <p/>
+     * A segment id range is applied by the server: the range is selected from the key ordered map first and
+     * the active segments are then selected from the result, so only segments in the range are returned. The
+     * partner and flags are held inside the segment tuple, which map expressions cannot look into, so these 
+     * are checked in the client before any <code>SegmentInstance</code> is created.
+     * @param deviceKey - the key returned by one of the <code>getDeviceKey</code> methods
+     * @param filter
+     * @return
+     */
+    public List<SegmentInstance> getActiveSegments(Key deviceKey, SegmentFilter filter) {
+        return toSegments(client.operate(writePolicy, deviceKey, getActiveSegmentsOperation(filter)), filter);
+    }
+
+    private Operation getActiveSegmentsOperation(SegmentFilter filter) {
+        long now = new Date().getTime();
+        if (!filter.hasSegmentIdRange()) {
+            return getActiveSegmentsOperation(now);
+        }
+        Exp idRange = MapExp.getByKeyRange(MapReturnType.ORDERED_MAP,
+                filter.getMinSegmentId() == Long.MIN_VALUE ? Exp.nil() : Exp.val(filter.getMinSegmentId()),
+                filter.getMaxSegmentId() == Long.MAX_VALUE ? Exp.inf() : Exp.val(filter.getMaxSegmentId()),
+                Exp.mapBin(SEGMENT_NAME));
+        return ExpOperation.read(SEGMENT_NAME,
+                Exp.build(MapExp.getByValueRange(MapReturnType.ORDERED_MAP, Exp.val(Arrays.asList(now)), Exp.inf(), idRange)),
+                ExpReadFlags.DEFAULT);
+    }
+
+    /**
+     * Convert the result of <code>getActiveSegmentsOperation(filter)</code> into the segments which match the filter
+     */
+    private List<SegmentInstance> toSegments(Record record, SegmentFilter filter) {
+        List<SegmentInstance> results = new ArrayList<>();
+        if (!filter.hasSegmentIdRange()) {
+            List<SimpleEntry<Long, Object>> segments = getSegmentEntries(record);
+            if (segments != null) {
+                for (SimpleEntry<Long, Object> entry : segments) {
+                    addIfMatches(results, entry.getKey(), (List<?>) entry.getValue(), filter);
+                }
+            }
+            return results;
+        }
+        Map<?, ?> segments = record == null ? null : record.getMap(SEGMENT_NAME);
+        if (segments != null) {
+            for (Map.Entry<?, ?> entry : segments.entrySet()) {
+                addIfMatches(results, ((Number)entry.getKey()).longValue(), (List<?>) entry.getValue(), filter);
+            }
+            // The map is only returned in key order if the client preserves the map order, so sort to be sure
+            results.sort(BY_SEGMENT_ID);
+        }
+        return results;
+    }
+    
+    /**
+     * Add the segment to the results if it matches the filter. The flags are checked before the partner is 
+     * resolved, as that may need the partner dictionary, and no <code>SegmentInstance</code> is created for 
+     * segments which do not match.
+     */
+    private void addIfMatches(List<SegmentInstance> results, long segmentId, List<?> tuple, SegmentFilter filter) {
+        long flags = (long)tuple.get(1);
+        if ((flags & filter.getRequiredFlags()) != filter.getRequiredFlags()) {
+            return;
+        }
+        String partnerId = toPartnerId(segmentId, tuple.get(2));
+        if (filter.matches(segmentId, flags, partnerId)) {
+            results.add(new SegmentInstance(segmentId, tuple.get(0) == null ? null : new Date((long)tuple.get(0)), flags, partnerId));
+        }
+    }
+    
     @Override
     public String toString() {
-        return "NativeStorageEngine";
+        StringBuilder sb = new StringBuilder("NativeStorageEngine");
+        if (keyMode != KeyMode.STRING) {
+            sb.append(" (").append(keyMode.name().toLowerCase()).append(" keys)");
+        }
+        if (partnerDictionary != null) {
+            sb.append(" with a partner dictionary");
+        }
+        return sb.toString();
     }
 
     /**
@@ -137,10 +587,22 @@ public class NativeStorageEngine implements StorageEngine {
 
     @Override
     public Record getCountOfActiveAndExpiredSegments(String deviceId) {
+        return getCountOfActiveAndExpiredSegments(getDeviceKey(deviceId));
+    }
+    
+    /**
+     * Return counts of the active and expired segments of the device with the passed precomputed key, in the bins
+     * "active" and "expired" respectively
+     * @param deviceKey - the key returned by one of the <code>getDeviceKey</code> methods
+     * @return
+     */
+    public Record getCountOfActiveAndExpiredSegments(Key deviceKey) {
+        return client.operate(writePolicy, deviceKey, getCountOperations());
+    }
+
+    private Operation[] getCountOperations() {
         long now = new Date().getTime();
-        Record record = client.operate(
-                writePolicy, 
-                getDeviceKey(deviceId),
+        return new Operation[] {
                 ExpOperation.read("expired", 
                         Exp.build(MapExp.getByValueRange(MapReturnType.COUNT, Exp.nil(), Exp.val(Arrays.asList(now)), Exp.mapBin(SEGMENT_NAME))), 
                         MapWriteFlags.DEFAULT
@@ -149,8 +611,174 @@ public class NativeStorageEngine implements StorageEngine {
                         Exp.build(MapExp.getByValueRange(MapReturnType.COUNT, Exp.val(Arrays.asList(now)), Exp.inf(), Exp.mapBin(SEGMENT_NAME))), 
                         MapWriteFlags.DEFAULT
                 )
-            );
-        return record;
+        };
+    }
+
+    /**
+     * Whether the segments in the record hold a partner integer which is not in the cached copy of the partner
+     * dictionary, so converting them would read the dictionary from the database
+     */
+    private boolean hasUncachedPartner(Record record) {
+        Object segments = record == null || partnerDictionary == null ? null : record.getValue(SEGMENT_NAME);
+        // Depending on the operation, the segments are either a list of SimpleEntry or a map
+        Collection<?> values = segments instanceof Map ? ((Map<?, ?>)segments).values()
+                : segments instanceof List ? (List<?>)segments : null;
+        if (values == null) {
+            return false;
+        }
+        for (Object value : values) {
+            Object tuple = value instanceof Map.Entry ? ((Map.Entry<?, ?>)value).getValue() : value;
+            if (tuple instanceof List && ((List<?>)tuple).size() > 2) {
+                Object partner = ((List<?>)tuple).get(2);
+                if (partner instanceof Number && !partnerDictionary.isCached(((Number)partner).intValue())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hasUncachedPartner(List<BatchRecord> records) {
+        for (BatchRecord record : records) {
+            if (record.resultCode == ResultCode.OK && hasUncachedPartner(record.record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Complete the future with the converted result of an asynchronous command. This is called on the event loop,
+     * so if the result refers to partners which are not cached the conversion, which reloads the dictionary, is
+     * run on the thread of the dictionary instead.
+     */
+    private <R, T> void complete(CompletableFuture<T> future, Function<R, T> converter, R result, boolean uncachedPartners) {
+        if (uncachedPartners) {
+            partnerDictionary.supplyAsync(() -> converter.apply(result)).whenComplete((value, e) -> {
+                if (e == null) {
+                    future.complete(value);
+                }
+                else {
+                    future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                }
+            });
+            return;
+        }
+        try {
+            future.complete(converter.apply(result));
+        }
+        catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Run the operations on the asynchronous client, completing the future with the converted record. The client
+     * must have been created with event loops. The operations are built before this is called, so the conversion
+     * is the only work done on the event loop, unless it needs a partner which is not in the cached partner
+     * dictionary, in which case it is done on the thread of the dictionary.
+     */
+    private <T> CompletableFuture<T> operateAsync(Key deviceKey, Operation[] operations, Function<Record, T> converter) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            client.operate(null, new RecordListener() {
+                @Override
+                public void onSuccess(Key key, Record record) {
+                    complete(future, converter, record, hasUncachedPartner(record));
+                }
+
+                @Override
+                public void onFailure(AerospikeException ae) {
+                    future.completeExceptionally(ae);
+                }
+            }, writePolicy, deviceKey, operations);
+        }
+        catch (AerospikeException ae) {
+            // For example, too many commands already in flight
+            future.completeExceptionally(ae);
+        }
+        return future;
+    }
+
+    /**
+     * Run the batch on the asynchronous client, completing the future with the converted records. If
+     * <code>partialResults</code> is true a failure of part of the batch still completes normally, as records
+     * which were not processed retain their error result code. As with single records, conversions which need
+     * an uncached partner are done off the event loop.
+     */
+    private <T> CompletableFuture<T> operateAsync(BatchPolicy policy, List<BatchRecord> records, boolean partialResults, Function<List<BatchRecord>, T> converter) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            client.operate(null, new BatchOperateListListener() {
+                @Override
+                public void onSuccess(List<BatchRecord> results, boolean status) {
+                    complete(future, converter, records, hasUncachedPartner(records));
+                }
+
+                @Override
+                public void onFailure(AerospikeException ae) {
+                    if (partialResults) {
+                        onSuccess(records, false);
+                    }
+                    else {
+                        future.completeExceptionally(ae);
+                    }
+                }
+            }, policy, records);
+        }
+        catch (AerospikeException ae) {
+            future.completeExceptionally(ae);
+        }
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveDeviceAsync(Device device) {
+        return operateAsync(getDeviceKey(device), getSaveOperations(device), record -> null);
+    }
+
+    @Override
+    public CompletableFuture<int[]> saveDevicesAsync(List<Device> devices) {
+        return operateAsync(this.batchPolicy, getSaveRecords(devices), true, NativeStorageEngine::toResultCodes);
+    }
+
+    @Override
+    public CompletableFuture<Void> insertSegmentAndRemoveExpiredAsync(String deviceId, SegmentInstance segment) {
+        return operateAsync(getDeviceKey(deviceId), getInsertSegmentOperations(segment), record -> null);
+    }
+
+    @Override
+    public CompletableFuture<Long> insertSegmentsAsync(String deviceId, List<SegmentInstance> segments, boolean removeExpired) {
+        return operateAsync(getDeviceKey(deviceId), getInsertSegmentsOperations(segments, removeExpired), NativeStorageEngine::toEarliestExpiry);
+    }
+
+    @Override
+    public CompletableFuture<int[]> insertSegmentsAsync(List<Device> devices) {
+        return operateAsync(this.batchPolicy, getInsertSegmentsRecords(devices), true, NativeStorageEngine::toResultCodes);
+    }
+
+    @Override
+    public CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(String deviceId) {
+        return operateAsync(getDeviceKey(deviceId), new Operation[] { getActiveSegmentsOperation(new Date().getTime()) }, this::toSegments);
+    }
+
+    @Override
+    public CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(String deviceId, SegmentFilter filter) {
+        return operateAsync(getDeviceKey(deviceId), new Operation[] { getActiveSegmentsOperation(filter) }, record -> toSegments(record, filter));
+    }
+
+    @Override
+    public CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(List<String> deviceIds) {
+        List<Key> keys = new ArrayList<>(deviceIds.size());
+        for (String deviceId : deviceIds) {
+            keys.add(getDeviceKey(deviceId));
+        }
+        return operateAsync(this.batchReadPolicy, getActiveSegmentsRecords(keys), false, this::mergeSegments);
+    }
+
+    @Override
+    public CompletableFuture<Record> getCountOfActiveAndExpiredSegmentsAsync(String deviceId) {
+        return operateAsync(getDeviceKey(deviceId), getCountOperations(), record -> record);
     }
 }
 
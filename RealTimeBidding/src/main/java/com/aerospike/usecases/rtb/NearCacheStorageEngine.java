@@ -0,0 +1,296 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.Record;
+import com.aerospike.usecases.common.MonitorMetric;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.GaugeMetric;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * A bounded, client-side cache of the results of <code>getActiveSegments</code> in front of any other
+ * <code>StorageEngine</code>. Bid requests for a device tend to arrive in bursts, so even a short lived cache
+ * saves a lot of round trips for the hottest devices.
+ * <p/>
+ * Entries are evicted in least recently used order once the cache is full. An entry lives for at most the
+ * configured time to live, and never past the earliest expiry of the segments it holds, as that segment
+ * would no longer be active. Changes made to a device through this engine invalidate its entry, but changes
+ * made by other processes are only seen once the entry expires, so the time to live bounds how stale a
+ * result can be.
+ * <p/>
+ * To keep contention low the cache is split into stripes, each of which is an access ordered
+ * <code>LinkedHashMap</code> guarded by its own lock. The lists returned from the cache are shared between
+ * callers and so cannot be modified.
+ */
+public class NearCacheStorageEngine implements StorageEngine {
+    private static class CacheEntry {
+        private final List<SegmentInstance> segments;
+        private final long expiresAt;
+
+        CacheEntry(List<SegmentInstance> segments, long expiresAt) {
+            this.segments = segments;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private class Stripe extends LinkedHashMap<String, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        // Incremented on every invalidation, so a read which raced with a write does not cache a stale result
+        private long invalidations = 0;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final StorageEngine delegate;
+    private final long timeToLiveMs;
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final CounterMetric hits = new CounterMetric("nearCacheHits", "getActiveSegments calls served from the near cache");
+    private final CounterMetric misses = new CounterMetric("nearCacheMisses", "getActiveSegments calls which went to the database");
+    private final CounterMetric evictions = new CounterMetric("nearCacheEvictions", "Entries evicted from the near cache to make space");
+    private final GaugeMetric size = new GaugeMetric("nearCacheSize", "Entries in the near cache", this::size);
+
+    /**
+     * Create a near cache
+     * @param delegate - the engine which does the database operations
+     * @param maxEntries - the maximum number of devices to cache
+     * @param timeToLiveMs - the longest time a result can be cached for
+     */
+    public NearCacheStorageEngine(StorageEngine delegate, int maxEntries, long timeToLiveMs) {
+        if (maxEntries <= 0 || timeToLiveMs <= 0) {
+            throw new IllegalArgumentException("The near cache size and time to live must both be positive");
+        }
+        this.delegate = delegate;
+        this.timeToLiveMs = timeToLiveMs;
+        int stripeCount = Math.min(Integer.highestOneBit(Math.max(1, maxEntries / 16)),
+                Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 2);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            this.stripes[i] = new Stripe((maxEntries + stripeCount - 1) / stripeCount);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    public StorageEngine getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Return the metrics of the cache: the hits, misses and evictions, and the current number of entries
+     * @return
+     */
+    public List<MonitorMetric> getMetrics() {
+        List<MonitorMetric> metrics = new ArrayList<>();
+        metrics.add(hits);
+        metrics.add(misses);
+        metrics.add(evictions);
+        metrics.add(size);
+        return metrics;
+    }
+
+    private Stripe getStripe(String deviceId) {
+        int hash = deviceId.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & stripeMask];
+    }
+
+    private long size() {
+        long result = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                result += stripe.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove the cached segments of a device, for example because they have been changed by another process.
+     * @param deviceId
+     */
+    public void invalidate(String deviceId) {
+        Stripe stripe = getStripe(deviceId);
+        synchronized (stripe) {
+            stripe.remove(deviceId);
+            stripe.invalidations++;
+        }
+    }
+
+    @Override
+    public void saveDevice(Device device) {
+        try {
+            delegate.saveDevice(device);
+        }
+        finally {
+            invalidate(device.getId());
+        }
+    }
+
+    @Override
+    public int[] saveDevices(List<Device> devices) {
+        try {
+            return delegate.saveDevices(devices);
+        }
+        finally {
+            for (Device device : devices) {
+                invalidate(device.getId());
+            }
+        }
+    }
+
+    @Override
+    public void insertSegmentAndRemoveExpired(String deviceId, SegmentInstance segment) {
+        // Invalidate even if the write fails, as it may still have been applied
+        try {
+            delegate.insertSegmentAndRemoveExpired(deviceId, segment);
+        }
+        finally {
+            invalidate(deviceId);
+        }
+    }
+
+    @Override
+    public long insertSegments(String deviceId, List<SegmentInstance> segments, boolean removeExpired) {
+        try {
+            return delegate.insertSegments(deviceId, segments, removeExpired);
+        }
+        finally {
+            invalidate(deviceId);
+        }
+    }
+
+    @Override
+    public int[] insertSegments(List<Device> devices) {
+        try {
+            return delegate.insertSegments(devices);
+        }
+        finally {
+            for (Device device : devices) {
+                invalidate(device.getId());
+            }
+        }
+    }
+
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId) {
+        Stripe stripe = getStripe(deviceId);
+        long invalidations;
+        long now = System.currentTimeMillis();
+        synchronized (stripe) {
+            CacheEntry entry = stripe.get(deviceId);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    hits.increment();
+                    return entry.segments;
+                }
+                stripe.remove(deviceId);
+            }
+            invalidations = stripe.invalidations;
+        }
+        misses.increment();
+        List<SegmentInstance> segments = delegate.getActiveSegments(deviceId);
+        if (segments == null) {
+            return null;
+        }
+        long expiresAt = now + timeToLiveMs;
+        for (SegmentInstance segment : segments) {
+            Date expiry = segment.getExpiry();
+            if (expiry != null && expiry.getTime() < expiresAt) {
+                expiresAt = expiry.getTime();
+            }
+        }
+        List<SegmentInstance> result = Collections.unmodifiableList(segments);
+        synchronized (stripe) {
+            if (stripe.invalidations == invalidations) {
+                stripe.put(deviceId, new CacheEntry(result, expiresAt));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cached devices are served from the cache and the rest are passed to the delegate in one call. The
+     * delegate merges the devices it reads, so their segments are not added to the cache.
+     */
+    @Override
+    public List<SegmentInstance> getActiveSegments(List<String> deviceIds) {
+        long now = System.currentTimeMillis();
+        List<SegmentInstance> segments = new ArrayList<>();
+        List<String> uncached = new ArrayList<>();
+        for (String deviceId : deviceIds) {
+            Stripe stripe = getStripe(deviceId);
+            synchronized (stripe) {
+                CacheEntry entry = stripe.get(deviceId);
+                if (entry != null && entry.expiresAt > now) {
+                    hits.increment();
+                    segments.addAll(entry.segments);
+                    continue;
+                }
+            }
+            misses.increment();
+            uncached.add(deviceId);
+        }
+        if (!uncached.isEmpty()) {
+            segments.addAll(delegate.getActiveSegments(uncached));
+        }
+        return SegmentMerger.merge(segments);
+    }
+
+    /**
+     * If the device is cached the filter is applied to the cached segments, otherwise the filtered read is
+     * passed to the delegate. Filtered results are not cached, as they cannot answer other requests.
+     */
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId, SegmentFilter filter) {
+        Stripe stripe = getStripe(deviceId);
+        long now = System.currentTimeMillis();
+        List<SegmentInstance> cached = null;
+        synchronized (stripe) {
+            CacheEntry entry = stripe.get(deviceId);
+            if (entry != null && entry.expiresAt > now) {
+                cached = entry.segments;
+            }
+        }
+        if (cached == null) {
+            misses.increment();
+            return delegate.getActiveSegments(deviceId, filter);
+        }
+        hits.increment();
+        List<SegmentInstance> result = new ArrayList<>();
+        for (SegmentInstance segment : cached) {
+            if (filter.matches(segment)) {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Record getCountOfActiveAndExpiredSegments(String deviceId) {
+        return delegate.getCountOfActiveAndExpiredSegments(deviceId);
+    }
+
+    @Override
+    public String toString() {
+        return delegate + " with a near cache";
+    }
+}
@@ -1,10 +1,13 @@
 package com.aerospike.usecases.rtb;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
+import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
 import com.aerospike.client.cdt.MapReturnType;
 import com.aerospike.client.cdt.MapWriteFlags;
 import com.aerospike.client.exp.Exp;
@@ -40,6 +43,25 @@ public class ObjectMapperStorageEngine implements StorageEngine {
         mapper.save(device);
     }
 
+    /**
+     * The object mapper saves each device individually, so this is just a convenience wrapper
+     * over <code>saveDevice</code> to satisfy the interface.
+     */
+    @Override
+    public int[] saveDevices(List<Device> devices) {
+        int[] results = new int[devices.size()];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                mapper.save(devices.get(i));
+                results[i] = ResultCode.OK;
+            }
+            catch (AerospikeException ae) {
+                results[i] = ae.getResultCode();
+            }
+        }
+        return results;
+    }
+
     @Override
     public void insertSegmentAndRemoveExpired(String deviceId, SegmentInstance segment) {
          VirtualList<SegmentInstance> virtualList = mapper.asBackedList(Device.class, deviceId, "segments", SegmentInstance.class);
@@ -50,12 +72,78 @@ public class ObjectMapperStorageEngine implements StorageEngine {
          
     }
 
+    /**
+     * The segments are appended in one multi-operation on the virtual list. The mapper does not return the
+     * remaining segments, so the earliest expiry is unknown.
+     */
+    @Override
+    public long insertSegments(String deviceId, List<SegmentInstance> segments, boolean removeExpired) {
+        VirtualList<SegmentInstance> virtualList = mapper.asBackedList(Device.class, deviceId, "segments", SegmentInstance.class);
+        VirtualList.MultiOperation<SegmentInstance> operation = virtualList.beginMultiOperation();
+        for (SegmentInstance segment : segments) {
+            operation.append(segment);
+        }
+        if (removeExpired) {
+            operation.removeByValueRange(null, new Date().getTime());
+        }
+        operation.end();
+        return Long.MIN_VALUE;
+    }
+
+    /**
+     * The object mapper writes each device individually, so this is a convenience wrapper over 
+     * <code>insertSegments</code> to satisfy the interface.
+     */
+    @Override
+    public int[] insertSegments(List<Device> devices) {
+        int[] results = new int[devices.size()];
+        for (int i = 0; i < results.length; i++) {
+            try {
+                insertSegments(devices.get(i).getId(), devices.get(i).getSegments(), true);
+                results[i] = ResultCode.OK;
+            }
+            catch (AerospikeException ae) {
+                results[i] = ae.getResultCode();
+            }
+        }
+        return results;
+    }
+
     @Override
     public List<SegmentInstance> getActiveSegments(String deviceId) {
         VirtualList<SegmentInstance> virtualList = mapper.asBackedList(Device.class, deviceId, "segments", SegmentInstance.class);
         return virtualList.getByValueRange(new Date().getTime(), null, ReturnType.ELEMENTS);
     }
     
+    /**
+     * The virtual list reads a single record, so each device is read in turn rather than in one batch
+     */
+    @Override
+    public List<SegmentInstance> getActiveSegments(List<String> deviceIds) {
+        List<SegmentInstance> segments = new ArrayList<>();
+        for (String deviceId : deviceIds) {
+            List<SegmentInstance> deviceSegments = getActiveSegments(deviceId);
+            if (deviceSegments != null) {
+                segments.addAll(deviceSegments);
+            }
+        }
+        return SegmentMerger.merge(segments);
+    }
+    
+    /**
+     * The virtual list only supports selecting by value range, so the filter is applied in the client
+     */
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId, SegmentFilter filter) {
+        List<SegmentInstance> result = new ArrayList<>();
+        for (SegmentInstance segment : getActiveSegments(deviceId)) {
+            if (filter.matches(segment)) {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+    
     @Override
     public String toString() {
         return "ObjectMapperStorageEngine";
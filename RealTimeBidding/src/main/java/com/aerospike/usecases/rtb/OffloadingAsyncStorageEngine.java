@@ -0,0 +1,133 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.aerospike.client.Record;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Provides the <code>AsyncStorageEngine</code> API over any synchronous <code>StorageEngine</code> by running the
+ * blocking calls on a bounded pool of threads. This is for engines such as the object mapper which have no
+ * asynchronous client path, so a caller can use the same non-blocking pipeline whichever engine is selected.
+ * <p/>
+ * The calls still park a pool thread each, so the concurrency is limited to the pool size. Calls beyond that wait
+ * in a bounded queue, and once the queue is full the returned future fails straight away with a
+ * <code>RejectedExecutionException</code>, so an overloaded bidder sheds requests rather than queueing without limit.
+ */
+public class OffloadingAsyncStorageEngine implements AsyncStorageEngine, AutoCloseable {
+    private final StorageEngine delegate;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create the engine
+     * @param delegate - the engine which does the database operations
+     * @param numberOfThreads - the number of calls to the delegate in flight at once
+     * @param queueSize - the number of calls which can wait for a thread before calls are rejected
+     */
+    public OffloadingAsyncStorageEngine(StorageEngine delegate, int numberOfThreads, int queueSize) {
+        if (numberOfThreads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("The number of threads and the queue size must both be positive");
+        }
+        this.delegate = delegate;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(numberOfThreads, numberOfThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "Storage Offload " + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public StorageEngine getDelegate() {
+        return delegate;
+    }
+
+    private <T> CompletableFuture<T> offload(Supplier<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(call, executor);
+        }
+        catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> saveDeviceAsync(Device device) {
+        return offload(() -> {
+            delegate.saveDevice(device);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<int[]> saveDevicesAsync(List<Device> devices) {
+        return offload(() -> delegate.saveDevices(devices));
+    }
+
+    @Override
+    public CompletableFuture<Void> insertSegmentAndRemoveExpiredAsync(String deviceId, SegmentInstance segment) {
+        return offload(() -> {
+            delegate.insertSegmentAndRemoveExpired(deviceId, segment);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Long> insertSegmentsAsync(String deviceId, List<SegmentInstance> segments, boolean removeExpired) {
+        return offload(() -> delegate.insertSegments(deviceId, segments, removeExpired));
+    }
+
+    @Override
+    public CompletableFuture<int[]> insertSegmentsAsync(List<Device> devices) {
+        return offload(() -> delegate.insertSegments(devices));
+    }
+
+    @Override
+    public CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(String deviceId) {
+        return offload(() -> delegate.getActiveSegments(deviceId));
+    }
+
+    @Override
+    public CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(String deviceId, SegmentFilter filter) {
+        return offload(() -> delegate.getActiveSegments(deviceId, filter));
+    }
+
+    @Override
+    public CompletableFuture<List<SegmentInstance>> getActiveSegmentsAsync(List<String> deviceIds) {
+        return offload(() -> delegate.getActiveSegments(deviceIds));
+    }
+
+    @Override
+    public CompletableFuture<Record> getCountOfActiveAndExpiredSegmentsAsync(String deviceId) {
+        return offload(() -> delegate.getCountOfActiveAndExpiredSegments(deviceId));
+    }
+
+    /**
+     * Stop accepting calls and wait for the calls already accepted to finish
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s offloaded to %d threads", delegate, executor.getMaximumPoolSize());
+    }
+}
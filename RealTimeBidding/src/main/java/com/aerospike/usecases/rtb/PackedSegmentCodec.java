@@ -0,0 +1,344 @@
+package com.aerospike.usecases.rtb;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Encode the segments of a device into a compact blob, as used by the <code>PackedStorageEngine</code>.
+ * <p/>
+ * The blob starts with a format version byte and a flags byte. The rest is the payload, which is deflated
+ * for large devices (the uncompressed length is written first in that case). The payload is:
+ * <ul>
+ * <li>the number of segments, as a varint</li>
+ * <li>a table of the distinct partner ids in the device: a count, then each as a varint length and UTF-8 bytes. If
+ * a <code>PartnerDictionary</code> is used, a flag is set and each is instead its integer from the dictionary, as a varint</li>
+ * <li>the earliest expiry in the device, in milliseconds, as a varint</li>
+ * <li>for each segment, in ascending segment id order: the difference from the previous segment id (zig-zag
+ * varint), the expiry relative to the earliest expiry plus one (varint, 0 if there is no expiry), the flags
+ * (varint) and the index of the partner id in the table plus one (varint, 0 if there is no partner)</li>
+ * </ul>
+ * Sorted segment ids are close together, so each segment typically takes 8-9 bytes, compared to 25-30 bytes for
+ * a <code>[expiry, flags, partnerId]</code> list in a map. If a segment id appears more than once the last
+ * occurrence wins, matching the map layout.
+ * <p/>
+ * A segment without an expiry is treated as expired, which is how the map layout treats it too.
+ */
+public final class PackedSegmentCodec {
+    /**
+     * Receives the segments of a blob without a <code>SegmentInstance</code> being created for each one
+     */
+    public interface SegmentVisitor {
+        /**
+         * @param segmentId
+         * @param expiry - the expiry in milliseconds since the epoch, or <code>NO_EXPIRY</code>
+         * @param flags
+         * @param partnerId - the partner id, or null. The same instance is passed for every segment with the same partner id
+         */
+        void visit(long segmentId, long expiry, long flags, String partnerId);
+    }
+
+    public static final long NO_EXPIRY = Long.MIN_VALUE;
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int FLAG_COMPRESSED = 0x01;
+    private static final int FLAG_PARTNER_DICTIONARY = 0x02;
+    private static final int HEADER_SIZE = 2;
+    /** Payloads larger than this are deflated */
+    static final int COMPRESSION_THRESHOLD = 2048;
+
+    private static final Comparator<SegmentInstance> BY_SEGMENT_ID = Comparator.comparingLong(SegmentInstance::getSegmentId);
+    private static final ThreadLocal<PackedSegmentCodec> CODECS = ThreadLocal.withInitial(PackedSegmentCodec::new);
+
+    // Per-thread working state, reused between calls
+    private byte[] buffer = new byte[1024];
+    private int position;
+    private final Map<String, Integer> partnerIndexes = new HashMap<>();
+    private final List<String> partners = new ArrayList<>();
+    private SegmentInstance[] sorted = new SegmentInstance[64];
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    private PackedSegmentCodec() {
+    }
+
+    /**
+     * Encode the passed segments into a blob. The list is not modified.
+     * @param segments
+     * @return
+     */
+    public static byte[] encode(List<SegmentInstance> segments) {
+        return encode(segments, null);
+    }
+
+    /**
+     * Encode the passed segments into a blob. The list is not modified.
+     * @param segments
+     * @param partnerDictionary - the dictionary to encode the partner ids with, or null to store them as strings
+     * @return
+     */
+    public static byte[] encode(List<SegmentInstance> segments, PartnerDictionary partnerDictionary) {
+        return CODECS.get().encodeSegments(segments, partnerDictionary);
+    }
+
+    /**
+     * Pass every segment in the blob to the visitor, in ascending segment id order.
+     * @param blob - a blob created by <code>encode</code>
+     * @param visitor
+     */
+    public static void visit(byte[] blob, SegmentVisitor visitor) {
+        visit(blob, null, visitor);
+    }
+
+    /**
+     * Pass every segment in the blob to the visitor, in ascending segment id order.
+     * @param blob - a blob created by <code>encode</code>
+     * @param partnerDictionary - the dictionary to decode the partner ids with. Only needed if one was used to encode the blob
+     * @param visitor
+     */
+    public static void visit(byte[] blob, PartnerDictionary partnerDictionary, SegmentVisitor visitor) {
+        CODECS.get().visitSegments(blob, partnerDictionary, visitor);
+    }
+
+    /**
+     * Decode the segments in the blob which expire at or after the passed time.
+     * @param blob - a blob created by <code>encode</code>
+     * @param activeAt - the time in milliseconds since the epoch. Pass <code>Long.MIN_VALUE</code> to decode every segment
+     * @return The segments, in ascending segment id order
+     */
+    public static List<SegmentInstance> decode(byte[] blob, long activeAt) {
+        return decode(blob, activeAt, null);
+    }
+
+    /**
+     * Decode the segments in the blob which expire at or after the passed time.
+     * @param blob - a blob created by <code>encode</code>
+     * @param activeAt - the time in milliseconds since the epoch. Pass <code>Long.MIN_VALUE</code> to decode every segment
+     * @param partnerDictionary - the dictionary to decode the partner ids with. Only needed if one was used to encode the blob
+     * @return The segments, in ascending segment id order
+     */
+    public static List<SegmentInstance> decode(byte[] blob, long activeAt, PartnerDictionary partnerDictionary) {
+        return decode(blob, activeAt, partnerDictionary, SegmentFilter.all());
+    }
+
+    /**
+     * Decode the segments in the blob which expire at or after the passed time and match the filter. Only the
+     * selected segments have a <code>SegmentInstance</code> created for them.
+     * @param blob - a blob created by <code>encode</code>
+     * @param activeAt - the time in milliseconds since the epoch. Pass <code>Long.MIN_VALUE</code> to decode every segment
+     * @param partnerDictionary - the dictionary to decode the partner ids with. Only needed if one was used to encode the blob
+     * @param filter - the segments to select
+     * @return The segments, in ascending segment id order
+     */
+    public static List<SegmentInstance> decode(byte[] blob, long activeAt, PartnerDictionary partnerDictionary, SegmentFilter filter) {
+        List<SegmentInstance> result = new ArrayList<>();
+        visit(blob, partnerDictionary, (segmentId, expiry, flags, partnerId) -> {
+            if ((activeAt == Long.MIN_VALUE || (expiry != NO_EXPIRY && expiry >= activeAt)) && filter.matches(segmentId, flags, partnerId)) {
+                result.add(new SegmentInstance(segmentId, expiry == NO_EXPIRY ? null : new Date(expiry), flags, partnerId));
+            }
+        });
+        return result;
+    }
+
+    private byte[] encodeSegments(List<SegmentInstance> segments, PartnerDictionary partnerDictionary) {
+        // Sort a copy of the segments by id. The sort is stable so the last duplicate is the last in each run
+        int count = segments.size();
+        if (sorted.length < count) {
+            sorted = new SegmentInstance[Math.max(count, sorted.length * 2)];
+        }
+        segments.toArray(sorted);
+        Arrays.sort(sorted, 0, count, BY_SEGMENT_ID);
+        int unique = 0;
+        long baseExpiry = Long.MAX_VALUE;
+        partnerIndexes.clear();
+        partners.clear();
+        for (int i = 0; i < count; i++) {
+            SegmentInstance segment = sorted[i];
+            if (unique > 0 && sorted[unique - 1].getSegmentId() == segment.getSegmentId()) {
+                unique--;
+            }
+            sorted[unique++] = segment;
+        }
+        for (int i = 0; i < unique; i++) {
+            SegmentInstance segment = sorted[i];
+            if (segment.getExpiry() != null) {
+                baseExpiry = Math.min(baseExpiry, segment.getExpiry().getTime());
+            }
+            String partnerId = segment.getPartnerId();
+            if (partnerId != null && !partnerIndexes.containsKey(partnerId)) {
+                partnerIndexes.put(partnerId, partners.size());
+                partners.add(partnerId);
+            }
+        }
+        if (baseExpiry == Long.MAX_VALUE) {
+            baseExpiry = 0;
+        }
+
+        position = HEADER_SIZE;
+        writeVarLong(unique);
+        writeVarLong(partners.size());
+        for (String partnerId : partners) {
+            if (partnerDictionary != null) {
+                writeVarLong(partnerDictionary.getId(partnerId));
+                continue;
+            }
+            byte[] bytes = partnerId.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+        writeVarLong(baseExpiry);
+        long previousId = 0;
+        for (int i = 0; i < unique; i++) {
+            SegmentInstance segment = sorted[i];
+            long delta = segment.getSegmentId() - previousId;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            previousId = segment.getSegmentId();
+            writeVarLong(segment.getExpiry() == null ? 0 : segment.getExpiry().getTime() - baseExpiry + 1);
+            writeVarLong(segment.getFlags());
+            writeVarLong(segment.getPartnerId() == null ? 0 : partnerIndexes.get(segment.getPartnerId()) + 1);
+            sorted[i] = null;
+        }
+        Arrays.fill(sorted, unique, count, null);
+
+        int flags = partnerDictionary == null ? 0 : FLAG_PARTNER_DICTIONARY;
+        int payloadLength = position - HEADER_SIZE;
+        if (payloadLength > COMPRESSION_THRESHOLD) {
+            byte[] compressed = compress(payloadLength, flags);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        byte[] result = Arrays.copyOf(buffer, position);
+        result[0] = FORMAT_VERSION;
+        result[1] = (byte)flags;
+        return result;
+    }
+
+    /**
+     * Deflate the payload in the buffer. Returns null if the compressed blob would not be smaller.
+     */
+    private byte[] compress(int payloadLength, int flags) {
+        byte[] output = new byte[HEADER_SIZE + payloadLength];
+        output[0] = FORMAT_VERSION;
+        output[1] = (byte)(flags | FLAG_COMPRESSED);
+        int outputPosition = HEADER_SIZE;
+        long length = payloadLength;
+        while ((length & ~0x7FL) != 0) {
+            output[outputPosition++] = (byte)((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        output[outputPosition++] = (byte)length;
+        deflater.reset();
+        deflater.setInput(buffer, HEADER_SIZE, payloadLength);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (outputPosition == output.length) {
+                return null;
+            }
+            outputPosition += deflater.deflate(output, outputPosition, output.length - outputPosition);
+        }
+        return Arrays.copyOf(output, outputPosition);
+    }
+
+    private void visitSegments(byte[] blob, PartnerDictionary partnerDictionary, SegmentVisitor visitor) {
+        if (blob.length < HEADER_SIZE || blob[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported packed segment format " + (blob.length == 0 ? "(empty)" : Byte.toString(blob[0])));
+        }
+        byte[] data = blob;
+        int end = blob.length;
+        position = HEADER_SIZE;
+        if ((blob[1] & FLAG_COMPRESSED) != 0) {
+            int payloadLength = (int)readVarLong(blob);
+            inflater.reset();
+            inflater.setInput(blob, position, blob.length - position);
+            position = 0;
+            ensureCapacity(payloadLength);
+            try {
+                int inflated = 0;
+                while (inflated < payloadLength && !inflater.finished()) {
+                    int count = inflater.inflate(buffer, inflated, payloadLength - inflated);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += count;
+                }
+                if (inflated != payloadLength) {
+                    throw new IllegalArgumentException("Packed segments are truncated");
+                }
+            }
+            catch (DataFormatException dfe) {
+                throw new IllegalArgumentException("Packed segments are corrupt: " + dfe.getMessage(), dfe);
+            }
+            data = buffer;
+            end = payloadLength;
+        }
+        boolean usesDictionary = (blob[1] & FLAG_PARTNER_DICTIONARY) != 0;
+        if (usesDictionary && partnerDictionary == null) {
+            throw new IllegalStateException("The packed segments were encoded with the partner dictionary, but no dictionary is in use");
+        }
+        int count = (int)readVarLong(data);
+        int partnerCount = (int)readVarLong(data);
+        String[] partnerIds = new String[partnerCount];
+        for (int i = 0; i < partnerCount; i++) {
+            if (usesDictionary) {
+                partnerIds[i] = partnerDictionary.getPartnerId((int)readVarLong(data));
+                continue;
+            }
+            int length = (int)readVarLong(data);
+            partnerIds[i] = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+        }
+        long baseExpiry = readVarLong(data);
+        long segmentId = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = readVarLong(data);
+            segmentId += (delta >>> 1) ^ -(delta & 1);
+            long expiry = readVarLong(data);
+            long flags = readVarLong(data);
+            int partnerIndex = (int)readVarLong(data);
+            visitor.visit(segmentId, expiry == 0 ? NO_EXPIRY : baseExpiry + expiry - 1, flags, partnerIndex == 0 ? null : partnerIds[partnerIndex - 1]);
+        }
+        if (position != end) {
+            throw new IllegalArgumentException("Packed segments have " + (end - position) + " unexpected trailing bytes");
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+    }
+
+    private long readVarLong(byte[] data) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data[position++];
+            result |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Packed segments contain a malformed varint");
+    }
+}
@@ -0,0 +1,276 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.BatchRecord;
+import com.aerospike.client.BatchWrite;
+import com.aerospike.client.Bin;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.BatchPolicy;
+import com.aerospike.client.policy.BatchWritePolicy;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Store the segments of a device as a single compact blob, encoded by <code>PackedSegmentCodec</code>, rather
+ * than as a map of lists. This makes records several times smaller, which reduces both the storage footprint
+ * and the amount of data read for each lookup, at the cost of the server no longer being able to manipulate
+ * individual segments.
+ * <p/>
+ * Reads and expiry pruning therefore happen in the client. Inserting a segment is a read-modify-write which
+ * uses the record generation to detect concurrent changes, retrying if another writer got in first.
+ * <p/>
+ * The devices are stored in their own set, as the layout is not compatible with the other engines.
+ */
+public class PackedStorageEngine implements StorageEngine {
+    private final String NAMESPACE;
+    private static final String SET_NAME = "packedDevices";
+
+    private static final String SEGMENT_NAME = "segments";
+    private static final String FINISHED_NAME = "isFinished";
+    private static final int MAX_WRITE_ATTEMPTS = 10;
+
+    private final Policy readPolicy;
+    private final WritePolicy writePolicy;
+    private final BatchPolicy batchPolicy;
+    private final BatchWritePolicy batchWritePolicy;
+    private final BatchPolicy batchReadPolicy;
+    private final IAerospikeClient client;
+    private final PartnerDictionary partnerDictionary;
+
+    public PackedStorageEngine(IAerospikeClient client, String namespace) {
+        this(client, namespace, null);
+    }
+
+    /**
+     * Create the engine
+     * @param client
+     * @param namespace
+     * @param partnerDictionary - if not null, partner ids are stored as their integer from this dictionary
+     */
+    public PackedStorageEngine(IAerospikeClient client, String namespace, PartnerDictionary partnerDictionary) {
+        this.NAMESPACE = namespace;
+        this.partnerDictionary = partnerDictionary;
+        this.readPolicy = client.getReadPolicyDefault();
+        WritePolicy writePolicy = new WritePolicy(client.getWritePolicyDefault());
+        writePolicy.sendKey = true;
+        this.writePolicy = writePolicy;
+        this.batchPolicy = client.getBatchParentPolicyWriteDefault();
+        BatchWritePolicy batchWritePolicy = new BatchWritePolicy(client.getBatchWritePolicyDefault());
+        batchWritePolicy.sendKey = true;
+        this.batchWritePolicy = batchWritePolicy;
+        this.batchReadPolicy = client.getBatchPolicyDefault();
+        this.client = client;
+    }
+
+    private Key getDeviceKey(String deviceId) {
+        return new Key(NAMESPACE, SET_NAME, deviceId);
+    }
+
+    private Operation[] getSaveOperations(Device device) {
+        return new Operation[] {
+                Operation.put(new Bin(FINISHED_NAME, device.isFinished())),
+                Operation.put(new Bin(SEGMENT_NAME, PackedSegmentCodec.encode(device.getSegments(), partnerDictionary)))
+        };
+    }
+
+    /**
+     * Save the device. Unlike the map layout the segments replace any which are already stored for the device.
+     */
+    @Override
+    public void saveDevice(Device device) {
+        client.operate(writePolicy, getDeviceKey(device.getId()), getSaveOperations(device));
+    }
+
+    @Override
+    public int[] saveDevices(List<Device> devices) {
+        List<BatchRecord> records = new ArrayList<>(devices.size());
+        for (Device device : devices) {
+            records.add(new BatchWrite(this.batchWritePolicy, getDeviceKey(device.getId()), getSaveOperations(device)));
+        }
+        try {
+            client.operate(this.batchPolicy, records);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Records which were not processed retain their error result code, so just fall through
+        }
+        int[] results = new int[records.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = records.get(i).resultCode;
+        }
+        return results;
+    }
+
+    @Override
+    public void insertSegmentAndRemoveExpired(String deviceId, SegmentInstance segment) {
+        insertSegments(deviceId, Collections.singletonList(segment), true);
+    }
+
+    /**
+     * The blob is rewritten on every insert and only active segments are kept, so expired segments are
+     * always removed and <code>removeExpired</code> is ignored.
+     */
+    @Override
+    public long insertSegments(String deviceId, List<SegmentInstance> newSegments, boolean removeExpired) {
+        Key key = getDeviceKey(deviceId);
+        for (int attempt = 1; ; attempt++) {
+            long now = new Date().getTime();
+            Record record = client.get(readPolicy, key, SEGMENT_NAME);
+            byte[] blob = record == null ? null : (byte[])record.getValue(SEGMENT_NAME);
+            List<SegmentInstance> segments = blob == null ? new ArrayList<>() : PackedSegmentCodec.decode(blob, now, partnerDictionary);
+            // Any existing segment with the same id is replaced, as the new segments are last
+            segments.addAll(newSegments);
+
+            WritePolicy policy = new WritePolicy(writePolicy);
+            if (record == null) {
+                policy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+            }
+            else {
+                policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+                policy.generation = record.generation;
+            }
+            try {
+                client.put(policy, key, new Bin(SEGMENT_NAME, PackedSegmentCodec.encode(segments, partnerDictionary)));
+                long earliest = Long.MAX_VALUE;
+                for (SegmentInstance segment : segments) {
+                    earliest = Math.min(earliest, segment.getExpiry() == null ? 0 : segment.getExpiry().getTime());
+                }
+                return earliest;
+            }
+            catch (AerospikeException ae) {
+                boolean lostRace = ae.getResultCode() == ResultCode.GENERATION_ERROR || ae.getResultCode() == ResultCode.KEY_EXISTS_ERROR;
+                if (!lostRace || attempt >= MAX_WRITE_ATTEMPTS) {
+                    throw ae;
+                }
+            }
+        }
+    }
+
+    /**
+     * All the devices are read in one batch and written back in a second batch, each write checking the
+     * generation that was read. Devices which lost a race with another writer are then retried individually.
+     */
+    @Override
+    public int[] insertSegments(List<Device> devices) {
+        long now = new Date().getTime();
+        Key[] keys = new Key[devices.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = getDeviceKey(devices.get(i).getId());
+        }
+        Record[] existing = client.get(batchReadPolicy, keys, SEGMENT_NAME);
+        List<BatchRecord> records = new ArrayList<>(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            Record record = existing[i];
+            byte[] blob = record == null ? null : (byte[])record.getValue(SEGMENT_NAME);
+            List<SegmentInstance> segments = blob == null ? new ArrayList<>() : PackedSegmentCodec.decode(blob, now, partnerDictionary);
+            segments.addAll(devices.get(i).getSegments());
+            BatchWritePolicy policy = new BatchWritePolicy(batchWritePolicy);
+            if (record == null) {
+                policy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+            }
+            else {
+                policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+                policy.generation = record.generation;
+            }
+            records.add(new BatchWrite(policy, keys[i], new Operation[] { 
+                    Operation.put(new Bin(SEGMENT_NAME, PackedSegmentCodec.encode(segments, partnerDictionary))) }));
+        }
+        try {
+            client.operate(this.batchPolicy, records);
+        }
+        catch (AerospikeException.BatchRecords bre) {
+            // Records which were not processed retain their error result code, so just fall through
+        }
+        int[] results = new int[records.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = records.get(i).resultCode;
+            if (results[i] == ResultCode.GENERATION_ERROR || results[i] == ResultCode.KEY_EXISTS_ERROR) {
+                try {
+                    insertSegments(devices.get(i).getId(), devices.get(i).getSegments(), true);
+                    results[i] = ResultCode.OK;
+                }
+                catch (AerospikeException ae) {
+                    results[i] = ae.getResultCode();
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId) {
+        long now = new Date().getTime();
+        Record record = client.get(readPolicy, getDeviceKey(deviceId), SEGMENT_NAME);
+        if (record == null || record.getValue(SEGMENT_NAME) == null) {
+            return new ArrayList<>();
+        }
+        return PackedSegmentCodec.decode((byte[])record.getValue(SEGMENT_NAME), now, partnerDictionary);
+    }
+
+    @Override
+    public List<SegmentInstance> getActiveSegments(List<String> deviceIds) {
+        long now = new Date().getTime();
+        Key[] keys = new Key[deviceIds.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = getDeviceKey(deviceIds.get(i));
+        }
+        // Devices which do not exist are returned as null
+        Record[] records = client.get(batchReadPolicy, keys, SEGMENT_NAME);
+        List<SegmentInstance> segments = new ArrayList<>();
+        for (Record record : records) {
+            if (record != null && record.getValue(SEGMENT_NAME) != null) {
+                segments.addAll(PackedSegmentCodec.decode((byte[])record.getValue(SEGMENT_NAME), now, partnerDictionary));
+            }
+        }
+        return SegmentMerger.merge(segments);
+    }
+
+    /**
+     * The whole blob has to be read, so the filter is applied in the client while decoding. Segments which
+     * do not match are skipped without being converted to a <code>SegmentInstance</code>.
+     */
+    @Override
+    public List<SegmentInstance> getActiveSegments(String deviceId, SegmentFilter filter) {
+        long now = new Date().getTime();
+        Record record = client.get(readPolicy, getDeviceKey(deviceId), SEGMENT_NAME);
+        if (record == null || record.getValue(SEGMENT_NAME) == null) {
+            return new ArrayList<>();
+        }
+        return PackedSegmentCodec.decode((byte[])record.getValue(SEGMENT_NAME), now, partnerDictionary, filter);
+    }
+
+    @Override
+    public Record getCountOfActiveAndExpiredSegments(String deviceId) {
+        long now = new Date().getTime();
+        Record record = client.get(readPolicy, getDeviceKey(deviceId), SEGMENT_NAME);
+        long[] counts = new long[2];
+        if (record != null && record.getValue(SEGMENT_NAME) != null) {
+            PackedSegmentCodec.visit((byte[])record.getValue(SEGMENT_NAME), partnerDictionary, (segmentId, expiry, flags, partnerId) -> {
+                counts[expiry != PackedSegmentCodec.NO_EXPIRY && expiry >= now ? 0 : 1]++;
+            });
+        }
+        Map<String, Object> bins = new HashMap<>();
+        bins.put("active", counts[0]);
+        bins.put("expired", counts[1]);
+        return new Record(bins, record == null ? 0 : record.generation, record == null ? 0 : record.expiration);
+    }
+
+    @Override
+    public String toString() {
+        return partnerDictionary == null ? "PackedStorageEngine" : "PackedStorageEngine with a partner dictionary";
+    }
+}
@@ -0,0 +1,211 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.IAerospikeClient;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.Value;
+import com.aerospike.client.cdt.MapOperation;
+import com.aerospike.client.cdt.MapOrder;
+import com.aerospike.client.cdt.MapPolicy;
+import com.aerospike.client.cdt.MapWriteFlags;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+
+/**
+ * Map partner ids such as "www.google.com" to small integers, so segments can store the integer instead of
+ * repeating the string in every segment of every device.
+ * <p/>
+ * The dictionary is a single record holding a map of partner id to integer. Integers are allocated densely
+ * from 0 and never change or get reused once allocated, so a cached copy of the dictionary is never wrong,
+ * just possibly incomplete. Each client keeps a copy in memory and only goes to the database when it meets
+ * a partner id or integer it does not know about. In that case the record header is read first and the
+ * dictionary is only reloaded if its generation (the version of the record) has changed.
+ * <p/>
+ * New partner ids are added with a generation check, so concurrent clients cannot allocate the same integer
+ * to different partners.
+ * <p/>
+ * Reloading the dictionary blocks on the database, so asynchronous callers must not meet an unknown integer on an
+ * event loop. They check <code>isCached</code> first and hand the work to <code>supplyAsync</code> if it fails.
+ */
+public class PartnerDictionary {
+    private static final String SET_NAME = "dictionaries";
+    private static final String RECORD_KEY = "partners";
+    private static final String MAP_NAME = "partners";
+    private static final int MAX_WRITE_ATTEMPTS = 10;
+    private static final MapPolicy MAP_POLICY = new MapPolicy(MapOrder.UNORDERED, MapWriteFlags.CREATE_ONLY);
+
+    /**
+     * An immutable copy of the dictionary at a given generation
+     */
+    private static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(0, Collections.emptyMap(), new String[0]);
+        private final int generation;
+        private final Map<String, Integer> ids;
+        private final String[] partnerIds;
+
+        Snapshot(int generation, Map<String, Integer> ids, String[] partnerIds) {
+            this.generation = generation;
+            this.ids = ids;
+            this.partnerIds = partnerIds;
+        }
+
+        String getPartnerId(int id) {
+            return id >= 0 && id < partnerIds.length ? partnerIds[id] : null;
+        }
+    }
+
+    private final IAerospikeClient client;
+    private final Key key;
+    private final Policy readPolicy;
+    private final WritePolicy writePolicy;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    // Refreshes are serialized anyway, so a single thread is enough. It is only started when first needed.
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Partner Dictionary Refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public PartnerDictionary(IAerospikeClient client, String namespace) {
+        this.client = client;
+        this.key = new Key(namespace, SET_NAME, RECORD_KEY);
+        this.readPolicy = client.getReadPolicyDefault();
+        WritePolicy writePolicy = new WritePolicy(client.getWritePolicyDefault());
+        writePolicy.sendKey = true;
+        this.writePolicy = writePolicy;
+    }
+
+    /**
+     * Return the integer for the passed partner id, adding it to the dictionary if needed.
+     * @param partnerId
+     * @return
+     */
+    public int getId(String partnerId) {
+        Integer id = snapshot.ids.get(partnerId);
+        if (id != null) {
+            return id;
+        }
+        return addPartnerId(partnerId);
+    }
+
+    /**
+     * Return the partner id for the passed integer. Every call for the same integer returns the same
+     * <code>String</code> instance.
+     * @param id
+     * @return
+     */
+    public String getPartnerId(int id) {
+        String partnerId = snapshot.getPartnerId(id);
+        if (partnerId == null) {
+            partnerId = refresh().getPartnerId(id);
+            if (partnerId == null) {
+                throw new IllegalArgumentException("Partner " + id + " is not in the partner dictionary");
+            }
+        }
+        return partnerId;
+    }
+
+    /**
+     * Whether the partner id for the passed integer is already known, so <code>getPartnerId</code> returns it
+     * without going to the database
+     * @param id
+     * @return
+     */
+    public boolean isCached(int id) {
+        return snapshot.getPartnerId(id) != null;
+    }
+
+    /**
+     * Run a task which may need to reload the dictionary on the thread of the dictionary, so it does not block
+     * the calling thread, such as an event loop
+     * @param task - for example a conversion of records which calls <code>getPartnerId</code>
+     * @return A future completed with the result of the task
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, refresher);
+    }
+
+    /**
+     * Reload the dictionary if it has changed in the database
+     */
+    private synchronized Snapshot refresh() {
+        Record header = client.getHeader(readPolicy, key);
+        if (header == null || header.generation == snapshot.generation) {
+            return snapshot;
+        }
+        Record record = client.get(readPolicy, key, MAP_NAME);
+        if (record != null) {
+            snapshot = toSnapshot(record.generation, record.getMap(MAP_NAME));
+        }
+        return snapshot;
+    }
+
+    private static Snapshot toSnapshot(int generation, Map<?, ?> map) {
+        Map<String, Integer> ids = new HashMap<>();
+        String[] partnerIds = new String[map == null ? 0 : map.size()];
+        if (map != null) {
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                int id = ((Number)entry.getValue()).intValue();
+                if (id >= partnerIds.length) {
+                    partnerIds = Arrays.copyOf(partnerIds, id + 1);
+                }
+                partnerIds[id] = (String)entry.getKey();
+                ids.put(partnerIds[id], id);
+            }
+        }
+        return new Snapshot(generation, ids, partnerIds);
+    }
+
+    private synchronized int addPartnerId(String partnerId) {
+        for (int attempt = 1; ; attempt++) {
+            Snapshot current = refresh();
+            Integer existing = current.ids.get(partnerId);
+            if (existing != null) {
+                return existing;
+            }
+            int id = current.partnerIds.length;
+            WritePolicy policy = new WritePolicy(writePolicy);
+            if (current.generation == 0) {
+                policy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+            }
+            else {
+                policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+                policy.generation = current.generation;
+            }
+            try {
+                Record record = client.operate(policy, key, MapOperation.put(MAP_POLICY, MAP_NAME, Value.get(partnerId), Value.get(id)));
+                Map<String, Integer> ids = new HashMap<>(current.ids);
+                ids.put(partnerId, id);
+                String[] partnerIds = Arrays.copyOf(current.partnerIds, id + 1);
+                partnerIds[id] = partnerId;
+                snapshot = new Snapshot(record.generation, ids, partnerIds);
+                return id;
+            }
+            catch (AerospikeException ae) {
+                boolean lostRace = ae.getResultCode() == ResultCode.GENERATION_ERROR || ae.getResultCode() == ResultCode.KEY_EXISTS_ERROR
+                        || ae.getResultCode() == ResultCode.ELEMENT_EXISTS;
+                if (!lostRace || attempt >= MAX_WRITE_ATTEMPTS) {
+                    throw ae;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PartnerDictionary(%d partners, generation %d)", snapshot.partnerIds.length, snapshot.generation);
+    }
+}
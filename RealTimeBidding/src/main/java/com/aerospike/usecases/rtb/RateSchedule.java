@@ -0,0 +1,66 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed schedule of request start times at a constant rate, shared by all the threads issuing requests, for
+ * open-loop load generation.
+ * <p/>
+ * In a closed loop each thread only sends its next request when the previous one returns, so when the server
+ * stalls the load offered to it drops and the latency of the requests which would have been sent during the
+ * stall is never measured (coordinated omission). With a schedule the n'th request is due at
+ * <code>start + n / rate</code> whatever happened to earlier requests. Latency is measured from this intended
+ * start time rather than the time the request was actually sent, so time spent waiting for a free thread or
+ * connection behind a slow request counts against the request, as it would for traffic arriving from an exchange.
+ * <p/>
+ * The threads or in-flight limit must be enough to sustain the rate, otherwise requests fall further and further
+ * behind schedule and the measured latency grows accordingly. <code>getLagMs</code> shows how far behind the
+ * schedule is.
+ */
+public class RateSchedule {
+    private final double ratePerSecond;
+    private final long intervalNs;
+    private final long startTime;
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Create a schedule starting now
+     * @param ratePerSecond - the number of requests per second
+     */
+    public RateSchedule(double ratePerSecond) {
+        if (!(ratePerSecond > 0)) {
+            throw new IllegalArgumentException("The rate must be positive, not " + ratePerSecond);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.intervalNs = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.startTime = System.nanoTime();
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    /**
+     * Claim the next request in the schedule and wait until it is due. If the schedule is behind this returns
+     * straight away. If the thread is interrupted it returns straight away with the interrupt flag set.
+     * @return The intended start time of the request, comparable with <code>System.nanoTime()</code>
+     */
+    public long awaitNext() {
+        long intendedTime = startTime + requests.getAndIncrement() * intervalNs;
+        long delay;
+        while ((delay = intendedTime - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(delay);
+        }
+        return intendedTime;
+    }
+
+    /**
+     * How many milliseconds the next request is behind its intended start time, or 0 if it is not yet due
+     */
+    public long getLagMs() {
+        long lag = System.nanoTime() - (startTime + requests.get() * intervalNs);
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(lag));
+    }
+}
@@ -1,7 +1,12 @@
 package com.aerospike.usecases.rtb;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -12,18 +17,59 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 
+import com.aerospike.client.AerospikeException;
 import com.aerospike.client.IAerospikeClient;
 import com.aerospike.client.Log;
 import com.aerospike.client.Record;
+import com.aerospike.client.async.EventLoops;
+import com.aerospike.client.async.EventPolicy;
+import com.aerospike.client.async.NioEventLoops;
+import com.aerospike.client.policy.ClientPolicy;
 import com.aerospike.usecases.common.AerospikeConnector;
+import com.aerospike.usecases.common.CsvFileSink;
+import com.aerospike.usecases.common.JsonLinesFileSink;
+import com.aerospike.usecases.common.MetricsSink;
+import com.aerospike.usecases.common.PrometheusEndpoint;
 import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.DeviceIdCodec;
 import com.aerospike.usecases.rtb.model.SegmentInstance;
+import com.aerospike.usecases.rtb.targeting.Campaign;
+import com.aerospike.usecases.rtb.targeting.SegmentBitmap;
+import com.aerospike.usecases.rtb.targeting.TargetingIndex;
 
 
 // Sample command lines:
 // -c generate --numDevices 100000 --numSegments 10000 -h localhost:3100
+// -c generate --numDevices 100000 --numSegments 10000 --batchSize 100 -h localhost:3100
+// -c generate --numDevices 100000 --numSegments 10000 --async --maxInFlight 256 -h localhost:3100
+// -c workload --numDevices 100000 --distribution zipf --mix read=90,insert=10 --duration 120 -h localhost:3100
+// -c generate --numDevices 100000 --numSegments 10000 --keyMode binary -h localhost:3100
+// -c workload --numDevices 100000 --distribution zipf --nearCache 100000 --nearCacheTtl 500 -h localhost:3100
+// -c generate --numDevices 100000 --numSegments 10000 --algorithm packed -h localhost:3100
+// -c generate --numDevices 100000 --numSegments 10000 --partnerDictionary -h localhost:3100
 // -c getSegments --device 1 -h localhost:3100   Show the ACTIVE segments for device 1 
+// -c getSegments --device 1,2,3 -h localhost:3100   Show the merged ACTIVE segments of devices 1, 2 and 3
+// -c getSegments --device 1 --partner www.google.com --flagMask 0x1 --segmentRange 0-5000 -h localhost:3100
+// -c workload --numDevices 100000 --distribution zipf --mix read=50,insert=50 --coalesceWindow 50 --coalesceSegments 20 -h localhost:3100
+// -c sweep --numThreads 8 --recordsPerSecond 5000 --progressFile sweep.progress -h localhost:3100
+// -c matchCampaigns --device 1 --campaignFile campaigns.txt -h localhost:3100
+// -c import --inputFile partner-segments.csv --numThreads 8 --batchSize 200 -h localhost:3100
+// -c workload --numDevices 100000 --async --maxInFlight 512 -h localhost:3100
+// -c workload --numDevices 100000 --threadMode virtual --numThreads 1000 -h localhost:3100
+// -c export --snapshotDir snapshot --snapshotFiles 16 --numThreads 4 --compress -h localhost:3100
+// -c restore --snapshotDir snapshot --numThreads 8 --batchSize 200 -h localhost:3100
+// -c workload --numDevices 100000 --rate 20000 --numThreads 64 -h localhost:3100
+// -c generate --numDevices 100000 --numSegments 10000 --seed 42 --baseTime 1767225600000 -h localhost:3100
+// -c verify --numDevices 100000 --numSegments 10000 --seed 42 --baseTime 1767225600000 -h localhost:3100
+// -c generate --numDevices 1000000000 --numSegments 10000 --numThreads 32 --chunkSize 50000 --progressFile generate.progress -h localhost:3100
+// -c workload --numDevices 100000 --adaptive --latencyTarget 5 --numThreads 256 --threadMode virtual -h localhost:3100
+// -c import --inputFile partner-segments.csv --maxRetries 5 --deadLetterFile failed-segments.jsonl -h localhost:3100
 public class RealTimeBidding {
+    private static final int DEFAULT_VIRTUAL_THREADS = 256;
+    private static final int DEFAULT_IN_FLIGHT_PER_NODE = 64;
+    // The connection pools are sized before the node count is known, so the default in flight is capped at a value they cover
+    private static final int MAX_DEFAULT_IN_FLIGHT = 16 * DEFAULT_IN_FLIGHT_PER_NODE;
+
     private static void usage(Options options) {
         HelpFormatter formatter = new HelpFormatter();
         StringWriter sw = new StringWriter();
@@ -58,64 +104,478 @@ public class RealTimeBidding {
     private static StorageEngine getStorageEngine(CommandLine cl, IAerospikeClient client, boolean useCloud) {
         String algorithm = cl.getOptionValue("algorithm", "native");
         String namespace = useCloud ? "aerospike_cloud" : "test";
-        StorageEngine storageEngine = algorithm.equalsIgnoreCase("mapper") ?
-                new ObjectMapperStorageEngine(client, namespace) :
-                new NativeStorageEngine(client, namespace);
+        NativeStorageEngine.KeyMode keyMode = getKeyMode(cl);
+        boolean isNative = !algorithm.equalsIgnoreCase("mapper") && !algorithm.equalsIgnoreCase("packed");
+        if (!isNative && keyMode != NativeStorageEngine.KeyMode.STRING) {
+            throw new IllegalArgumentException("Only the native algorithm supports binary keys, use '-alg native' for binary keys");
+        }
+        if (algorithm.equalsIgnoreCase("mapper") && cl.hasOption("partnerDictionary")) {
+            throw new IllegalArgumentException("The object mapper does not support the partner dictionary, use '-alg native' or '-alg packed'");
+        }
+        PartnerDictionary partnerDictionary = cl.hasOption("partnerDictionary") ? new PartnerDictionary(client, namespace) : null;
+        StorageEngine storageEngine;
+        if (algorithm.equalsIgnoreCase("mapper")) {
+            storageEngine = new ObjectMapperStorageEngine(client, namespace);
+        }
+        else if (algorithm.equalsIgnoreCase("packed")) {
+            storageEngine = new PackedStorageEngine(client, namespace, partnerDictionary);
+        }
+        else {
+            storageEngine = new NativeStorageEngine(client, namespace, keyMode, partnerDictionary);
+        }
+        if (cl.hasOption("nearCache")) {
+            storageEngine = new NearCacheStorageEngine(storageEngine, 
+                    Integer.parseInt(cl.getOptionValue("nearCache")),
+                    Long.parseLong(cl.getOptionValue("nearCacheTtl", "1000")));
+        }
+        if (cl.hasOption("coalesceWindow")) {
+            // Each timed write blocks a flush thread, so allow as many writes at once as there are threads or requests inserting
+            int flushThreads = cl.hasOption("async") ? getMaxInFlight(cl, client) : getNumThreads(cl, getThreadMode(cl));
+            storageEngine = new CoalescingStorageEngine(storageEngine,
+                    Long.parseLong(cl.getOptionValue("coalesceWindow")),
+                    Integer.parseInt(cl.getOptionValue("coalesceSegments", "100")),
+                    flushThreads);
+        }
         Log.info("Using " + storageEngine);
         return storageEngine;
     }
     
+    private static ThreadMode getThreadMode(CommandLine cl) {
+        ThreadMode threadMode = ThreadMode.get(cl.getOptionValue("threadMode", "platform"));
+        if (threadMode == ThreadMode.VIRTUAL && !ThreadMode.isVirtualThreadSupported()) {
+            throw new IllegalArgumentException("The virtual thread mode needs Java 21 or later, but this is Java " + System.getProperty("java.version"));
+        }
+        return threadMode;
+    }
+
+    /**
+     * Apply the seed and baseTime options, if given, to the populator
+     */
+    private static void setSeed(CommandLine cl, DataPopulator populator) {
+        if (cl.hasOption("seed")) {
+            populator.setSeed(Long.parseLong(cl.getOptionValue("seed")));
+        }
+        if (cl.hasOption("baseTime")) {
+            populator.setBaseTime(Long.parseLong(cl.getOptionValue("baseTime")));
+        }
+    }
+    
+    /**
+     * The number of threads from the numThreads option. This defaults to one per core for platform threads,
+     * and to a number of concurrent requests similar to the asynchronous client for virtual threads.
+     */
+    private static int getNumThreads(CommandLine cl, ThreadMode threadMode) {
+        if (cl.hasOption("numThreads")) {
+            return Integer.parseInt(cl.getOptionValue("numThreads"));
+        }
+        return threadMode == ThreadMode.VIRTUAL ? DEFAULT_VIRTUAL_THREADS : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static int getMaxRetries(CommandLine cl) {
+        return Integer.parseInt(cl.getOptionValue("maxRetries", Integer.toString(RetryQueue.DEFAULT_MAX_RETRIES)));
+    }
+
+    private static Path getDeadLetterFile(CommandLine cl) {
+        return cl.hasOption("deadLetterFile") ? Paths.get(cl.getOptionValue("deadLetterFile")) : null;
+    }
+
+    /**
+     * An adaptive limiter from the adaptive, latencyTarget and errorRateTarget options, growing to at most
+     * maxInFlight requests in flight, or null without the adaptive option
+     */
+    private static ConcurrencyLimiter getConcurrencyLimiter(CommandLine cl, int maxInFlight) {
+        if (!cl.hasOption("adaptive")) {
+            return null;
+        }
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(Math.max(1, maxInFlight / 4), 1, maxInFlight,
+                Long.parseLong(cl.getOptionValue("latencyTarget", "10")),
+                Double.parseDouble(cl.getOptionValue("errorRateTarget", "0.01")));
+        System.out.println("Using an " + limiter);
+        return limiter;
+    }
+
+    /**
+     * The total number of asynchronous commands to keep in flight from the maxInFlight option, defaulting to
+     * DEFAULT_IN_FLIGHT_PER_NODE for each node in the cluster up to MAX_DEFAULT_IN_FLIGHT
+     */
+    private static int getMaxInFlight(CommandLine cl, IAerospikeClient client) {
+        return cl.hasOption("maxInFlight") ? Integer.parseInt(cl.getOptionValue("maxInFlight"))
+                : Math.min(MAX_DEFAULT_IN_FLIGHT, DEFAULT_IN_FLIGHT_PER_NODE * getNodeCount(client));
+    }
+
+    /**
+     * A client policy for the asynchronous commands. The commands in flight are not divided between the nodes, so
+     * any one node may need a connection for each of them. The pool is sized before connecting, when the number
+     * of nodes is not known, so without the maxInFlight option it covers the largest default of getMaxInFlight.
+     * Connections are only opened as they are needed, so a larger pool costs nothing on a smaller cluster.
+     */
+    private static ClientPolicy getAsyncClientPolicy(CommandLine cl, EventLoops eventLoops) {
+        ClientPolicy clientPolicy = new ClientPolicy();
+        clientPolicy.eventLoops = eventLoops;
+        int maxInFlight = cl.hasOption("maxInFlight") ? Integer.parseInt(cl.getOptionValue("maxInFlight")) : MAX_DEFAULT_IN_FLIGHT;
+        clientPolicy.asyncMaxConnsPerNode = Math.max(clientPolicy.maxConnsPerNode, maxInFlight);
+        return clientPolicy;
+    }
+
+    /**
+     * A client policy with enough connections per node for every thread to have a request in flight to the same node
+     */
+    private static ClientPolicy getClientPolicy(int numThreads) {
+        ClientPolicy clientPolicy = new ClientPolicy();
+        clientPolicy.maxConnsPerNode = Math.max(clientPolicy.maxConnsPerNode, numThreads);
+        return clientPolicy;
+    }
+
+    /**
+     * Write anything the storage engine has buffered, before the client is closed
+     */
+    private static void closeStorageEngine(StorageEngine storageEngine) {
+        if (storageEngine instanceof CoalescingStorageEngine) {
+            ((CoalescingStorageEngine)storageEngine).close();
+        }
+    }
+
+    /**
+     * Build the segment filter from the partner, flagMask and segmentRange options, or return null if none are set
+     */
+    private static SegmentFilter getSegmentFilter(CommandLine cl) {
+        if (!cl.hasOption("partner") && !cl.hasOption("flagMask") && !cl.hasOption("segmentRange")) {
+            return null;
+        }
+        SegmentFilter filter = SegmentFilter.all();
+        if (cl.hasOption("partner")) {
+            filter = filter.withPartnerId(cl.getOptionValue("partner"));
+        }
+        if (cl.hasOption("flagMask")) {
+            filter = filter.withFlags(Long.decode(cl.getOptionValue("flagMask")));
+        }
+        if (cl.hasOption("segmentRange")) {
+            String range = cl.getOptionValue("segmentRange");
+            int dash = range.indexOf('-', 1);
+            if (dash < 0) {
+                throw new IllegalArgumentException("Invalid segment range '" + range + "', expected a format like '100-200'");
+            }
+            filter = filter.withSegmentIdRange(Long.parseLong(range.substring(0, dash).trim()), Long.parseLong(range.substring(dash + 1).trim()));
+        }
+        return filter;
+    }
+
+    private static NativeStorageEngine.KeyMode getKeyMode(CommandLine cl) {
+        String keyMode = cl.getOptionValue("keyMode", "string");
+        try {
+            return NativeStorageEngine.KeyMode.valueOf(keyMode.toUpperCase());
+        }
+        catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Unknown key mode '" + keyMode + "'. Valid key modes are 'string' and 'binary'");
+        }
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Determine the number of nodes in the cluster. The proxy client used for Aerospike Cloud does not expose 
+     * the nodes, so a single node is assumed in that case.
+     * @param client
+     * @return
+     */
+    private static int getNodeCount(IAerospikeClient client) {
+        try {
+            return Math.max(1, client.getNodes().length);
+        }
+        catch (AerospikeException ae) {
+            return 1;
+        }
+    }
+    
+    /**
+     * Create the sinks which metrics are exported to, in addition to the console. The format of the metrics
+     * file is taken from the <code>metricsFormat</code> option, or the file extension if that is not specified.
+     * @param cl
+     * @return
+     * @throws IOException
+     */
+    private static List<MetricsSink> createMetricsSinks(CommandLine cl) throws IOException {
+        List<MetricsSink> sinks = new ArrayList<>();
+        if (cl.hasOption("metricsFile")) {
+            String fileName = cl.getOptionValue("metricsFile");
+            String format = cl.getOptionValue("metricsFormat", fileName.toLowerCase().endsWith(".csv") ? "csv" : "json");
+            switch (format.toLowerCase()) {
+            case "csv":
+                sinks.add(new CsvFileSink(fileName));
+                break;
+            case "json":
+                sinks.add(new JsonLinesFileSink(fileName));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown metrics format '" + format + "'. Valid formats are 'csv' and 'json'");
+            }
+        }
+        if (cl.hasOption("prometheusPort")) {
+            sinks.add(new PrometheusEndpoint(Integer.parseInt(cl.getOptionValue("prometheusPort"))));
+        }
+        return sinks;
+    }
+    
     public static void main(String[] args) throws Exception {
         Log.setCallbackStandard();
         AerospikeConnector connector = new AerospikeConnector();
         Options options = connector.getOptions();
         options.addRequiredOption("c", "command", true, "The commnad to execute. Valid commands are:"
                 + "\t getId -- given an integer key for a device, return the database key\n"
-                + "\t generate -- take the numDevices, numSegments options and optionally the algorithm and numThreads and generate the required number of devices\n"
+                + "\t generate -- take the numDevices, numSegments options and optionally the algorithm and numThreads and batchSize (or async), rate, adaptive, maxRetries and deadLetterFile and generate the required number of devices. "
+                + "The seed and baseTime options make the data reproducible. The devices are generated in chunks of chunkSize devices, "
+                + "and a progressFile lets an interrupted run be resumed\n"
+                + "\t verify -- generate the first numDevices devices again from the seed, baseTime, numSegments and avgSegmentsPerDevice they were generated with and check their active segments in the database\n"
                 + "\t insertSegment -- take a device id, a segment id and a partner id, and insert the segment into the database and remove any expired segments\n"
-                + "\t getSegments -- take the integer key for a device and optionally the algorithm and return the list of active segments for that device"
-                + "\t showSegmentStats -- given an integer key for a device, return the number of active and expired segments\n");
+                + "\t workload -- run a mix of reads, inserts and stats over numDevices devices for a fixed duration. Takes the mix, distribution, warmup, duration, rate, adaptive, maxRetries, deadLetterFile and numThreads (or async and maxInFlight) options\n"
+                + "\t getSegments -- take the integer key for a device and optionally the algorithm and return the list of active segments for that device. "
+                + "The partner, flagMask and segmentRange options filter the segments returned. "
+                + "A comma separated list of devices returns the merged segments of all of them\n"
+                + "\t showSegmentStats -- given an integer key for a device, return the number of active and expired segments\n"
+                + "\t sweep -- remove the expired segments of every device, sweeping numThreads (default 4) partitions in parallel. Takes the recordsPerSecond, progressFile and partitionRange options\n"
+                + "\t matchCampaigns -- given an integer key for a device and a campaign file, list the campaigns the active segments of the device match\n"
+                + "\t import -- insert the segments in a partner file of 'deviceId,segmentId,expiry,flags,partnerId' rows (or JSON lines with the same fields) into the devices. "
+                + "Takes the inputFile, inputFormat, numThreads, batchSize (default 100), adaptive, maxRetries and deadLetterFile options\n"
+                + "\t export -- write the devices set of the algorithm to snapshotFiles (default 16) files of partition ranges in snapshotDir, numThreads (default 4) files at a time. "
+                + "An interrupted export is resumed by running it again. Takes the compress option\n"
+                + "\t restore -- write every snapshot file in snapshotDir back to the database, replacing existing records. Takes the numThreads (default 4) and batchSize (default 100) options\n");
         options.addOption("d", "device", true, "Specify the device id (number) to use in request. The device id will be turned into a true string id.");
         options.addOption("s", "segment", true, "Specify the segment id (number) to use in request");
         options.addOption("p", "partner", true, "Specify the partner id (eg 'www.abcdef.com')");
-        options.addOption("nD", "numDevices", true, "The number of devices to generate");
+        options.addOption("nD", "numDevices", true, "The number of devices to generate, or the number of previously generated devices a workload selects from");
         options.addOption("nS", "numSegments", true, "The number of segment to use when generating. This just constrains the randomly selected segments to this range.");
         options.addOption("aS", "avgSegmentsPerDevice", true, "The average number of segments per device for generation. Defaults to 100");
-        options.addOption("nt", "numThreads", true, "The number of threads to use when generating data. Defaults to one thread per CPU core");
-        options.addOption("alg", "algorithm", true, "Use 'native' (default) for raw Aerospike code or 'mapper' to use the Java Object Mapper. All options which used the database can take this option");
+        options.addOption("nt", "numThreads", true, "The number of threads to use when generating data or running a workload. Defaults to one thread per CPU core");
+        options.addOption("tm", "threadMode", true, "Run the synchronous calls of the generate and workload commands on a pool of 'platform' threads (default) or on 'virtual' threads, "
+                + "one per request in flight, limited by numThreads (which then defaults to " + DEFAULT_VIRTUAL_THREADS + "). Virtual threads need Java 21");
+        options.addOption("se", "seed", true, "The seed devices are generated from. Generating with the same seed, baseTime, numSegments and avgSegmentsPerDevice "
+                + "always gives the same devices. Defaults to a random seed, which is printed");
+        options.addOption("bt", "baseTime", true, "The time, in milliseconds since the epoch, generated segment expiry times are spread around. Defaults to now, which is printed");
+        options.addOption("bs", "batchSize", true, "The number of devices each thread groups into a single batch write when generating data. Defaults to 1 (no batching)");
+        options.addOption("as", "async", false, "Use the asynchronous client on event loops rather than a thread pool when generating data (only supported with the 'native' algorithm) "
+                + "or running a workload (other algorithms run on a bounded pool of threads behind the asynchronous API)");
+        options.addOption("mif", "maxInFlight", true, "The total number of asynchronous commands to keep in flight across the whole cluster when using --async. "
+                + "This is not divided between the nodes, so a node holding hot keys may get most of them. Defaults to 64 times the number of nodes, up to 1024");
+        options.addOption("el", "eventLoops", true, "The number of event loops to use when using --async. Defaults to one event loop per CPU core");
+        options.addOption("mx", "mix", true, "The relative weights of the operations run by the workload command, in the format 'read=80,insert=15,stats=5' (the default). "
+                + "'read' is getActiveSegments, 'insert' is insertSegmentAndRemoveExpired and 'stats' is getCountOfActiveAndExpiredSegments");
+        options.addOption("dist", "distribution", true, "How the workload command selects devices: 'uniform' (default), 'zipf' or 'hotspot'");
+        options.addOption("ze", "zipfExponent", true, "The skew of the 'zipf' distribution. Defaults to 0.99");
+        options.addOption("hsf", "hotSetFraction", true, "The fraction of devices which are hot in the 'hotspot' distribution. Defaults to 0.2");
+        options.addOption("hof", "hotOpsFraction", true, "The fraction of operations which go to hot devices in the 'hotspot' distribution. Defaults to 0.8");
+        options.addOption("r", "rate", true, "Issue the requests of the generate and workload commands at this many per second on a fixed schedule (open loop), "
+                + "measuring latency from when each request was due. Without it each thread issues its next request as soon as the previous one completes (closed loop)");
+        options.addOption("wu", "warmup", true, "The number of seconds the workload runs before measurement starts. Defaults to 10");
+        options.addOption("du", "duration", true, "The number of seconds the workload is measured for. Defaults to 60");
+        options.addOption("mf", "metricsFile", true, "Export the metrics of the generate and workload commands to this file every second, as CSV or JSON lines");
+        options.addOption("mfmt", "metricsFormat", true, "The format of the metrics file: 'csv' or 'json' (JSON lines). Defaults to 'csv' if the file name ends in .csv, otherwise 'json'");
+        options.addOption("pp", "prometheusPort", true, "Serve the metrics of the generate and workload commands in the Prometheus text format on this port, at /metrics");
+        options.addOption("km", "keyMode", true, "Store the device id in the record key as a 'string' (default) or as 16 'binary' bytes. Binary keys are only supported "
+                + "by the 'native' algorithm, and devices must be read with the same key mode they were generated with");
+        options.addOption("pd", "partnerDictionary", false, "Store partner ids as small integers from a shared partner dictionary record rather than as strings. "
+                + "Supported by the 'native' and 'packed' algorithms. Segments written without it can still be read with it");
+        options.addOption("fm", "flagMask", true, "Only return segments with all of these flag bits set from the getSegments command. Takes a decimal or 0x prefixed hex number");
+        options.addOption("sr", "segmentRange", true, "Only return segments with ids in this range from the getSegments command, in the format 'min-max' (max is exclusive)");
+        options.addOption("cw", "coalesceWindow", true, "Buffer the segments inserted into each device for up to this many milliseconds and write them together, in front of the selected algorithm");
+        options.addOption("cs", "coalesceSegments", true, "The most segments buffered for a device before they are written when using --coalesceWindow. Defaults to 100");
+        options.addOption("rps", "recordsPerSecond", true, "The approximate number of records per second the sweep command scans, across all partitions. Defaults to 0 (no limit)");
+        options.addOption("pf", "progressFile", true, "A file the sweep command records each completed partition in, or the generate command each completed chunk of devices in. "
+                + "Partitions or chunks already in the file are skipped, so an interrupted sweep or generate can be resumed");
+        options.addOption("ch", "chunkSize", true, "The number of devices the generate threads take at a time from the shared queue of device ids. "
+                + "Defaults to " + DataPopulator.DEFAULT_CHUNK_SIZE + ", or less if that would give each thread fewer than a few chunks");
+        options.addOption("ad", "adaptive", false, "Adjust the number of requests the generate, import and workload commands keep in flight to what the cluster can take, "
+                + "backing off on timeouts and overload errors. The number of threads or requests in flight becomes the most allowed");
+        options.addOption("lt", "latencyTarget", true, "The highest average latency in milliseconds at which --adaptive still allows more requests in flight. Defaults to 10");
+        options.addOption("er", "errorRateTarget", true, "The highest fraction of failed requests at which --adaptive still allows more requests in flight. Defaults to 0.01");
+        options.addOption("mr", "maxRetries", true, "The most times the generate, import and workload commands retry a write which failed because the cluster was overloaded "
+                + "or briefly unavailable, with an exponential backoff. Defaults to " + RetryQueue.DEFAULT_MAX_RETRIES);
+        options.addOption("dl", "deadLetterFile", true, "A file the generate, import and workload commands append the writes which keep failing to, as JSON lines. "
+                + "The segments in it can be imported with '-c import --inputFormat json'");
+        options.addOption("pr", "partitionRange", true, "The partitions the sweep command sweeps, in the format 'first-last' (last is exclusive). Defaults to all partitions, 0-4096");
+        options.addOption("if", "inputFile", true, "The partner segment file read by the import command");
+        options.addOption("ifmt", "inputFormat", true, "The format of the import file: 'csv' or 'json' (JSON lines). Defaults to 'json' if the file name ends in .json, .jsonl or .ndjson, otherwise 'csv'");
+        options.addOption("sd", "snapshotDir", true, "The directory the export command writes snapshot files to and the restore command reads them from");
+        options.addOption("sfc", "snapshotFiles", true, "The number of files, each holding a range of partitions, the export command writes. Defaults to 16");
+        options.addOption("z", "compress", false, "Compress the snapshot files written by the export command with gzip");
+        options.addOption("cf", "campaignFile", true, "A file of campaigns for the matchCampaigns command, one per line in the format 'id: expression', for example '17: (12 AND 40) OR NOT 99'");
+        options.addOption("nc", "nearCache", true, "Cache the active segments of up to this many devices in the client, in front of the selected algorithm");
+        options.addOption("nct", "nearCacheTtl", true, "The longest time in milliseconds the near cache holds the segments of a device. Defaults to 1000");
+        options.addOption("alg", "algorithm", true, "Use 'native' (default) for raw Aerospike code, 'mapper' to use the Java Object Mapper or 'packed' to store the segments "
+                + "of each device as a compact blob. All options which used the database can take this option");
         if (args.length == 0) {
             usage(options);
         }
         CommandLineParser parser = new DefaultParser();
         CommandLine cl = parser.parse(options, args, true);
         String command = cl.getOptionValue("command");
-
+        List<MetricsSink> metricsSinks = createMetricsSinks(cl);
+        try {
+            runCommand(command, cl, options, connector, metricsSinks);
+        }
+        finally {
+            for (MetricsSink sink : metricsSinks) {
+                sink.close();
+            }
+        }
+    }
+    
+    private static void runCommand(String command, CommandLine cl, Options options, AerospikeConnector connector, List<MetricsSink> metricsSinks) throws Exception {
         switch (command.toLowerCase()) {
         case "getid":
             checkRequiredParameters(cl, options, command.toLowerCase(), "device");
             long id = Long.parseLong(cl.getOptionValue("device"));
             String key = Device.idToString(id);
-            System.out.printf("Device with id %d maps to a database key of %s\n", id, key);
+            if (getKeyMode(cl) == NativeStorageEngine.KeyMode.BINARY) {
+                System.out.printf("Device with id %d maps to a binary database key of %s\n", id, toHexString(DeviceIdCodec.toBytes(id)));
+            }
+            else {
+                System.out.printf("Device with id %d maps to a database key of %s\n", id, key);
+            }
             return;
             
         case "generate":
             checkRequiredParameters(cl, options, command.toLowerCase(), "numDevices", "numSegments");
             checkConnectionOptions(connector, cl, options);
+            if (cl.hasOption("async")) {
+                if (!"native".equalsIgnoreCase(cl.getOptionValue("algorithm", "native"))) {
+                    System.out.println("Asynchronous generation is only supported with the native algorithm");
+                    usage(options);
+                }
+                int numEventLoops = Integer.parseInt(cl.getOptionValue("eventLoops", 
+                        Integer.toString(Runtime.getRuntime().availableProcessors())));
+                EventLoops eventLoops = new NioEventLoops(new EventPolicy(), numEventLoops);
+                try (IAerospikeClient client = connector.connect(getAsyncClientPolicy(cl, eventLoops))) {
+                    int maxInFlight = getMaxInFlight(cl, client);
+                    StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
+                    DataPopulator populator = new DataPopulator(storageEngine);
+                    metricsSinks.forEach(populator::addMetricsSink);
+                    populator.setRate(Double.parseDouble(cl.getOptionValue("rate", "0")));
+                    setSeed(cl, populator);
+                    populator.setConcurrencyLimiter(getConcurrencyLimiter(cl, maxInFlight));
+                    populator.setRetries(getMaxRetries(cl), getDeadLetterFile(cl));
+                    populator.generateDevicesAsync(
+                            eventLoops,
+                            Long.parseLong(cl.getOptionValue("numSegments")),
+                            Long.parseLong(cl.getOptionValue("numDevices")),
+                            Long.parseLong(cl.getOptionValue("avgSegmentsPerDevice", "100")),
+                            maxInFlight,
+                            Integer.parseInt(cl.getOptionValue("chunkSize", "0")),
+                            cl.hasOption("progressFile") ? Paths.get(cl.getOptionValue("progressFile")) : null);
+                }
+                finally {
+                    eventLoops.close();
+                }
+            }
+            else {
+                ThreadMode threadMode = getThreadMode(cl);
+                int numThreads = getNumThreads(cl, threadMode);
+                try (IAerospikeClient client = connector.connect(getClientPolicy(numThreads))) {
+                    StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
+                    DataPopulator populator = new DataPopulator(storageEngine);
+                    metricsSinks.forEach(populator::addMetricsSink);
+                    populator.setRate(Double.parseDouble(cl.getOptionValue("rate", "0")));
+                    setSeed(cl, populator);
+                    populator.setConcurrencyLimiter(getConcurrencyLimiter(cl, numThreads));
+                    populator.setRetries(getMaxRetries(cl), getDeadLetterFile(cl));
+                    populator.generateDevices(
+                            Long.parseLong(cl.getOptionValue("numSegments")),
+                            Long.parseLong(cl.getOptionValue("numDevices")),
+                            Long.parseLong(cl.getOptionValue("avgSegmentsPerDevice", "100")),
+                            numThreads,
+                            Integer.parseInt(cl.getOptionValue("batchSize", "1")),
+                            threadMode,
+                            Integer.parseInt(cl.getOptionValue("chunkSize", "0")),
+                            cl.hasOption("progressFile") ? Paths.get(cl.getOptionValue("progressFile")) : null);
+                }
+            }
+            break;
+            
+        case "verify":
+            checkRequiredParameters(cl, options, command.toLowerCase(), "numDevices", "numSegments", "seed", "baseTime");
+            checkConnectionOptions(connector, cl, options);
+            long mismatches;
             try (IAerospikeClient client = connector.connect()) {
                 StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
                 DataPopulator populator = new DataPopulator(storageEngine);
-                int numThreads;
-                if (cl.hasOption("numThreads")) {
-                    numThreads = Integer.parseInt(cl.getOptionValue("numThreads"));
+                setSeed(cl, populator);
+                mismatches = populator.verifyDevices(
+                        Long.parseLong(cl.getOptionValue("numSegments")),
+                        Long.parseLong(cl.getOptionValue("numDevices")),
+                        Long.parseLong(cl.getOptionValue("avgSegmentsPerDevice", "100")));
+                closeStorageEngine(storageEngine);
+            }
+            if (mismatches > 0) {
+                System.exit(1);
+            }
+            break;
+            
+        case "workload":
+            checkRequiredParameters(cl, options, command.toLowerCase(), "numDevices");
+            checkConnectionOptions(connector, cl, options);
+            ThreadMode workloadThreadMode = getThreadMode(cl);
+            int workloadThreads = getNumThreads(cl, workloadThreadMode);
+            ClientPolicy workloadPolicy = getClientPolicy(workloadThreads);
+            EventLoops workloadEventLoops = null;
+            if (cl.hasOption("async")) {
+                workloadEventLoops = new NioEventLoops(new EventPolicy(), Integer.parseInt(cl.getOptionValue("eventLoops", 
+                        Integer.toString(Runtime.getRuntime().availableProcessors()))));
+                ClientPolicy asyncPolicy = getAsyncClientPolicy(cl, workloadEventLoops);
+                workloadPolicy.eventLoops = asyncPolicy.eventLoops;
+                workloadPolicy.asyncMaxConnsPerNode = asyncPolicy.asyncMaxConnsPerNode;
+            }
+            try (IAerospikeClient client = connector.connect(workloadPolicy)) {
+                StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
+                KeyDistribution distribution = KeyDistribution.create(
+                        cl.getOptionValue("distribution", "uniform"),
+                        Long.parseLong(cl.getOptionValue("numDevices")),
+                        Double.parseDouble(cl.getOptionValue("zipfExponent", "0.99")),
+                        Double.parseDouble(cl.getOptionValue("hotSetFraction", "0.2")),
+                        Double.parseDouble(cl.getOptionValue("hotOpsFraction", "0.8")));
+                WorkloadDriver driver = new WorkloadDriver(storageEngine, 
+                        distribution,
+                        WorkloadDriver.OperationMix.parse(cl.getOptionValue("mix", "read=80,insert=15,stats=5")),
+                        Long.parseLong(cl.getOptionValue("numSegments", "10000")),
+                        cl.getOptionValue("partner", "www.google.com"));
+                metricsSinks.forEach(driver::addMetricsSink);
+                driver.setRate(Double.parseDouble(cl.getOptionValue("rate", "0")));
+                driver.setRetries(getMaxRetries(cl), getDeadLetterFile(cl));
+                StorageEngine engine = storageEngine;
+                if (engine instanceof CoalescingStorageEngine) {
+                    ((CoalescingStorageEngine)engine).getMetrics().forEach(driver::addMetric);
+                    engine = ((CoalescingStorageEngine)engine).getDelegate();
+                }
+                if (engine instanceof NearCacheStorageEngine) {
+                    ((NearCacheStorageEngine)engine).getMetrics().forEach(driver::addMetric);
+                }
+                int warmup = Integer.parseInt(cl.getOptionValue("warmup", "10"));
+                int duration = Integer.parseInt(cl.getOptionValue("duration", "60"));
+                if (cl.hasOption("async")) {
+                    // Engines without an asynchronous client path run their blocking calls on a bounded pool
+                    int maxInFlight = getMaxInFlight(cl, client);
+                    AsyncStorageEngine asyncEngine = storageEngine instanceof AsyncStorageEngine ? (AsyncStorageEngine)storageEngine
+                            : new OffloadingAsyncStorageEngine(storageEngine, maxInFlight, maxInFlight);
+                    driver.setConcurrencyLimiter(getConcurrencyLimiter(cl, maxInFlight));
+                    driver.runAsync(asyncEngine, maxInFlight, warmup, duration);
+                    if (asyncEngine instanceof OffloadingAsyncStorageEngine) {
+                        ((OffloadingAsyncStorageEngine)asyncEngine).close();
+                    }
                 }
                 else {
-                    numThreads = Runtime.getRuntime().availableProcessors();
+                    driver.setConcurrencyLimiter(getConcurrencyLimiter(cl, workloadThreads));
+                    driver.run(workloadThreads, warmup, duration, workloadThreadMode);
+                }
+                closeStorageEngine(storageEngine);
+            }
+            finally {
+                if (workloadEventLoops != null) {
+                    workloadEventLoops.close();
                 }
-                populator.generateDevices(
-                        Long.parseLong(cl.getOptionValue("numSegments")),
-                        Long.parseLong(cl.getOptionValue("numDevices")),
-                        Long.parseLong(cl.getOptionValue("avgSegmentsPerDevice", "100")),
-                        numThreads);
             }
             break;
             
@@ -130,6 +590,7 @@ public class RealTimeBidding {
                 long epoch = new Date().getTime() + TimeUnit.DAYS.toMillis(DataPopulator.DAYS_TO_KEEP_SEGMENTS);
                 storageEngine.insertSegmentAndRemoveExpired(Device.idToString(deviceId), 
                         new SegmentInstance(segmentId, new Date(epoch), 1, partner));
+                closeStorageEngine(storageEngine);
                 System.out.println("Successfully inserted");
             }
             break;
@@ -139,8 +600,27 @@ public class RealTimeBidding {
             checkConnectionOptions(connector, cl, options);
             try (IAerospikeClient client = connector.connect()) {
                 StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
-                long thisId = Long.parseLong(cl.getOptionValue("device")); 
-                List<SegmentInstance> results = storageEngine.getActiveSegments(Device.idToString(thisId));
+                SegmentFilter filter = getSegmentFilter(cl);
+                List<SegmentInstance> results;
+                String[] deviceIds = cl.getOptionValue("device").split(",");
+                if (deviceIds.length > 1) {
+                    // Several identities of the same user are merged in a single batch read
+                    List<String> ids = new ArrayList<>();
+                    for (String deviceId : deviceIds) {
+                        ids.add(Device.idToString(Long.parseLong(deviceId.trim())));
+                    }
+                    results = new ArrayList<>();
+                    for (SegmentInstance segment : storageEngine.getActiveSegments(ids)) {
+                        if (filter == null || filter.matches(segment)) {
+                            results.add(segment);
+                        }
+                    }
+                }
+                else {
+                    long thisId = Long.parseLong(cl.getOptionValue("device").trim()); 
+                    results = filter == null ? storageEngine.getActiveSegments(Device.idToString(thisId))
+                            : storageEngine.getActiveSegments(Device.idToString(thisId), filter);
+                }
                 if (results != null) {
                     int count= 0;
                     for (SegmentInstance segment : results) {
@@ -161,6 +641,101 @@ public class RealTimeBidding {
                         Device.idToString(deviceId), record.getLong("active"), record.getLong("expired"));
             }
             break;
+
+        case "sweep":
+            checkConnectionOptions(connector, cl, options);
+            if ("packed".equalsIgnoreCase(cl.getOptionValue("algorithm", "native"))) {
+                throw new IllegalArgumentException("The sweep command only supports the map layout of the native and mapper algorithms");
+            }
+            try (IAerospikeClient client = connector.connect()) {
+                ExpiredSegmentSweeper sweeper = new ExpiredSegmentSweeper(client, connector.isUseCloud() ? "aerospike_cloud" : "test", "devices");
+                metricsSinks.forEach(sweeper::addMetricsSink);
+                int firstPartition = 0;
+                int partitionCount = 4096;
+                if (cl.hasOption("partitionRange")) {
+                    String range = cl.getOptionValue("partitionRange");
+                    int dash = range.indexOf('-');
+                    if (dash < 0) {
+                        throw new IllegalArgumentException("Invalid partition range '" + range + "', expected a format like '0-1024'");
+                    }
+                    firstPartition = Integer.parseInt(range.substring(0, dash).trim());
+                    partitionCount = Integer.parseInt(range.substring(dash + 1).trim()) - firstPartition;
+                }
+                sweeper.sweep(firstPartition, partitionCount,
+                        Integer.parseInt(cl.getOptionValue("numThreads", "4")),
+                        Integer.parseInt(cl.getOptionValue("recordsPerSecond", "0")),
+                        cl.hasOption("progressFile") ? Paths.get(cl.getOptionValue("progressFile")) : null);
+            }
+            break;
+
+        case "matchcampaigns":
+            checkRequiredParameters(cl, options, command.toLowerCase(), "device", "campaignFile");
+            checkConnectionOptions(connector, cl, options);
+            List<Campaign> campaigns = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get(cl.getOptionValue("campaignFile")))) {
+                if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+                    campaigns.add(Campaign.parse(line));
+                }
+            }
+            TargetingIndex.Matcher matcher = TargetingIndex.compile(campaigns).newMatcher();
+            try (IAerospikeClient client = connector.connect()) {
+                StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
+                long deviceId = Long.parseLong(cl.getOptionValue("device"));
+                List<SegmentInstance> segments = storageEngine.getActiveSegments(Device.idToString(deviceId));
+                int count = matcher.match(SegmentBitmap.fromSegments(segments == null ? new ArrayList<>() : segments));
+                System.out.printf("Device id %s with %d active segments matches %d of %d campaigns\n",
+                        Device.idToString(deviceId), segments == null ? 0 : segments.size(), count, campaigns.size());
+                for (int i = 0; i < count; i++) {
+                    System.out.printf("%d\n", matcher.getMatch(i));
+                }
+            }
+            break;
+
+        case "import":
+            checkRequiredParameters(cl, options, command.toLowerCase(), "inputFile");
+            checkConnectionOptions(connector, cl, options);
+            try (IAerospikeClient client = connector.connect()) {
+                StorageEngine storageEngine = getStorageEngine(cl, client, connector.isUseCloud());
+                SegmentImporter importer = new SegmentImporter(storageEngine);
+                metricsSinks.forEach(importer::addMetricsSink);
+                Path inputFile = Paths.get(cl.getOptionValue("inputFile"));
+                int importThreads = Integer.parseInt(cl.getOptionValue("numThreads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+                importer.setConcurrencyLimiter(getConcurrencyLimiter(cl, importThreads));
+                importer.setRetries(getMaxRetries(cl), getDeadLetterFile(cl));
+                importer.importFile(inputFile, SegmentImporter.Format.get(cl.getOptionValue("inputFormat"), inputFile),
+                        importThreads,
+                        Integer.parseInt(cl.getOptionValue("batchSize", "100")),
+                        SegmentImporter.DEFAULT_CHUNK_SIZE);
+                closeStorageEngine(storageEngine);
+            }
+            break;
+
+        case "export":
+            checkRequiredParameters(cl, options, command.toLowerCase(), "snapshotDir");
+            checkConnectionOptions(connector, cl, options);
+            try (IAerospikeClient client = connector.connect()) {
+                DeviceSnapshot snapshot = new DeviceSnapshot(client, connector.isUseCloud() ? "aerospike_cloud" : "test");
+                metricsSinks.forEach(snapshot::addMetricsSink);
+                snapshot.export("packed".equalsIgnoreCase(cl.getOptionValue("algorithm", "native")) ? "packedDevices" : "devices",
+                        Paths.get(cl.getOptionValue("snapshotDir")),
+                        Integer.parseInt(cl.getOptionValue("snapshotFiles", "16")),
+                        Integer.parseInt(cl.getOptionValue("numThreads", "4")),
+                        cl.hasOption("compress"));
+            }
+            break;
+
+        case "restore":
+            checkRequiredParameters(cl, options, command.toLowerCase(), "snapshotDir");
+            checkConnectionOptions(connector, cl, options);
+            try (IAerospikeClient client = connector.connect()) {
+                DeviceSnapshot snapshot = new DeviceSnapshot(client, connector.isUseCloud() ? "aerospike_cloud" : "test");
+                metricsSinks.forEach(snapshot::addMetricsSink);
+                snapshot.restore(Paths.get(cl.getOptionValue("snapshotDir")),
+                        Integer.parseInt(cl.getOptionValue("numThreads", "4")),
+                        Integer.parseInt(cl.getOptionValue("batchSize", "100")));
+            }
+            break;
+
         default:
             System.out.printf("Unknown command: \"%s\"\n", command.toLowerCase());
             usage(options);
@@ -0,0 +1,427 @@
+package com.aerospike.usecases.rtb;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.json.simple.JSONValue;
+
+import com.aerospike.client.Log;
+import com.aerospike.client.ResultCode;
+import com.aerospike.usecases.common.MonitorMetric;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.GaugeMetric;
+import com.aerospike.usecases.common.MonitorMetric.RateMetric;
+import com.aerospike.usecases.common.MonitorMetric.ResultCodeMetric;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Retries writes which failed because the cluster was overloaded or briefly unavailable, and records the writes
+ * which keep failing in a dead-letter file rather than losing them.
+ * <p/>
+ * A write which failed with a retryable result code, such as <code>DEVICE_OVERLOAD</code>, <code>KEY_BUSY</code>
+ * or a timeout, is attempted again after an exponential backoff with jitter: the n-th retry waits a random time
+ * between half and all of <code>INITIAL_BACKOFF_MS * 2^(n-1)</code>, capped at <code>MAX_BACKOFF_MS</code>, so the
+ * writes which failed together during an incident do not all come back at the same moment. The writes are
+ * retried on a small pool of threads, so the threads which issued them carry on with new work. Only writes
+ * which can be repeated safely are retried: a device save replaces the whole device and inserting a segment
+ * which is already there changes nothing, so a write which timed out but actually succeeded does no harm.
+ * <p/>
+ * The queue is bounded. A write which fails with a result code which is not retryable, runs out of retries, or
+ * fails while the queue is full is written to the dead-letter file as JSON lines, one line per segment, with the
+ * <code>deviceId, segmentId, expiry, flags</code> and <code>partnerId</code> fields the import command reads.
+ * The file can therefore be imported once the cluster has recovered. Each line also holds the operation, the
+ * result code and the number of attempts.
+ */
+public class RetryQueue implements Closeable {
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final int DEFAULT_CAPACITY = 10_000;
+    public static final long INITIAL_BACKOFF_MS = 10;
+    public static final long MAX_BACKOFF_MS = 2_000;
+    private static final int MAX_THREADS = 32;
+
+    /**
+     * A write which can be attempted again
+     */
+    @FunctionalInterface
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * Told when a write handed to the queue is finished with, either because a retry succeeded or because the
+     * write was given up on and written to the dead-letter file
+     */
+    @FunctionalInterface
+    public interface Completion {
+        void done(boolean success);
+    }
+
+    private static class Entry {
+        private final String operation;
+        private final String deviceId;
+        private final Supplier<List<SegmentInstance>> segments;
+        private final Operation retry;
+        private final Completion completion;
+        private int attempts = 1;
+        private int resultCode;
+
+        Entry(String operation, String deviceId, Supplier<List<SegmentInstance>> segments, Operation retry, Completion completion) {
+            this.operation = operation;
+            this.deviceId = deviceId;
+            this.segments = segments;
+            this.retry = retry;
+            this.completion = completion;
+        }
+    }
+
+    private final ErrorTracker errors;
+    private final int maxRetries;
+    private final int capacity;
+    private final Path deadLetterFile;
+    private final BufferedWriter deadLetterWriter;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final AtomicInteger pending = new AtomicInteger();
+    // Tasks handed over by execute which have not finished
+    private final AtomicInteger tasks = new AtomicInteger();
+    // The writes and tasks waiting for a thread, which close takes over if they never get one
+    private final Set<Entry> queued = ConcurrentHashMap.newKeySet();
+    private final Set<Task> unstarted = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+    private final RateMetric retries = new RateMetric("retries", "Writes retried after a retryable failure");
+    private final CounterMetric deadLetters = new CounterMetric("deadLetters", "Writes given up on and written to the dead-letter file");
+    private final GaugeMetric pendingRetries = new GaugeMetric("retryQueue", "Writes waiting to be retried", () -> pending.get());
+
+    /**
+     * Create a queue
+     * @param errors - the tracker the failures of retries are recorded in
+     * @param maxRetries - the most times a write is retried after its first attempt, 0 to never retry
+     * @param capacity - the most writes waiting to be retried at once
+     * @param threads - the number of threads the writes are retried on, which is capped at a small number
+     * @param deadLetterFile - the file writes which are given up on are appended to, or null to only count them
+     * @throws IOException if the dead-letter file cannot be opened
+     */
+    public RetryQueue(ErrorTracker errors, int maxRetries, int capacity, int threads, Path deadLetterFile) throws IOException {
+        if (maxRetries < 0 || capacity <= 0) {
+            throw new IllegalArgumentException(String.format("The number of retries cannot be negative and the capacity must be positive, not %d and %d",
+                    maxRetries, capacity));
+        }
+        this.errors = errors;
+        this.maxRetries = maxRetries;
+        this.capacity = capacity;
+        this.deadLetterFile = deadLetterFile;
+        this.deadLetterWriter = deadLetterFile == null ? null : Files.newBufferedWriter(deadLetterFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, Math.min(MAX_THREADS, threads)), runnable -> {
+            Thread thread = new Thread(runnable, "Retry-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Whether a write which failed with this result code may succeed if it is attempted again later, because the
+     * cluster or the client was overloaded or a node was briefly unavailable
+     */
+    public static boolean isRetryable(int resultCode) {
+        switch (resultCode) {
+        case ResultCode.SERVER_NOT_AVAILABLE:
+        case ResultCode.PARTITION_UNAVAILABLE:
+        case ResultCode.INVALID_NODE_ERROR:
+        case ResultCode.NO_RESPONSE:
+        case ResultCode.MAX_RETRIES_EXCEEDED:
+            return true;
+        default:
+            return ConcurrencyLimiter.isOverload(resultCode);
+        }
+    }
+
+    /**
+     * Return the metrics of the queue: the writes retried, the writes given up on and the writes waiting to be retried
+     * @return
+     */
+    public List<MonitorMetric> getMetrics() {
+        List<MonitorMetric> metrics = new ArrayList<>();
+        metrics.add(retries);
+        metrics.add(deadLetters);
+        metrics.add(pendingRetries);
+        return metrics;
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetters.get();
+    }
+
+    /**
+     * Run a task on a retry thread. A failure reported on an event loop should be handed to <code>failed</code>
+     * this way, as recording it may log a warning and giving up on it writes to the dead-letter file, neither of
+     * which may block the event loop. <code>awaitIdle</code> waits for these tasks as well.
+     * @param task
+     */
+    public void execute(Runnable task) {
+        tasks.incrementAndGet();
+        Task handedOver = new Task(task);
+        unstarted.add(handedOver);
+        try {
+            scheduler.execute(handedOver);
+        }
+        catch (RejectedExecutionException e) {
+            // The queue has been closed, so run it here
+            handedOver.run();
+        }
+    }
+
+    /**
+     * A task passed to <code>execute</code>, which is run by whichever of a retry thread or <code>close</code>
+     * gets to it first
+     */
+    private class Task implements Runnable {
+        private final Runnable task;
+
+        Task(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (!unstarted.remove(this)) {
+                return;
+            }
+            try {
+                task.run();
+            }
+            finally {
+                decrement(tasks);
+            }
+        }
+    }
+
+    /**
+     * Handle the failure of the first attempt at a write. The failure is recorded, then the write is either
+     * queued to be retried or written to the dead-letter file. The completion is called once the write is
+     * finished with, which may be straight away on this thread or later on a retry thread.
+     * @param operation - the storage engine operation, for example <code>saveDevice</code>
+     * @param deviceId - the device written
+     * @param segments - supplies the segments written, and is only called if the write is given up on, so a
+     * caller which has re-used the buffers the segments were in can generate them again. Every line in the
+     * dead-letter file needs a segment for the file to be imported.
+     * @param error - the exception the write failed with
+     * @param retry - attempts the write again, throwing an exception if it fails
+     * @param completion - told whether the write eventually succeeded, or null
+     */
+    public void failed(String operation, String deviceId, Supplier<List<SegmentInstance>> segments, Throwable error, Operation retry, Completion completion) {
+        int resultCode = errors.record(operation, deviceId, error);
+        handle(new Entry(operation, deviceId, segments, retry, completion), resultCode);
+    }
+
+    /**
+     * Handle the failure of one record of a batch write. See <code>failed</code>.
+     * @param resultCode - the <code>ResultCode</code> of the record
+     */
+    public void failed(String operation, String deviceId, Supplier<List<SegmentInstance>> segments, int resultCode, Operation retry, Completion completion) {
+        errors.record(operation, deviceId, resultCode);
+        handle(new Entry(operation, deviceId, segments, retry, completion), resultCode);
+    }
+
+    /**
+     * Handle the failure of the first attempt at a write which the caller has already recorded in an
+     * <code>ErrorTracker</code> of its own. See <code>failed</code>.
+     * @param resultCode - the <code>ResultCode</code> the write failed with
+     */
+    public void retry(String operation, String deviceId, Supplier<List<SegmentInstance>> segments, int resultCode, Operation retry, Completion completion) {
+        handle(new Entry(operation, deviceId, segments, retry, completion), resultCode);
+    }
+
+    private void handle(Entry entry, int resultCode) {
+        entry.resultCode = resultCode;
+        if (closed || !isRetryable(resultCode) || entry.attempts > maxRetries) {
+            giveUp(entry);
+            complete(entry, false);
+            return;
+        }
+        if (pending.incrementAndGet() > capacity) {
+            pending.decrementAndGet();
+            giveUp(entry);
+            complete(entry, false);
+            return;
+        }
+        schedule(entry);
+    }
+
+    private void schedule(Entry entry) {
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(30, entry.attempts - 1));
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        queued.add(entry);
+        try {
+            scheduler.schedule(() -> attempt(entry), delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            // The queue has been closed, so there will be no retry
+            if (queued.remove(entry)) {
+                giveUp(entry);
+                finish(entry, false);
+            }
+        }
+    }
+
+    private void attempt(Entry entry) {
+        if (!queued.remove(entry)) {
+            // Already given up on by close
+            return;
+        }
+        retries.increment();
+        entry.attempts++;
+        try {
+            entry.retry.run();
+        }
+        catch (Exception e) {
+            entry.resultCode = errors.record(entry.operation, entry.deviceId, e);
+            if (isRetryable(entry.resultCode) && entry.attempts <= maxRetries) {
+                schedule(entry);
+                return;
+            }
+            giveUp(entry);
+            finish(entry, false);
+            return;
+        }
+        finish(entry, true);
+    }
+
+    private void complete(Entry entry, boolean success) {
+        if (entry.completion != null) {
+            entry.completion.done(success);
+        }
+    }
+
+    /**
+     * Complete a write which was queued
+     */
+    private void finish(Entry entry, boolean success) {
+        try {
+            complete(entry, success);
+        }
+        finally {
+            decrement(pending);
+        }
+    }
+
+    private void decrement(AtomicInteger counter) {
+        if (counter.decrementAndGet() == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Write a write which will not be retried to the dead-letter file. The caller completes it.
+     */
+    private void giveUp(Entry entry) {
+        deadLetters.increment();
+        if (deadLetterWriter != null) {
+            writeDeadLetter(entry, entry.resultCode);
+        }
+    }
+
+    private void writeDeadLetter(Entry entry, int resultCode) {
+        List<SegmentInstance> segments = entry.segments.get();
+        if (segments == null || segments.isEmpty()) {
+            // Still record the device, although this line cannot be imported
+            segments = Collections.singletonList(null);
+        }
+        StringBuilder lines = new StringBuilder();
+        for (SegmentInstance segment : segments) {
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("deviceId", entry.deviceId);
+            if (segment != null) {
+                line.put("segmentId", segment.getSegmentId());
+                if (segment.getExpiry() != null) {
+                    line.put("expiry", segment.getExpiry().getTime());
+                }
+                line.put("flags", segment.getFlags());
+                if (segment.getPartnerId() != null) {
+                    line.put("partnerId", segment.getPartnerId());
+                }
+            }
+            line.put("operation", entry.operation);
+            line.put("resultCode", resultCode);
+            line.put("error", ResultCodeMetric.getName(resultCode));
+            line.put("attempts", entry.attempts);
+            lines.append(JSONValue.toJSONString(line)).append('\n');
+        }
+        synchronized (deadLetterWriter) {
+            try {
+                deadLetterWriter.write(lines.toString());
+                deadLetterWriter.flush();
+            }
+            catch (IOException e) {
+                Log.warn(String.format("Could not write device %s to the dead-letter file %s: %s", entry.deviceId, deadLetterFile, e));
+            }
+        }
+    }
+
+    /**
+     * Wait until every queued write has either succeeded or been given up on, and every task passed to
+     * <code>execute</code> has run
+     * @throws InterruptedException
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (pending.get() > 0 || tasks.get() > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Stop retrying and close the dead-letter file. The tasks passed to <code>execute</code> which have not run
+     * are run on this thread, and the writes still waiting to be retried are given up on and written to the
+     * dead-letter file, so nothing is lost if, for example, the run is stopped by an error. Call
+     * <code>awaitIdle</code> first to give the writes their retries.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        scheduler.shutdownNow();
+        try {
+            // Let the retries in progress finish, as they may queue writes again
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Task task : new ArrayList<>(unstarted)) {
+            task.run();
+        }
+        for (Entry entry : new ArrayList<>(queued)) {
+            if (queued.remove(entry)) {
+                giveUp(entry);
+                finish(entry, false);
+            }
+        }
+        if (deadLetterWriter != null) {
+            synchronized (deadLetterWriter) {
+                deadLetterWriter.close();
+            }
+            if (deadLetters.get() > 0) {
+                System.out.printf("%,d writes which could not be completed were written to %s\n", deadLetters.get(), deadLetterFile);
+            }
+        }
+    }
+}
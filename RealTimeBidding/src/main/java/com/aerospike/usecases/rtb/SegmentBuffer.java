@@ -0,0 +1,107 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * A reusable holder for the segments of one device as primitive arrays, in ascending segment id order with no
+ * duplicates. It is filled by <code>SegmentGenerator</code> and can be saved by <code>NativeStorageEngine</code>
+ * without creating a <code>SegmentInstance</code> or a <code>Date</code> per segment. Once cleared the arrays
+ * are re-used for the next device, so they only grow to the largest device seen.
+ * <p/>
+ * Instances are not thread safe, use one per thread.
+ */
+public class SegmentBuffer {
+    private long[] segmentIds;
+    private long[] expiries;
+    private long[] flags;
+    private String[] partnerIds;
+    private int size;
+
+    public SegmentBuffer() {
+        this(16);
+    }
+
+    public SegmentBuffer(int initialCapacity) {
+        initialCapacity = Math.max(1, initialCapacity);
+        this.segmentIds = new long[initialCapacity];
+        this.expiries = new long[initialCapacity];
+        this.flags = new long[initialCapacity];
+        this.partnerIds = new String[initialCapacity];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Add a segment to the end of the buffer
+     * @param segmentId - the segment id, which must be greater than the id of the last segment added
+     * @param expiry - the expiry in milliseconds since the epoch
+     * @param flags
+     * @param partnerId
+     */
+    public void add(long segmentId, long expiry, long flags, String partnerId) {
+        if (size > 0 && segmentId <= segmentIds[size-1]) {
+            throw new IllegalArgumentException(String.format("Segments must be added in ascending order of segment id, but %d follows %d",
+                    segmentId, segmentIds[size-1]));
+        }
+        if (size == segmentIds.length) {
+            int capacity = size * 2;
+            segmentIds = Arrays.copyOf(segmentIds, capacity);
+            expiries = Arrays.copyOf(expiries, capacity);
+            this.flags = Arrays.copyOf(this.flags, capacity);
+            partnerIds = Arrays.copyOf(partnerIds, capacity);
+        }
+        segmentIds[size] = segmentId;
+        expiries[size] = expiry;
+        this.flags[size] = flags;
+        partnerIds[size] = partnerId;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getSegmentId(int index) {
+        return segmentIds[index];
+    }
+
+    public long getExpiry(int index) {
+        return expiries[index];
+    }
+
+    public long getFlags(int index) {
+        return flags[index];
+    }
+
+    public String getPartnerId(int index) {
+        return partnerIds[index];
+    }
+
+    /**
+     * Find the segment with this id
+     * @param segmentId
+     * @return The index of the segment, or a negative number if there is none
+     */
+    public int indexOf(long segmentId) {
+        return Arrays.binarySearch(segmentIds, 0, size, segmentId);
+    }
+
+    /**
+     * Convert the segments to objects, for storage engines which have no primitive save path
+     * @return
+     */
+    public List<SegmentInstance> toSegments() {
+        List<SegmentInstance> segments = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            segments.add(new SegmentInstance(segmentIds[i], new Date(expiries[i]), flags[i], partnerIds[i]));
+        }
+        return segments;
+    }
+}
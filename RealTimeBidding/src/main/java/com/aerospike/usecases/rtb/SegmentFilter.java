@@ -0,0 +1,137 @@
+package com.aerospike.usecases.rtb;
+
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Selects a subset of the active segments of a device, for example those of one partner or those with certain
+ * flags set. Filters are immutable, each <code>with</code> method returns a new filter with the extra condition.
+ * A segment must satisfy every condition of the filter to be selected.
+ * <pre>
+ * SegmentFilter filter = SegmentFilter.all().withPartnerId("www.google.com").withFlags(0x3);
+ * </pre>
+ */
+public final class SegmentFilter {
+    private static final SegmentFilter ALL = new SegmentFilter(null, 0, Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private final String partnerId;
+    private final long requiredFlags;
+    private final long minSegmentId;
+    private final long maxSegmentId;
+
+    private SegmentFilter(String partnerId, long requiredFlags, long minSegmentId, long maxSegmentId) {
+        this.partnerId = partnerId;
+        this.requiredFlags = requiredFlags;
+        this.minSegmentId = minSegmentId;
+        this.maxSegmentId = maxSegmentId;
+    }
+
+    /**
+     * A filter which selects every active segment
+     * @return
+     */
+    public static SegmentFilter all() {
+        return ALL;
+    }
+
+    /**
+     * Only select segments from the passed partner
+     * @param partnerId
+     * @return
+     */
+    public SegmentFilter withPartnerId(String partnerId) {
+        return new SegmentFilter(partnerId, requiredFlags, minSegmentId, maxSegmentId);
+    }
+
+    /**
+     * Only select segments which have all of the passed flag bits set
+     * @param flagMask
+     * @return
+     */
+    public SegmentFilter withFlags(long flagMask) {
+        return new SegmentFilter(partnerId, flagMask, minSegmentId, maxSegmentId);
+    }
+
+    /**
+     * Only select segments with ids in the passed range
+     * @param minSegmentId - the lowest segment id selected, inclusive
+     * @param maxSegmentId - the highest segment id selected, exclusive. <code>Long.MAX_VALUE</code> leaves the range unbounded
+     * @return
+     */
+    public SegmentFilter withSegmentIdRange(long minSegmentId, long maxSegmentId) {
+        if (minSegmentId >= maxSegmentId) {
+            throw new IllegalArgumentException(String.format("The segment id range [%d, %d) is empty", minSegmentId, maxSegmentId));
+        }
+        return new SegmentFilter(partnerId, requiredFlags, minSegmentId, maxSegmentId);
+    }
+
+    /**
+     * The partner id segments must have, or null for any partner
+     * @return
+     */
+    public String getPartnerId() {
+        return partnerId;
+    }
+
+    /**
+     * The flag bits segments must have set, or 0 for any flags
+     * @return
+     */
+    public long getRequiredFlags() {
+        return requiredFlags;
+    }
+
+    public long getMinSegmentId() {
+        return minSegmentId;
+    }
+
+    public long getMaxSegmentId() {
+        return maxSegmentId;
+    }
+
+    /**
+     * True if the filter restricts the range of segment ids
+     * @return
+     */
+    public boolean hasSegmentIdRange() {
+        return minSegmentId != Long.MIN_VALUE || maxSegmentId != Long.MAX_VALUE;
+    }
+
+    /**
+     * Check the parts of a segment which can only be filtered in the client: the flags and the partner
+     * @param flags
+     * @param partnerId
+     * @return
+     */
+    public boolean matchesAttributes(long flags, String partnerId) {
+        return (flags & requiredFlags) == requiredFlags
+                && (this.partnerId == null || this.partnerId.equals(partnerId));
+    }
+
+    public boolean matches(long segmentId, long flags, String partnerId) {
+        // An upper bound of Long.MAX_VALUE is unbounded, as it is in the server-side filter, so that segment id is not lost
+        return segmentId >= minSegmentId && (segmentId < maxSegmentId || maxSegmentId == Long.MAX_VALUE)
+                && matchesAttributes(flags, partnerId);
+    }
+
+    public boolean matches(SegmentInstance segment) {
+        return matches(segment.getSegmentId(), segment.getFlags(), segment.getPartnerId());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SegmentFilter(");
+        if (partnerId != null) {
+            sb.append("partnerId=").append(partnerId).append(' ');
+        }
+        if (requiredFlags != 0) {
+            sb.append("flags=0x").append(Long.toHexString(requiredFlags)).append(' ');
+        }
+        if (hasSegmentIdRange()) {
+            sb.append("segmentIds=[").append(minSegmentId).append(", ").append(maxSegmentId).append(") ");
+        }
+        if (sb.charAt(sb.length() - 1) == ' ') {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.usecases.rtb.model.Device;
+
+/**
+ * Generates the segments of a device deterministically from a seed and the device id, so the segments of any
+ * device can be generated again later, for example to verify what was read back from the database or to re-run
+ * a benchmark against exactly the same data.
+ * <p/>
+ * Each device has its own stream of random numbers, whose starting state is mixed from the seed and the device
+ * id in the same way as <code>SplittableRandom</code> mixes its seeds (SplitMix64). The streams of different
+ * devices are independent, so devices can be generated in any order and on any thread and still come out the
+ * same. The stream is held in a single <code>long</code> rather than a <code>Random</code> object per device.
+ * <p/>
+ * The segment ids of a device are unique and in ascending order. Expiry times are spread from 7.5 days before
+ * the base time to 30 days after it, so roughly 20% of the segments have already expired when the data is
+ * generated. Generating the same devices with the same seed, base time and parameters always gives the same
+ * segments.
+ * <p/>
+ * <code>generate</code> fills a reusable <code>SegmentBuffer</code> and allocates nothing, so generation keeps up
+ * with millions of segments per second. Instances are not thread safe, use one per thread.
+ */
+public class SegmentGenerator {
+    public static final int MAX_SEGMENTS_PER_DEVICE = 1000;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+    private static final long EXPIRY_RANGE = TimeUnit.DAYS.toMillis(DataPopulator.DAYS_TO_KEEP_SEGMENTS);
+    private static final long EXPIRY_IN_PAST = EXPIRY_RANGE / 4;
+
+    private final long seed;
+    private final long numberOfSegments;
+    private final long avgSegmentsPerDevice;
+    private final long baseTime;
+    private final String partnerId;
+    private final long[] segmentIds = new long[MAX_SEGMENTS_PER_DEVICE];
+    private final SegmentBuffer buffer = new SegmentBuffer(MAX_SEGMENTS_PER_DEVICE);
+    private long state;
+
+    /**
+     * Create a generator
+     * @param seed - the seed of the data set
+     * @param numberOfSegments - segment ids are selected from <code>[0, numberOfSegments)</code>
+     * @param avgSegmentsPerDevice - the average number of segments of a device
+     * @param baseTime - the time, in milliseconds since the epoch, the expiry times are generated around
+     * @param partnerId - the partner id of every segment
+     */
+    public SegmentGenerator(long seed, long numberOfSegments, long avgSegmentsPerDevice, long baseTime, String partnerId) {
+        if (numberOfSegments <= 0) {
+            throw new IllegalArgumentException("The number of segments must be positive, not " + numberOfSegments);
+        }
+        this.seed = seed;
+        this.numberOfSegments = numberOfSegments;
+        this.avgSegmentsPerDevice = avgSegmentsPerDevice;
+        this.baseTime = baseTime;
+        this.partnerId = partnerId;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public long getBaseTime() {
+        return baseTime;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private long nextLong() {
+        return mix64(state += GOLDEN_GAMMA);
+    }
+
+    private long nextLong(long bound) {
+        return (nextLong() >>> 1) % bound;
+    }
+
+    private double nextDouble() {
+        return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    private double nextGaussian() {
+        // Box-Muller. 1 - nextDouble() is in (0, 1] so the log is finite
+        return Math.sqrt(-2 * Math.log(1 - nextDouble())) * Math.cos(2 * Math.PI * nextDouble());
+    }
+
+    /**
+     * Generate the segments of a device
+     * @param deviceId - the numeric id of the device
+     * @param segments - the buffer to fill, which is cleared first
+     * @return The <code>isFinished</code> flag of the device
+     */
+    public boolean generate(long deviceId, SegmentBuffer segments) {
+        state = mix64(seed ^ mix64(deviceId + GOLDEN_GAMMA));
+        boolean finished = nextLong() < 0;
+        int count = (int)Math.max(0, Math.min(MAX_SEGMENTS_PER_DEVICE, (long)(avgSegmentsPerDevice + (avgSegmentsPerDevice / 2) * nextGaussian())));
+        for (int i = 0; i < count; i++) {
+            segmentIds[i] = nextLong(numberOfSegments);
+        }
+        Arrays.sort(segmentIds, 0, count);
+        segments.clear();
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || segmentIds[i] != segmentIds[i-1]) {
+                segments.add(segmentIds[i], baseTime - EXPIRY_IN_PAST + nextLong(EXPIRY_RANGE + EXPIRY_IN_PAST), 0L, partnerId);
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Generate a device as objects, for storage engines which have no primitive save path
+     * @param deviceId - the numeric id of the device
+     * @return
+     */
+    public Device createDevice(long deviceId) {
+        Device device = new Device(Device.idToString(deviceId));
+        device.setFinished(generate(deviceId, buffer));
+        device.getSegments().addAll(buffer.toSegments());
+        return device;
+    }
+}
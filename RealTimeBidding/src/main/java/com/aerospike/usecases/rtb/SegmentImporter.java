@@ -0,0 +1,479 @@
+package com.aerospike.usecases.rtb;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import com.aerospike.client.Log;
+import com.aerospike.client.ResultCode;
+import com.aerospike.usecases.common.MetricsRegistry;
+import com.aerospike.usecases.common.MetricsSink;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.RateMetric;
+import com.aerospike.usecases.common.MonitorService;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Import segment assignments delivered by partners as CSV or JSON lines files, inserting the segments into
+ * the devices already in the database.
+ * <p/>
+ * Each row assigns one segment to one device. CSV rows are <code>deviceId,segmentId,expiry,flags,partnerId</code>,
+ * where everything after the segment id is optional and fields cannot be quoted. JSON lines rows are objects
+ * with the same field names. The expiry is in milliseconds since the epoch, and defaults to
+ * <code>DataPopulator.DAYS_TO_KEEP_SEGMENTS</code> days from now. A device id which is a number is converted
+ * to the string form of the id, as with the <code>--device</code> option, otherwise it is used as is. A first
+ * row of a CSV file which does not parse is taken to be a header.
+ * <p/>
+ * The file is split into chunks which end on line boundaries, and the chunks are parsed in parallel. Each chunk
+ * is memory mapped, so the file is never copied into the heap. Within a chunk the rows are grouped by device and
+ * written with <code>StorageEngine.insertSegments</code> a batch of devices at a time, so memory use is bounded by
+ * the number of threads and the batch size, not by the size of the file. Partner files are normally sorted or
+ * grouped by device, in which case most devices get a single write.
+ * <p/>
+ * Device writes which fail because the cluster is overloaded are retried by a <code>RetryQueue</code>, and the
+ * segments of devices which still cannot be written go to its dead-letter file as JSON lines, which can be
+ * imported again once the cluster has recovered.
+ */
+public class SegmentImporter {
+    public enum Format {
+        CSV,
+        JSON;
+
+        /**
+         * Return the format with the passed name, or if the name is null, the format implied by the file extension
+         */
+        public static Format get(String name, Path file) {
+            if (name == null) {
+                String fileName = file.getFileName().toString().toLowerCase();
+                return fileName.endsWith(".json") || fileName.endsWith(".jsonl") || fileName.endsWith(".ndjson") ? JSON : CSV;
+            }
+            switch (name.toLowerCase()) {
+            case "csv":
+                return CSV;
+            case "json":
+            case "jsonl":
+                return JSON;
+            default:
+                throw new IllegalArgumentException("Unknown import format '" + name + "', valid formats are 'csv' and 'json'");
+            }
+        }
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    // How far to look for the end of a line when splitting the file into chunks
+    private static final int BOUNDARY_SEARCH_SIZE = 64 * 1024;
+
+    private final StorageEngine storageEngine;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final RateMetric rows = metrics.rate("rows", "Rows imported");
+    private final RateMetric devicesWritten = metrics.rate("devices", "Device writes");
+    private final RateMetric bytesParsed = metrics.rate("bytes", "Bytes of input parsed");
+    private final CounterMetric rowsRejected = metrics.counter("rejected", "Rows which could not be parsed");
+    private final CounterMetric writesFailed = metrics.counter("failed", "Device writes which failed");
+    private final ErrorTracker errors = new ErrorTracker(metrics.resultCodes("errors", "Failed device writes by result code"));
+    private final List<MetricsSink> sinks = new ArrayList<>();
+    private volatile ConcurrencyLimiter limiter;
+    private volatile RetryQueue retries;
+    private int maxRetries = RetryQueue.DEFAULT_MAX_RETRIES;
+    private Path deadLetterFile = null;
+
+    public SegmentImporter(StorageEngine storageEngine) {
+        this.storageEngine = storageEngine;
+    }
+
+    /**
+     * Limit the number of batch writes in flight with an adaptive limiter, which finds the highest concurrency the
+     * cluster can sustain within its latency and error rate targets. The number of threads is then the most the 
+     * limiter can grow to.
+     * @param limiter
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        if (limiter != null && this.limiter == null) {
+            metrics.gauge("limit", "The current limit on batch writes in flight", () -> this.limiter.getLimit());
+        }
+        this.limiter = limiter;
+    }
+
+    /**
+     * Set how device writes which fail are handled. A write which fails because the cluster is overloaded or 
+     * briefly unavailable is retried after a backoff, and the segments of a device which still cannot be written 
+     * are appended to the dead-letter file, which can be imported again later.
+     * @param maxRetries - the most times a write is retried, 0 to never retry. Defaults to <code>RetryQueue.DEFAULT_MAX_RETRIES</code>
+     * @param deadLetterFile - the file the segments which cannot be written are appended to, or null to only count them
+     */
+    public void setRetries(int maxRetries, Path deadLetterFile) {
+        this.maxRetries = maxRetries;
+        this.deadLetterFile = deadLetterFile;
+    }
+
+    /**
+     * Add a sink which the import metrics are exported to every interval, in addition to being printed.
+     * @param sink
+     */
+    public void addMetricsSink(MetricsSink sink) {
+        this.sinks.add(sink);
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Split the file into chunks of about <code>chunkSize</code> bytes, each ending just after a new line
+     */
+    private static List<long[]> findChunks(FileChannel channel, long chunkSize) throws IOException {
+        long size = channel.size();
+        List<long[]> chunks = new ArrayList<>();
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkSize);
+            while (end < size) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, end, Math.min(BOUNDARY_SEARCH_SIZE, size - end));
+                int newLine = -1;
+                for (int i = 0; i < window.limit() && newLine < 0; i++) {
+                    if (window.get(i) == '\n') {
+                        newLine = i;
+                    }
+                }
+                if (newLine >= 0) {
+                    end += newLine + 1;
+                    break;
+                }
+                end += window.limit();
+            }
+            chunks.add(new long[] {start, end});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Import the file
+     * @param file
+     * @param format
+     * @param numberOfThreads - the number of chunks parsed at once
+     * @param batchSize - the number of devices written in each batch
+     * @param chunkSize - the approximate size in bytes of each chunk of the file
+     * @throws IOException
+     */
+    public void importFile(Path file, Format format, int numberOfThreads, int batchSize, int chunkSize) throws IOException {
+        if (numberOfThreads <= 0 || batchSize <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("The number of threads, batch size and chunk size must all be positive");
+        }
+        this.retries = new RetryQueue(errors, maxRetries, RetryQueue.DEFAULT_CAPACITY, numberOfThreads, deadLetterFile);
+        retries.getMetrics().forEach(metrics::register);
+        MonitorService monitor = new MonitorService(metrics);
+        sinks.forEach(monitor::addSink);
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        long startTime = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<long[]> chunks = findChunks(channel, chunkSize);
+            System.out.printf("Importing %,d bytes of %s from %s in %,d chunks using %d threads\n",
+                    channel.size(), format, file, chunks.size(), numberOfThreads);
+            monitor.startMonitoring();
+            List<Future<?>> futures = new ArrayList<>(chunks.size());
+            for (long[] chunk : chunks) {
+                futures.add(executor.submit(() -> {
+                    new ChunkParser(format, batchSize, chunk[0] == 0).parse(channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // Wait for the writes still being retried
+            retries.awaitIdle();
+        }
+        catch (ExecutionException e) {
+            throw new IOException("Failed to import " + file, e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+            monitor.endMonitoring();
+            retries.close();
+        }
+        long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        System.out.printf("Imported %,d rows into %,d device writes in %,dms (%,d rows/sec), %,d rows rejected, %,d device writes failed\n",
+                rows.get(), devicesWritten.get(), elapsedMs, rows.get() * 1000 / elapsedMs, rowsRejected.get(), writesFailed.get());
+    }
+
+    /**
+     * Parses the rows of one chunk, grouping them by device and writing them a batch of devices at a time.
+     * One parser is used per chunk, so it needs no synchronization.
+     */
+    private class ChunkParser {
+        private final Format format;
+        private final int batchSize;
+        private final long defaultExpiry = new Date().getTime() + TimeUnit.DAYS.toMillis(DataPopulator.DAYS_TO_KEEP_SEGMENTS);
+        private final Map<String, Device> batch = new LinkedHashMap<>();
+        private final JSONParser jsonParser = new JSONParser();
+        private boolean mayHaveHeader;
+        private byte[] line = new byte[256];
+        // The partner of the last row, which is normally the same as the next
+        private byte[] lastPartnerBytes = new byte[0];
+        private String lastPartnerId = null;
+        private String lastDeviceId = null;
+        private Device lastDevice = null;
+
+        ChunkParser(Format format, int batchSize, boolean isStartOfFile) {
+            this.format = format;
+            this.batchSize = batchSize;
+            this.mayHaveHeader = isStartOfFile && format == Format.CSV;
+        }
+
+        void parse(MappedByteBuffer buffer) {
+            int length = 0;
+            int limit = buffer.limit();
+            for (int i = 0; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    parseLine(length);
+                    length = 0;
+                }
+                else {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+            parseLine(length);
+            flush();
+            bytesParsed.add(limit);
+        }
+
+        private void parseLine(int length) {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                return;
+            }
+            boolean isHeader = mayHaveHeader;
+            mayHaveHeader = false;
+            try {
+                if (format == Format.CSV) {
+                    parseCsv(length);
+                }
+                else {
+                    parseJson(length);
+                }
+                rows.increment();
+            }
+            catch (IllegalArgumentException | ParseException | ClassCastException e) {
+                if (!isHeader) {
+                    rowsRejected.increment();
+                    if (Log.debugEnabled()) {
+                        Log.debug(String.format("Rejected row '%s': %s", new String(line, 0, length, StandardCharsets.UTF_8), e));
+                    }
+                }
+            }
+        }
+
+        private void parseCsv(int length) {
+            int[] fieldStarts = new int[6];
+            int fields = 1;
+            for (int i = 0; i < length && fields < fieldStarts.length; i++) {
+                if (line[i] == ',') {
+                    fieldStarts[fields++] = i + 1;
+                }
+            }
+            if (fields < 2 || fields > 5) {
+                throw new IllegalArgumentException("Expected between 2 and 5 fields but found " + fields);
+            }
+            int[] fieldEnds = new int[fields];
+            for (int i = 0; i < fields; i++) {
+                fieldEnds[i] = i + 1 < fields ? fieldStarts[i + 1] - 1 : length;
+            }
+            String deviceId = toDeviceId(fieldStarts[0], fieldEnds[0]);
+            long segmentId = parseLong(fieldStarts[1], fieldEnds[1], Long.MIN_VALUE);
+            long expiry = fields > 2 ? parseLong(fieldStarts[2], fieldEnds[2], defaultExpiry) : defaultExpiry;
+            long flags = fields > 3 ? parseLong(fieldStarts[3], fieldEnds[3], 0) : 0;
+            String partnerId = fields > 4 ? toPartnerId(fieldStarts[4], fieldEnds[4]) : null;
+            if (segmentId == Long.MIN_VALUE) {
+                throw new IllegalArgumentException("The segment id is missing");
+            }
+            add(deviceId, new SegmentInstance(segmentId, new Date(expiry), flags, partnerId));
+        }
+
+        private void parseJson(int length) throws ParseException {
+            JSONObject row = (JSONObject)jsonParser.parse(new String(line, 0, length, StandardCharsets.UTF_8));
+            Object deviceId = row.get("deviceId");
+            Number segmentId = (Number)row.get("segmentId");
+            if (deviceId == null || segmentId == null) {
+                throw new IllegalArgumentException("The deviceId and segmentId fields are required");
+            }
+            Number expiry = (Number)row.get("expiry");
+            Number flags = (Number)row.get("flags");
+            add(deviceId instanceof Number ? Device.idToString(((Number)deviceId).longValue()) : deviceId.toString(),
+                    new SegmentInstance(segmentId.longValue(), new Date(expiry == null ? defaultExpiry : expiry.longValue()),
+                            flags == null ? 0 : flags.longValue(), (String)row.get("partnerId")));
+        }
+
+        private long parseLong(int start, int end, long defaultValue) {
+            while (start < end && line[start] == ' ') {
+                start++;
+            }
+            while (end > start && line[end - 1] == ' ') {
+                end--;
+            }
+            if (start == end) {
+                return defaultValue;
+            }
+            boolean negative = line[start] == '-';
+            if (negative && end == start + 1) {
+                throw new IllegalArgumentException("'-' is not a number");
+            }
+            long result = 0;
+            for (int i = negative ? start + 1 : start; i < end; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new IllegalArgumentException("'" + new String(line, start, end - start, StandardCharsets.UTF_8) + "' is not a number");
+                }
+                result = result * 10 + digit;
+            }
+            return negative ? -result : result;
+        }
+
+        private String toDeviceId(int start, int end) {
+            boolean isNumber = end > start;
+            for (int i = start; i < end && isNumber; i++) {
+                isNumber = line[i] >= '0' && line[i] <= '9';
+            }
+            if (isNumber) {
+                return Device.idToString(parseLong(start, end, 0));
+            }
+            if (end == start) {
+                throw new IllegalArgumentException("The device id is missing");
+            }
+            return new String(line, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        private String toPartnerId(int start, int end) {
+            if (start == end) {
+                return null;
+            }
+            int length = end - start;
+            if (length != lastPartnerBytes.length || !equalsRange(lastPartnerBytes, start)) {
+                lastPartnerBytes = Arrays.copyOfRange(line, start, end);
+                lastPartnerId = new String(lastPartnerBytes, StandardCharsets.UTF_8);
+            }
+            return lastPartnerId;
+        }
+
+        private boolean equalsRange(byte[] bytes, int start) {
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != line[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void add(String deviceId, SegmentInstance segment) {
+            Device device;
+            if (deviceId.equals(lastDeviceId)) {
+                device = lastDevice;
+            }
+            else {
+                device = batch.get(deviceId);
+                if (device == null) {
+                    if (batch.size() >= batchSize) {
+                        flush();
+                    }
+                    device = new Device(deviceId);
+                    batch.put(deviceId, device);
+                }
+                lastDeviceId = deviceId;
+                lastDevice = device;
+            }
+            device.getSegments().add(segment);
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<Device> devices = new ArrayList<>(batch.values());
+            batch.clear();
+            lastDeviceId = null;
+            lastDevice = null;
+            ConcurrencyLimiter limiter = SegmentImporter.this.limiter;
+            long permit = limiter == null ? 0 : limiter.acquireUninterruptibly();
+            try {
+                int[] results = storageEngine.insertSegments(devices);
+                if (limiter != null) {
+                    limiter.release(permit, results);
+                }
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == ResultCode.OK) {
+                        devicesWritten.increment();
+                    }
+                    else {
+                        Device device = devices.get(i);
+                        retries.failed("insertSegments", device.getId(), device::getSegments, results[i], () -> retryWrite(device), this::writeDone);
+                    }
+                }
+            }
+            catch (RuntimeException e) {
+                if (limiter != null) {
+                    limiter.release(permit, e);
+                }
+                for (Device device : devices) {
+                    retries.failed("insertSegments", device.getId(), device::getSegments, e, () -> retryWrite(device), this::writeDone);
+                }
+            }
+        }
+
+        /**
+         * Write the segments of one device again from the retry queue
+         */
+        private void retryWrite(Device device) {
+            ConcurrencyLimiter limiter = SegmentImporter.this.limiter;
+            long permit = limiter == null ? 0 : limiter.acquireUninterruptibly();
+            try {
+                storageEngine.insertSegments(device.getId(), device.getSegments(), true);
+            }
+            catch (RuntimeException e) {
+                if (limiter != null) {
+                    limiter.release(permit, e);
+                }
+                throw e;
+            }
+            if (limiter != null) {
+                limiter.release(permit, (Throwable)null);
+            }
+        }
+
+        private void writeDone(boolean success) {
+            if (success) {
+                devicesWritten.increment();
+            }
+            else {
+                writesFailed.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.aerospike.client.Value;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Encodes the segments of a device into the map stored in the segments bin, without creating a
+ * <code>List</code> and a set of <code>Value</code>s for each segment.
+ * <p/>
+ * The segments are sorted by segment id and presented to the client as a <code>SortedMap</code> view, so the
+ * map is packed with the key ordered flag and the server does not need to sort it. The value of every
+ * entry is the same list value, a view of the segment tuple <code>[expiry, flags, partnerId]</code> which is
+ * moved to each segment in turn, so the tuple is packed straight into the operation without creating a
+ * <code>List</code> for each segment. Only the public <code>Value</code> types are used. If a
+ * <code>PartnerDictionary</code> is passed, the partner id is stored as its integer from the dictionary rather
+ * than as a string.
+ * <p/>
+ * The segments can also be taken from a <code>SegmentBuffer</code>, which is already sorted, so a generated device
+ * is encoded without any per-segment objects at all.
+ * <p/>
+ * The CDT operations pack their arguments when they are created, so once the operation has been built the
+ * encoder can be re-used. Instances are not thread safe, use one per thread.
+ */
+class SegmentMapEncoder {
+    private static final Comparator<SegmentInstance> BY_SEGMENT_ID =
+            (a, b) -> Long.compare(a.getSegmentId(), b.getSegmentId());
+    private static final Comparator<Value> BY_LONG_VALUE =
+            (a, b) -> Long.compare(a.toLong(), b.toLong());
+
+    private SegmentInstance[] sorted = new SegmentInstance[16];
+    private int count;
+    private SegmentBuffer buffer;
+    private PartnerDictionary partnerDictionary;
+    private final SortedSegmentMap map = new SortedSegmentMap();
+
+    /**
+     * Return a sorted view of the passed segments suitable for passing to <code>MapOperation.putItems</code>. If
+     * the same segment id appears more than once, the last occurrence wins, as it would with individual puts.
+     * <p/>
+     * The returned map is only valid until the next call to <code>encode</code>
+     * @param segments
+     * @param partnerDictionary - the dictionary to encode the partner ids with, or null to store them as strings
+     * @return
+     */
+    public Map<Value, Value> encode(List<SegmentInstance> segments, PartnerDictionary partnerDictionary) {
+        this.partnerDictionary = partnerDictionary;
+        if (this.buffer != null) {
+            // The sorted array was cleared when the buffer was encoded
+            this.buffer = null;
+            this.count = 0;
+        }
+        int size = segments.size();
+        if (sorted.length < size) {
+            sorted = new SegmentInstance[Math.max(size, sorted.length * 2)];
+        }
+        for (int i = 0; i < size; i++) {
+            sorted[i] = segments.get(i);
+        }
+        // This is a stable sort so duplicates retain their relative order
+        Arrays.sort(sorted, 0, size, BY_SEGMENT_ID);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique > 0 && sorted[unique-1].getSegmentId() == sorted[i].getSegmentId()) {
+                sorted[unique-1] = sorted[i];
+            }
+            else {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        // Clear any stale references so segments from previous devices can be collected
+        Arrays.fill(sorted, unique, Math.max(unique, count), null);
+        count = unique;
+        return map;
+    }
+
+    /**
+     * Return a view of the segments in the buffer suitable for passing to <code>MapOperation.putItems</code>.
+     * <p/>
+     * The returned map is only valid until the next call to <code>encode</code> or until the buffer is changed
+     * @param segments
+     * @param partnerDictionary - the dictionary to encode the partner ids with, or null to store them as strings
+     * @return
+     */
+    public Map<Value, Value> encode(SegmentBuffer segments, PartnerDictionary partnerDictionary) {
+        this.partnerDictionary = partnerDictionary;
+        if (this.buffer == null) {
+            Arrays.fill(sorted, 0, count, null);
+        }
+        this.buffer = segments;
+        this.count = segments.size();
+        return map;
+    }
+
+    private long segmentIdAt(int index) {
+        return buffer == null ? sorted[index].getSegmentId() : buffer.getSegmentId(index);
+    }
+
+    private class SortedSegmentMap extends AbstractMap<Value, Value> implements SortedMap<Value, Value> {
+        private final SegmentTuple tuple = new SegmentTuple();
+        private final SegmentEntry entry = new SegmentEntry(Value.get(tuple));
+
+        private final Set<Map.Entry<Value, Value>> entrySet = new AbstractSet<Map.Entry<Value,Value>>() {
+            @Override
+            public Iterator<Map.Entry<Value, Value>> iterator() {
+                return new Iterator<Map.Entry<Value,Value>>() {
+                    private int index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < count;
+                    }
+
+                    @Override
+                    public Map.Entry<Value, Value> next() {
+                        if (index >= count) {
+                            throw new NoSuchElementException();
+                        }
+                        if (buffer == null) {
+                            SegmentInstance segment = sorted[index];
+                            entry.key = Value.get(segment.getSegmentId());
+                            tuple.set(segment);
+                        }
+                        else {
+                            entry.key = Value.get(buffer.getSegmentId(index));
+                            tuple.set(buffer.getExpiry(index), buffer.getFlags(index), buffer.getPartnerId(index));
+                        }
+                        tuple.partnerDictionary = partnerDictionary;
+                        index++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
+
+        @Override
+        public Set<Map.Entry<Value, Value>> entrySet() {
+            return entrySet;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public Comparator<? super Value> comparator() {
+            return BY_LONG_VALUE;
+        }
+
+        @Override
+        public Value firstKey() {
+            if (count == 0) {
+                throw new NoSuchElementException();
+            }
+            return Value.get(segmentIdAt(0));
+        }
+
+        @Override
+        public Value lastKey() {
+            if (count == 0) {
+                throw new NoSuchElementException();
+            }
+            return Value.get(segmentIdAt(count-1));
+        }
+
+        @Override
+        public SortedMap<Value, Value> subMap(Value fromKey, Value toKey) {
+            if (fromKey.toLong() > toKey.toLong()) {
+                throw new IllegalArgumentException(String.format("fromKey %d is greater than toKey %d", fromKey.toLong(), toKey.toLong()));
+            }
+            return copyRange(fromKey.toLong(), toKey.toLong());
+        }
+
+        @Override
+        public SortedMap<Value, Value> headMap(Value toKey) {
+            return copyRange(Long.MIN_VALUE, toKey.toLong());
+        }
+
+        @Override
+        public SortedMap<Value, Value> tailMap(Value fromKey) {
+            return copyRange(fromKey.toLong(), null);
+        }
+
+        /**
+         * The segments from <code>fromId</code> inclusive to <code>toId</code> exclusive, or to the end if it
+         * is null. The entries of this map are re-used as it is iterated, so unlike the views of a
+         * <code>TreeMap</code> the range is a copy which is not affected by later calls to <code>encode</code>.
+         */
+        private SortedMap<Value, Value> copyRange(long fromId, Long toId) {
+            SortedMap<Value, Value> range = new TreeMap<>(BY_LONG_VALUE);
+            for (int i = 0; i < count; i++) {
+                long segmentId = segmentIdAt(i);
+                if (segmentId < fromId) {
+                    continue;
+                }
+                if (toId != null && segmentId >= toId) {
+                    break;
+                }
+                SegmentTuple copy = new SegmentTuple();
+                if (buffer == null) {
+                    copy.set(sorted[i]);
+                }
+                else {
+                    copy.set(buffer.getExpiry(i), buffer.getFlags(i), buffer.getPartnerId(i));
+                }
+                copy.partnerDictionary = partnerDictionary;
+                range.put(Value.get(segmentId), Value.get(copy));
+            }
+            return range;
+        }
+    }
+
+    /**
+     * An entry of the map whose key is replaced for each segment. The value is always the list value over the
+     * shared tuple.
+     */
+    private static class SegmentEntry implements Map.Entry<Value, Value> {
+        private final Value value;
+        private Value key;
+
+        SegmentEntry(Value value) {
+            this.value = value;
+        }
+
+        @Override
+        public Value getKey() {
+            return key;
+        }
+
+        @Override
+        public Value getValue() {
+            return value;
+        }
+
+        @Override
+        public Value setValue(Value value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The <code>[expiry, flags, partnerId]</code> list held in the map for a segment, as a mutable view which
+     * can be moved from one segment to the next. Wrapped with <code>Value.get</code>, it is packed like any
+     * other list.
+     */
+    static class SegmentTuple extends AbstractList<Object> {
+        private long expiry;
+        private long flags;
+        private String partnerId;
+        private PartnerDictionary partnerDictionary;
+
+        SegmentTuple() {
+        }
+
+        SegmentTuple(SegmentInstance segment, PartnerDictionary partnerDictionary) {
+            set(segment);
+            this.partnerDictionary = partnerDictionary;
+        }
+
+        void set(SegmentInstance segment) {
+            set(segment.getExpiry() == null ? 0 : segment.getExpiry().getTime(), segment.getFlags(), segment.getPartnerId());
+        }
+
+        void set(long expiry, long flags, String partnerId) {
+            this.expiry = expiry;
+            this.flags = flags;
+            this.partnerId = partnerId;
+        }
+
+        @Override
+        public Object get(int index) {
+            switch (index) {
+            case 0:
+                return expiry;
+            case 1:
+                return flags;
+            case 2:
+                return partnerId == null || partnerDictionary == null ? partnerId : partnerDictionary.getId(partnerId);
+            default:
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: 3");
+            }
+        }
+
+        @Override
+        public int size() {
+            return 3;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.aerospike.usecases.rtb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Merges the segments of several identities of the same user, such as a device id, a cookie and a hashed
+ * email, into one list. If more than one identity has the same segment, the one which expires last is kept.
+ */
+final class SegmentMerger {
+    // Sort by segment id, then by expiry with no expiry first, so the last of each run of ids is the one to keep
+    private static final Comparator<SegmentInstance> BY_ID_THEN_EXPIRY = Comparator
+            .comparingLong(SegmentInstance::getSegmentId)
+            .thenComparingLong(segment -> segment.getExpiry() == null ? Long.MIN_VALUE : segment.getExpiry().getTime());
+
+    private SegmentMerger() {
+    }
+
+    /**
+     * Merge the segments, which may contain several segments with the same id
+     * @param segments - the segments of all the identities. This list is sorted in place.
+     * @return The merged segments, in ascending segment id order
+     */
+    static List<SegmentInstance> merge(List<SegmentInstance> segments) {
+        segments.sort(BY_ID_THEN_EXPIRY);
+        List<SegmentInstance> results = new ArrayList<>(segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentInstance segment = segments.get(i);
+            if (i + 1 == segments.size() || segments.get(i + 1).getSegmentId() != segment.getSegmentId()) {
+                results.add(segment);
+            }
+        }
+        return results;
+    }
+}
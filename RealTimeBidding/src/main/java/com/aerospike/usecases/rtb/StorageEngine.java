@@ -14,6 +14,16 @@ public interface StorageEngine {
      */
     void saveDevice(Device device);
     
+    /**
+     * Save the passed devices and associated segments into the database as a group. Implementations should
+     * use as few round trips to the database as possible. Failures on individual devices do not stop the other
+     * devices being saved, so a result code per device is returned. 
+     * @param devices
+     * @return An array containing the Aerospike <code>ResultCode</code> of each device, in the same order as the 
+     * passed devices. <code>ResultCode.OK</code> denotes a successful save.
+     */
+    int[] saveDevices(List<Device> devices);
+    
     /**
      * Insert a segemnt into the passed device and remove any expired segments 
      * @param deviceId
@@ -21,6 +31,28 @@ public interface StorageEngine {
      */
     void insertSegmentAndRemoveExpired(String deviceId, SegmentInstance segment);
     
+    /**
+     * Insert several segments into the passed device in a single write, optionally removing any expired segments
+     * in the same write. 
+     * @param deviceId
+     * @param segments - the segments to insert. If a segment id appears more than once, the last one wins
+     * @param removeExpired - true to remove the expired segments of the device. Engines which always remove 
+     * expired segments as part of a write may ignore this. 
+     * @return The earliest expiry, in milliseconds since the epoch, of the segments held by the device after the 
+     * write, <code>Long.MAX_VALUE</code> if it holds none, or <code>Long.MIN_VALUE</code> if the engine cannot tell.
+     */
+    long insertSegments(String deviceId, List<SegmentInstance> segments, boolean removeExpired);
+    
+    /**
+     * Insert the segments of each of the passed devices into the segments already stored for that device, 
+     * removing any expired segments, using as few round trips as possible. Unlike <code>saveDevices</code> this 
+     * never replaces the existing segments of a device or changes its other bins.
+     * @param devices - the devices to insert into, each holding the segments to insert
+     * @return An array containing the Aerospike <code>ResultCode</code> of each device, in the same order as the 
+     * passed devices.
+     */
+    int[] insertSegments(List<Device> devices);
+    
     /**
      * Get a list of all non-expired segment data associated with the passed device
      * @param deviceId
@@ -28,6 +60,26 @@ public interface StorageEngine {
      */
     List<SegmentInstance> getActiveSegments(String deviceId);
     
+    /**
+     * Get the non-expired segments of the passed device which match the filter. Implementations should
+     * apply as much of the filter as they can in the database, so segments which are not wanted are not
+     * sent to the client.
+     * @param deviceId
+     * @param filter
+     * @return
+     */
+    List<SegmentInstance> getActiveSegments(String deviceId, SegmentFilter filter);
+    
+    /**
+     * Get the non-expired segments of several identities of the same user, for example the device id, cookie and
+     * hashed email of a bid request, merged into one list. Implementations should read all the identities in a
+     * single round trip. Where more than one identity has the same segment, the one with the latest expiry is 
+     * returned. Identities which are not in the database are ignored.
+     * @param deviceIds
+     * @return The merged segments, in ascending segment id order
+     */
+    List<SegmentInstance> getActiveSegments(List<String> deviceIds);
+    
     /**
      * Return counts of the active segments and the expired segments associated with
      * a device id. This information will be returned in a record with the bins "active"
@@ -0,0 +1,70 @@
+package com.aerospike.usecases.rtb;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The kind of threads the synchronous <code>StorageEngine</code> calls of the generate and workload commands
+ * run on.
+ * <p/>
+ * Every synchronous call parks its thread until the server responds, so with platform threads the number of
+ * requests in flight is limited to the size of the thread pool, which is normally close to the number of cores.
+ * Virtual threads are cheap enough to start one per request in flight, so the same blocking code can keep as
+ * many requests in flight as the asynchronous client does. The number of threads passed to
+ * <code>newExecutor</code> is then the concurrency limit rather than a pool size.
+ * <p/>
+ * Virtual threads need Java 21. This class only refers to them by reflection, so it still compiles for Java 8
+ * and fails with a clear message when virtual threads are requested on an older runtime.
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    public static ThreadMode get(String name) {
+        switch (name.toLowerCase()) {
+        case "platform":
+            return PLATFORM;
+        case "virtual":
+            return VIRTUAL;
+        default:
+            throw new IllegalArgumentException("Unknown thread mode '" + name + "', valid modes are 'platform' and 'virtual'");
+        }
+    }
+
+    /**
+     * Whether this runtime supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Create an executor to run <code>numberOfThreads</code> long running tasks at once
+     * @param numberOfThreads - the size of the pool for platform threads. Virtual threads are created per task,
+     * so the caller limits the concurrency by the number of tasks it submits.
+     * @return
+     */
+    public ExecutorService newExecutor(int numberOfThreads) {
+        if (this == PLATFORM) {
+            return Executors.newFixedThreadPool(numberOfThreads);
+        }
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)method.invoke(null);
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, but this is Java " + System.getProperty("java.version")
+                    + ". Build with the 'modern-jdk' profile and run on Java 21, or use the 'platform' thread mode");
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+}
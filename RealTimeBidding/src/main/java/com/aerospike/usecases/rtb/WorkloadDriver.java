@@ -0,0 +1,473 @@
+package com.aerospike.usecases.rtb;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.Log;
+import com.aerospike.usecases.common.MetricsRegistry;
+import com.aerospike.usecases.common.MetricsSink;
+import com.aerospike.usecases.common.MonitorMetric;
+import com.aerospike.usecases.common.MonitorMetric.CounterMetric;
+import com.aerospike.usecases.common.MonitorMetric.TimingMetric;
+import com.aerospike.usecases.common.MonitorService;
+import com.aerospike.usecases.rtb.model.Device;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * Run a mixed read/write workload over devices which have previously been created with the <code>generate</code>
+ * command. This mirrors what happens in production: bid requests look up the active segments of a device,
+ * partner pipelines insert new segments, and occasionally the segment statistics are inspected.
+ * <p/>
+ * The workload runs a warm-up phase, during which nothing is measured, followed by a measurement phase. Each
+ * operation type has its own timing metric.
+ */
+public class WorkloadDriver {
+    /**
+     * The relative weights of each operation type in the workload
+     */
+    public static class OperationMix {
+        private final int readWeight;
+        private final int insertWeight;
+        private final int statsWeight;
+
+        public OperationMix(int readWeight, int insertWeight, int statsWeight) {
+            if (readWeight < 0 || insertWeight < 0 || statsWeight < 0 || readWeight + insertWeight + statsWeight == 0) {
+                throw new IllegalArgumentException("Operation weights must not be negative and at least one must be positive");
+            }
+            this.readWeight = readWeight;
+            this.insertWeight = insertWeight;
+            this.statsWeight = statsWeight;
+        }
+
+        /**
+         * Parse a mix in the format <code>read=80,insert=15,stats=5</code>. Operation types which are not
+         * mentioned have a weight of 0.
+         * @param mix
+         * @return
+         */
+        public static OperationMix parse(String mix) {
+            int read = 0, insert = 0, stats = 0;
+            for (String part : mix.split(",")) {
+                String[] keyValue = part.split("=");
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Invalid operation mix '" + mix + "', expected a format like 'read=80,insert=15,stats=5'");
+                }
+                int weight = Integer.parseInt(keyValue[1].trim());
+                switch (keyValue[0].trim().toLowerCase()) {
+                case "read":
+                    read = weight;
+                    break;
+                case "insert":
+                    insert = weight;
+                    break;
+                case "stats":
+                    stats = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation '" + keyValue[0] + "' in operation mix. Valid operations are 'read', 'insert' and 'stats'");
+                }
+            }
+            return new OperationMix(read, insert, stats);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("read=%d,insert=%d,stats=%d", readWeight, insertWeight, statsWeight);
+        }
+    }
+
+    private final StorageEngine storageEngine;
+    private final KeyDistribution distribution;
+    private final OperationMix mix;
+    private final long numberOfSegments;
+    private final String partnerId;
+    private final List<MetricsSink> sinks = new ArrayList<>();
+    private final List<MonitorMetric> additionalMetrics = new ArrayList<>();
+    private volatile CounterMetric readFailures;
+    private volatile CounterMetric insertFailures;
+    private volatile CounterMetric statsFailures;
+    private volatile TimingMetric readTimer;
+    private volatile TimingMetric insertTimer;
+    private volatile TimingMetric statsTimer;
+    private volatile boolean terminate;
+    private double rate = 0;
+    private volatile RateSchedule schedule;
+    private volatile ConcurrencyLimiter limiter;
+    private final ErrorTracker errors = new ErrorTracker(null);
+    private volatile RetryQueue retries;
+    private int maxRetries = RetryQueue.DEFAULT_MAX_RETRIES;
+    private Path deadLetterFile = null;
+
+    /**
+     * Create a workload driver
+     * @param storageEngine - the engine to run the operations against
+     * @param distribution - how devices are selected
+     * @param mix - the relative weights of the operations
+     * @param numberOfSegments - segments inserted by the workload have an id in the range <code>[0, numberOfSegments)</code>
+     * @param partnerId - the partner id of segments inserted by the workload
+     */
+    public WorkloadDriver(StorageEngine storageEngine, KeyDistribution distribution, OperationMix mix, long numberOfSegments, String partnerId) {
+        this.storageEngine = storageEngine;
+        this.distribution = distribution;
+        this.mix = mix;
+        this.numberOfSegments = numberOfSegments;
+        this.partnerId = partnerId;
+    }
+    
+    /**
+     * Add a sink which the workload metrics are exported to every interval, in addition to being printed.
+     * @param sink
+     */
+    public void addMetricsSink(MetricsSink sink) {
+        this.sinks.add(sink);
+    }
+
+    /**
+     * Issue the operations on a fixed schedule at this rate, rather than each thread issuing its next operation as
+     * soon as the previous one returns. Latency is then measured from when each operation was due, so the
+     * percentiles include the time operations spend waiting behind a stall. The schedule starts at the start of
+     * the warm-up.
+     * @param operationsPerSecond - the target rate, or 0 to issue operations as fast as possible
+     */
+    public void setRate(double operationsPerSecond) {
+        this.rate = operationsPerSecond;
+    }
+
+    private void startSchedule() {
+        this.schedule = rate > 0 ? new RateSchedule(rate) : null;
+        if (schedule != null) {
+            System.out.printf("Target rate: %,.0f operations per second\n", rate);
+        }
+    }
+
+    private long nextStartTime() {
+        RateSchedule schedule = this.schedule;
+        return schedule == null ? System.nanoTime() : schedule.awaitNext();
+    }
+
+    /**
+     * Limit the number of operations in flight with an adaptive limiter, which finds the highest concurrency the
+     * cluster can sustain within its latency and error rate targets. The number of threads, or the maximum in 
+     * flight when running asynchronously, is then the most the limiter can grow to. The limit is reported as the
+     * <code>limit</code> metric.
+     * @param limiter
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Set how inserts which fail are handled. An insert which fails because the cluster is overloaded or briefly
+     * unavailable is retried after a backoff, and one which still fails is written to the dead-letter file. Reads
+     * are not retried, as nothing would be waiting for the result. 
+     * @param maxRetries - the most times an insert is retried, 0 to never retry. Defaults to <code>RetryQueue.DEFAULT_MAX_RETRIES</code>
+     * @param deadLetterFile - the file inserts which keep failing are appended to, or null to only count them
+     */
+    public void setRetries(int maxRetries, Path deadLetterFile) {
+        this.maxRetries = maxRetries;
+        this.deadLetterFile = deadLetterFile;
+    }
+
+    private RetryQueue createRetryQueue(int threads) {
+        try {
+            RetryQueue retries = new RetryQueue(errors, maxRetries, RetryQueue.DEFAULT_CAPACITY, threads, deadLetterFile);
+            if (storageEngine instanceof CoalescingStorageEngine) {
+                // The inserts are written later by the coalescer, so that is where they fail
+                ((CoalescingStorageEngine)storageEngine).setRetryQueue(retries);
+            }
+            return retries;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long acquirePermit() {
+        ConcurrencyLimiter limiter = this.limiter;
+        return limiter == null ? System.nanoTime() : limiter.acquireUninterruptibly();
+    }
+
+    private void releasePermit(long acquiredTime, Throwable error) {
+        ConcurrencyLimiter limiter = this.limiter;
+        if (limiter != null) {
+            limiter.release(acquiredTime, error);
+        }
+    }
+
+    /**
+     * Add a metric which is maintained elsewhere, for example by the storage engine, to be reported alongside 
+     * the workload metrics during the measurement phase.
+     * @param metric
+     */
+    public void addMetric(MonitorMetric metric) {
+        this.additionalMetrics.add(metric);
+    }
+
+    private void runOperation(Random random) {
+        String deviceId = Device.idToString(distribution.next(random));
+        int choice = random.nextInt(mix.readWeight + mix.insertWeight + mix.statsWeight);
+        long startTime = nextStartTime();
+        long permit = acquirePermit();
+        Exception error = null;
+        if (choice < mix.readWeight) {
+            try {
+                storageEngine.getActiveSegments(deviceId);
+                record(readTimer, startTime);
+            }
+            catch (Exception e) {
+                error = e;
+                recordFailure(readFailures, "getActiveSegments", deviceId, e);
+            }
+        }
+        else if (choice < mix.readWeight + mix.insertWeight) {
+            long expiry = new Date().getTime() + TimeUnit.DAYS.toMillis(DataPopulator.DAYS_TO_KEEP_SEGMENTS);
+            SegmentInstance segment = new SegmentInstance((long)(random.nextDouble() * numberOfSegments), new Date(expiry), 0, partnerId);
+            try {
+                storageEngine.insertSegmentAndRemoveExpired(deviceId, segment);
+                record(insertTimer, startTime);
+            }
+            catch (Exception e) {
+                error = e;
+                insertFailed(deviceId, segment, e);
+            }
+        }
+        else {
+            try {
+                storageEngine.getCountOfActiveAndExpiredSegments(deviceId);
+                record(statsTimer, startTime);
+            }
+            catch (Exception e) {
+                error = e;
+                recordFailure(statsFailures, "getCountOfActiveAndExpiredSegments", deviceId, e);
+            }
+        }
+        releasePermit(permit, error);
+    }
+
+    private CompletableFuture<?> runOperationAsync(AsyncStorageEngine asyncEngine, String deviceId, Random random, long startTime) {
+        int choice = random.nextInt(mix.readWeight + mix.insertWeight + mix.statsWeight);
+        if (choice < mix.readWeight) {
+            return asyncEngine.getActiveSegmentsAsync(deviceId).whenComplete((segments, e) -> {
+                if (e == null) {
+                    record(readTimer, startTime);
+                }
+                else {
+                    // This may be on an event loop, so log the failure elsewhere
+                    retries.execute(() -> recordFailure(readFailures, "getActiveSegments", deviceId, e));
+                }
+            });
+        }
+        else if (choice < mix.readWeight + mix.insertWeight) {
+            long expiry = new Date().getTime() + TimeUnit.DAYS.toMillis(DataPopulator.DAYS_TO_KEEP_SEGMENTS);
+            SegmentInstance segment = new SegmentInstance((long)(random.nextDouble() * numberOfSegments), new Date(expiry), 0, partnerId);
+            return asyncEngine.insertSegmentAndRemoveExpiredAsync(deviceId, segment).whenComplete((ignored, e) -> {
+                if (e == null) {
+                    record(insertTimer, startTime);
+                }
+                else {
+                    retries.execute(() -> insertFailed(deviceId, segment, e));
+                }
+            });
+        }
+        else {
+            return asyncEngine.getCountOfActiveAndExpiredSegmentsAsync(deviceId).whenComplete((record, e) -> {
+                if (e == null) {
+                    record(statsTimer, startTime);
+                }
+                else {
+                    retries.execute(() -> recordFailure(statsFailures, "getCountOfActiveAndExpiredSegments", deviceId, e));
+                }
+            });
+        }
+    }
+
+    private void record(TimingMetric timer, long startTime) {
+        // Timers are null during the warm-up phase
+        if (timer != null) {
+            timer.addTime(System.nanoTime() - startTime);
+        }
+    }
+
+    private void recordFailure(CounterMetric counter, String operation, String deviceId, Throwable e) {
+        // Counters are null during the warm-up phase
+        if (counter != null) {
+            counter.increment();
+        }
+        errors.record(operation, deviceId, e);
+    }
+
+    /**
+     * Count a failed insert and hand it to the retry queue, which records the error
+     */
+    private void insertFailed(String deviceId, SegmentInstance segment, Throwable e) {
+        CounterMetric counter = insertFailures;
+        if (counter != null) {
+            counter.increment();
+        }
+        retries.failed("insertSegmentAndRemoveExpired", deviceId, () -> Collections.singletonList(segment), e, () -> {
+            long permit = acquirePermit();
+            try {
+                storageEngine.insertSegmentAndRemoveExpired(deviceId, segment);
+            }
+            catch (RuntimeException retryError) {
+                releasePermit(permit, retryError);
+                throw retryError;
+            }
+            releasePermit(permit, null);
+        }, null);
+    }
+
+    /**
+     * Run the workload. This call blocks until both phases have completed.
+     * @param numberOfThreads - the number of threads issuing operations
+     * @param warmupSeconds - how long to run before starting measurement
+     * @param durationSeconds - how long to measure for
+     */
+    public void run(int numberOfThreads, int warmupSeconds, int durationSeconds) {
+        run(numberOfThreads, warmupSeconds, durationSeconds, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Run the workload on platform or virtual threads. Each thread has one operation in flight at a time, so with
+     * virtual threads <code>numberOfThreads</code> is the number of concurrent requests. This call blocks until
+     * both phases have completed.
+     * @param numberOfThreads - the number of threads issuing operations
+     * @param warmupSeconds - how long to run before starting measurement
+     * @param durationSeconds - how long to measure for
+     * @param threadMode - whether to use a pool of platform threads or a virtual thread per concurrent request
+     */
+    public void run(int numberOfThreads, int warmupSeconds, int durationSeconds, ThreadMode threadMode) {
+        System.out.printf("Running workload: mix: %s, distribution: %s, threads: %d %s, warm-up: %ds, duration: %ds\n",
+                mix, distribution, numberOfThreads, threadMode.toString().toLowerCase(), warmupSeconds, durationSeconds);
+        ExecutorService executor = threadMode.newExecutor(numberOfThreads);
+        this.retries = createRetryQueue(numberOfThreads);
+        startSchedule();
+        for (int i = 0; i < numberOfThreads; i++) {
+            executor.submit(() -> {
+                Random random = ThreadLocalRandom.current();
+                while (!terminate) {
+                    runOperation(random);
+                }
+            });
+        }
+        executor.shutdown();
+        runPhases(executor, warmupSeconds, durationSeconds);
+    }
+
+    /**
+     * Run the workload through the asynchronous API. A single thread starts operations whenever fewer than
+     * <code>maxInFlight</code> are outstanding, and no thread waits for any individual operation. This call 
+     * blocks until both phases have completed and the operations still in flight have finished.
+     * @param asyncEngine - the engine to run the operations against, normally the same engine as passed to the constructor
+     * @param maxInFlight - the most operations outstanding at once
+     * @param warmupSeconds - how long to run before starting measurement
+     * @param durationSeconds - how long to measure for
+     */
+    public void runAsync(AsyncStorageEngine asyncEngine, int maxInFlight, int warmupSeconds, int durationSeconds) {
+        System.out.printf("Running asynchronous workload: mix: %s, distribution: %s, in flight: %d, warm-up: %ds, duration: %ds\n",
+                mix, distribution, maxInFlight, warmupSeconds, durationSeconds);
+        ConcurrencyLimiter inFlight = limiter != null ? limiter : ConcurrencyLimiter.fixed(maxInFlight);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        this.retries = createRetryQueue(maxInFlight);
+        startSchedule();
+        executor.submit(() -> {
+            Random random = ThreadLocalRandom.current();
+            try {
+                while (!terminate) {
+                    // Waiting for a free slot counts towards the latency when there is a schedule
+                    long startTime = nextStartTime();
+                    long permit = inFlight.acquire();
+                    String deviceId = Device.idToString(distribution.next(random));
+                    try {
+                        runOperationAsync(asyncEngine, deviceId, random, startTime).whenComplete((result, e) -> inFlight.release(permit, e));
+                    }
+                    catch (RuntimeException e) {
+                        // The command was rejected before it was started, for example as the async queue is full
+                        inFlight.release(permit, e);
+                        errors.record("runOperationAsync", deviceId, e);
+                    }
+                }
+                // Wait for the operations in flight to complete
+                inFlight.awaitIdle();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e) {
+                Log.error("The asynchronous workload stopped issuing operations: " + e);
+            }
+        });
+        executor.shutdown();
+        runPhases(executor, warmupSeconds, durationSeconds);
+    }
+
+    /**
+     * Run the warm-up and measurement phases while the operations are issued on the executor
+     */
+    private void runPhases(ExecutorService executor, int warmupSeconds, int durationSeconds) {
+        try {
+            if (warmupSeconds > 0) {
+                System.out.printf("Warming up for %d seconds\n", warmupSeconds);
+                Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+            }
+            MetricsRegistry metrics = new MetricsRegistry();
+            TimingMetric readTimer = metrics.timer("read", "Latency of getActiveSegments");
+            TimingMetric insertTimer = metrics.timer("insert", "Latency of insertSegmentAndRemoveExpired");
+            TimingMetric statsTimer = metrics.timer("stats", "Latency of getCountOfActiveAndExpiredSegments");
+            this.readFailures = metrics.counter("readFailures", "Failed getActiveSegments calls");
+            this.insertFailures = metrics.counter("insertFailures", "Failed insertSegmentAndRemoveExpired calls");
+            this.statsFailures = metrics.counter("statsFailures", "Failed getCountOfActiveAndExpiredSegments calls");
+            errors.setMetric(metrics.resultCodes("errors", "Failed operations by result code"));
+            retries.getMetrics().forEach(metrics::register);
+            additionalMetrics.forEach(metrics::register);
+            ConcurrencyLimiter limiter = this.limiter;
+            if (limiter != null) {
+                metrics.gauge("limit", "The current limit on operations in flight", limiter::getLimit);
+            }
+            RateSchedule schedule = this.schedule;
+            if (schedule != null) {
+                metrics.gauge("behind", "Milliseconds the operations are behind the target rate", schedule::getLagMs);
+            }
+            MonitorService monitor = new MonitorService(metrics);
+            sinks.forEach(monitor::addSink);
+            this.insertTimer = insertTimer;
+            this.statsTimer = statsTimer;
+            this.readTimer = readTimer;
+            monitor.startMonitoring();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            terminate = true;
+            executor.awaitTermination(1, TimeUnit.DAYS);
+            if (storageEngine instanceof CoalescingStorageEngine) {
+                // Write the buffered inserts now, so any which fail are retried before the queue is closed
+                ((CoalescingStorageEngine)storageEngine).close();
+            }
+            // Wait for the inserts still being retried
+            retries.awaitIdle();
+            monitor.endMonitoring();
+            System.out.printf("Failures: read: %,d, insert: %,d, stats: %,d\n",
+                    readFailures.get(), insertFailures.get(), statsFailures.get());
+        }
+        catch (InterruptedException ignored) {
+            System.out.println("Ignoring InterruptedException");
+            terminate = true;
+        }
+        try {
+            retries.close();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.flush();
+    }
+}
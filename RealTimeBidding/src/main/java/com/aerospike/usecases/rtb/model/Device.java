@@ -34,11 +34,20 @@ public class Device {
     /**
      * In production usage, token/cookie/device ids are likely to be Strings or UUIDs or similar. Since the devices are going to be generated,
      * it is easier to use a numeric value to generate/fetch a device than a string. To mirror realism though, Strings will be stored as the
-     * key. This function trivially turns a <code>long</code> into a UUID-style string;
+     * key. This function trivially turns a <code>long</code> into a UUID-style string. See <code>DeviceIdCodec</code> for the format.
      * @param id - The numeric value of the identifier
      * @return A string value that is unique to the identifier
      */
     public static String idToString(long id) {
-        return String.format("73dacfc7-cd3a-%04x-8c43-%012x", id^0x2621 ,id);
+        return DeviceIdCodec.toString(id);
+    }
+    
+    /**
+     * The inverse of <code>idToString</code>, turning a device id string back into its numeric value.
+     * @param id - A string previously returned from <code>idToString</code>
+     * @return The numeric value of the identifier
+     */
+    public static long stringToId(String id) {
+        return DeviceIdCodec.parse(id);
     }
 }
@@ -0,0 +1,184 @@
+package com.aerospike.usecases.rtb.model;
+
+/**
+ * Convert the numeric device ids used by the generator to and from the UUID-style strings which are stored
+ * as record keys, and to and from a compact 16 byte binary form.
+ * <p/>
+ * The string form is <code>73dacfc7-cd3a-GGGG-8c43-IIIIIIIIIIII</code>, where <code>IIIIIIIIIIII</code> is the id in
+ * hex, padded to at least 12 digits, and <code>GGGG</code> is the id xor'd with 0x2621, padded to at least 4 digits.
+ * This is exactly what <code>String.format("73dacfc7-cd3a-%04x-8c43-%012x", id^0x2621, id)</code> produces, but it is
+ * written directly into a character buffer so the only allocation is the resulting string.
+ * <p/>
+ * The binary form holds the same 128 bits as a UUID: the 4th group is truncated to 16 bits, and the id must
+ * fit in the 48 bits of the last group. For ids below 65,536 the bytes are the UUID the string represents.
+ */
+public final class DeviceIdCodec {
+    private static final String PREFIX = "73dacfc7-cd3a-";
+    private static final String MIDDLE = "-8c43-";
+    private static final long GROUP_MASK = 0x2621;
+    private static final long MOST_SIGNIFICANT_PREFIX = 0x73dacfc7cd3a0000L;
+    private static final long LEAST_SIGNIFICANT_PREFIX = 0x8c43000000000000L;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The length of the binary form of an id */
+    public static final int BINARY_LENGTH = 16;
+    /** The largest id which can be held in the binary form */
+    public static final long MAX_BINARY_ID = (1L << 48) - 1;
+    /** The longest string any id can be formatted to */
+    public static final int MAX_STRING_LENGTH = PREFIX.length() + 16 + MIDDLE.length() + 16;
+
+    private static final ThreadLocal<char[]> BUFFERS = ThreadLocal.withInitial(() -> new char[MAX_STRING_LENGTH]);
+
+    private DeviceIdCodec() {
+    }
+
+    private static int hexDigits(long value, int minDigits) {
+        return Math.max(minDigits, (64 - Long.numberOfLeadingZeros(value) + 3) >>> 2);
+    }
+
+    private static int writeHex(long value, int minDigits, char[] dest, int offset) {
+        int digits = hexDigits(value, minDigits);
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            dest[i] = HEX_DIGITS[(int)(value & 0xf)];
+            value >>>= 4;
+        }
+        return offset + digits;
+    }
+
+    private static int writeString(String value, char[] dest, int offset) {
+        value.getChars(0, value.length(), dest, offset);
+        return offset + value.length();
+    }
+
+    /**
+     * Write the string form of the id into the passed buffer.
+     * @param id - the numeric id of the device
+     * @param dest - the buffer to write to, which must have at least <code>MAX_STRING_LENGTH</code> characters after the offset
+     * @param offset - the position in the buffer to start writing at
+     * @return The number of characters written
+     */
+    public static int format(long id, char[] dest, int offset) {
+        int position = writeString(PREFIX, dest, offset);
+        position = writeHex(id ^ GROUP_MASK, 4, dest, position);
+        position = writeString(MIDDLE, dest, position);
+        position = writeHex(id, 12, dest, position);
+        return position - offset;
+    }
+
+    /**
+     * Return the string form of the id
+     * @param id
+     * @return
+     */
+    public static String toString(long id) {
+        char[] buffer = BUFFERS.get();
+        return new String(buffer, 0, format(id, buffer, 0));
+    }
+
+    private static long parseHex(CharSequence value, int start, int end) {
+        if (end <= start || end - start > 16) {
+            throw new IllegalArgumentException("'" + value + "' is not a valid device id");
+        }
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("'" + value + "' is not a valid device id");
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+
+    private static boolean regionMatches(CharSequence value, int offset, String expected) {
+        if (value.length() < offset + expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (value.charAt(offset + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the string form of an id back to the numeric id. This is the inverse of <code>toString</code>.
+     * @param deviceId - the string form of the id
+     * @return The numeric id
+     * @throws IllegalArgumentException if the string was not produced by <code>toString</code>
+     */
+    public static long parse(CharSequence deviceId) {
+        int groupStart = PREFIX.length();
+        int groupEnd = groupStart;
+        while (groupEnd < deviceId.length() && deviceId.charAt(groupEnd) != '-') {
+            groupEnd++;
+        }
+        int idStart = groupEnd + MIDDLE.length();
+        if (!regionMatches(deviceId, 0, PREFIX) || !regionMatches(deviceId, groupEnd, MIDDLE) || idStart >= deviceId.length()) {
+            throw new IllegalArgumentException("'" + deviceId + "' is not a valid device id");
+        }
+        long group = parseHex(deviceId, groupStart, groupEnd);
+        long id = parseHex(deviceId, idStart, deviceId.length());
+        // Check the groups are consistent and not over padded, so that formatting the id gives back the same string
+        if (group != (id ^ GROUP_MASK)
+                || groupEnd - groupStart != hexDigits(group, 4)
+                || deviceId.length() - idStart != hexDigits(id, 12)) {
+            throw new IllegalArgumentException("'" + deviceId + "' is not a valid device id");
+        }
+        return id;
+    }
+
+    /**
+     * Write the binary form of the id into the passed buffer.
+     * @param id - the numeric id of the device, from 0 to <code>MAX_BINARY_ID</code>
+     * @param dest - the buffer to write to, which must have at least <code>BINARY_LENGTH</code> bytes after the offset
+     * @param offset - the position in the buffer to start writing at
+     */
+    public static void toBytes(long id, byte[] dest, int offset) {
+        if (id < 0 || id > MAX_BINARY_ID) {
+            throw new IllegalArgumentException(String.format("Device id %d cannot be stored in binary form, the maximum is %d", id, MAX_BINARY_ID));
+        }
+        long mostSignificant = MOST_SIGNIFICANT_PREFIX | ((id ^ GROUP_MASK) & 0xffff);
+        long leastSignificant = LEAST_SIGNIFICANT_PREFIX | id;
+        for (int i = 7; i >= 0; i--) {
+            dest[offset + i] = (byte)mostSignificant;
+            dest[offset + 8 + i] = (byte)leastSignificant;
+            mostSignificant >>>= 8;
+            leastSignificant >>>= 8;
+        }
+    }
+
+    /**
+     * Return the binary form of the id
+     * @param id - the numeric id of the device, from 0 to <code>MAX_BINARY_ID</code>
+     * @return
+     */
+    public static byte[] toBytes(long id) {
+        byte[] result = new byte[BINARY_LENGTH];
+        toBytes(id, result, 0);
+        return result;
+    }
+
+    /**
+     * Convert the binary form of an id back to the numeric id. This is the inverse of <code>toBytes</code>.
+     * @param bytes - the buffer holding the binary form
+     * @param offset - the position of the binary form in the buffer
+     * @return The numeric id
+     * @throws IllegalArgumentException if the bytes were not produced by <code>toBytes</code>
+     */
+    public static long fromBytes(byte[] bytes, int offset) {
+        long mostSignificant = 0;
+        long leastSignificant = 0;
+        for (int i = 0; i < 8; i++) {
+            mostSignificant = (mostSignificant << 8) | (bytes[offset + i] & 0xff);
+            leastSignificant = (leastSignificant << 8) | (bytes[offset + 8 + i] & 0xff);
+        }
+        long id = leastSignificant & MAX_BINARY_ID;
+        if ((leastSignificant & ~MAX_BINARY_ID) != LEAST_SIGNIFICANT_PREFIX
+                || mostSignificant != (MOST_SIGNIFICANT_PREFIX | ((id ^ GROUP_MASK) & 0xffff))) {
+            throw new IllegalArgumentException("The bytes are not a valid binary device id");
+        }
+        return id;
+    }
+}
@@ -0,0 +1,40 @@
+package com.aerospike.usecases.rtb.targeting;
+
+/**
+ * A campaign which targets the devices matching a segment expression
+ */
+public class Campaign {
+    private final int id;
+    private final SegmentExpression expression;
+
+    public Campaign(int id, SegmentExpression expression) {
+        this.id = id;
+        this.expression = expression;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SegmentExpression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Parse a campaign in the format <code>id: expression</code>, for example <code>17: 12 AND NOT 40</code>
+     * @param line
+     * @return
+     */
+    public static Campaign parse(String line) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Invalid campaign '" + line + "', expected a format like '17: 12 AND NOT 40'");
+        }
+        return new Campaign(Integer.parseInt(line.substring(0, colon).trim()), SegmentExpression.parse(line.substring(colon + 1)));
+    }
+
+    @Override
+    public String toString() {
+        return id + ": " + expression;
+    }
+}
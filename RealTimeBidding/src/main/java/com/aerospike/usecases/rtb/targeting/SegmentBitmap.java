@@ -0,0 +1,209 @@
+package com.aerospike.usecases.rtb.targeting;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+/**
+ * An immutable, compressed set of segment ids, used to match the segments of a device against campaigns.
+ * <p/>
+ * This follows the layout of a Roaring bitmap: ids are split into chunks of 65,536 by their high bits, and each
+ * chunk which has ids in it is held in a container of the low 16 bits. Sparse chunks use a sorted
+ * <code>char[]</code> (2 bytes per id) and chunks with more than 4,096 ids use a fixed 8KB bitset. A device with a
+ * few hundred segments therefore takes a few hundred bytes, and membership tests are a binary search of the
+ * chunk keys followed by either a binary search or a bit test, all on primitive arrays.
+ */
+public final class SegmentBitmap {
+    private static final int ARRAY_CONTAINER_MAX = 4096;
+    private static final int BITSET_WORDS = 1024;
+    private static final SegmentBitmap EMPTY = new SegmentBitmap(new long[0], new char[0][], new long[0][], 0);
+
+    // The high bits of each chunk, in ascending order
+    private final long[] keys;
+    // For each chunk exactly one of these is non-null
+    private final char[][] arrays;
+    private final long[][] bitsets;
+    private final int cardinality;
+
+    private SegmentBitmap(long[] keys, char[][] arrays, long[][] bitsets, int cardinality) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitsets = bitsets;
+        this.cardinality = cardinality;
+    }
+
+    public static SegmentBitmap empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Create a bitmap of the passed ids. The array is not modified, and may contain duplicates.
+     * @param segmentIds
+     * @return
+     */
+    public static SegmentBitmap of(long ...segmentIds) {
+        long[] sorted = segmentIds.clone();
+        Arrays.sort(sorted);
+        return fromSorted(sorted, sorted.length);
+    }
+
+    /**
+     * Create a bitmap of the ids of the passed segments
+     * @param segments
+     * @return
+     */
+    public static SegmentBitmap fromSegments(List<SegmentInstance> segments) {
+        long[] ids = new long[segments.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = segments.get(i).getSegmentId();
+        }
+        Arrays.sort(ids);
+        return fromSorted(ids, ids.length);
+    }
+
+    private static SegmentBitmap fromSorted(long[] ids, int length) {
+        if (length == 0) {
+            return EMPTY;
+        }
+        int chunks = 1;
+        for (int i = 1; i < length; i++) {
+            if ((ids[i] >> 16) != (ids[i - 1] >> 16)) {
+                chunks++;
+            }
+        }
+        long[] keys = new long[chunks];
+        char[][] arrays = new char[chunks][];
+        long[][] bitsets = new long[chunks][];
+        int total = 0;
+        int start = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            long key = ids[start] >> 16;
+            int end = start;
+            while (end < length && (ids[end] >> 16) == key) {
+                end++;
+            }
+            // Remove duplicates while taking the low bits
+            char[] lows = new char[end - start];
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                char low = (char)ids[i];
+                if (count == 0 || lows[count - 1] != low) {
+                    lows[count++] = low;
+                }
+            }
+            keys[chunk] = key;
+            if (count > ARRAY_CONTAINER_MAX) {
+                long[] bitset = new long[BITSET_WORDS];
+                for (int i = 0; i < count; i++) {
+                    bitset[lows[i] >>> 6] |= 1L << lows[i];
+                }
+                bitsets[chunk] = bitset;
+            }
+            else {
+                arrays[chunk] = count == lows.length ? lows : Arrays.copyOf(lows, count);
+            }
+            total += count;
+            start = end;
+        }
+        return new SegmentBitmap(keys, arrays, bitsets, total);
+    }
+
+    /**
+     * The number of distinct ids in the bitmap
+     * @return
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    public boolean contains(long segmentId) {
+        int chunk = Arrays.binarySearch(keys, segmentId >> 16);
+        if (chunk < 0) {
+            return false;
+        }
+        char low = (char)segmentId;
+        if (arrays[chunk] != null) {
+            return Arrays.binarySearch(arrays[chunk], low) >= 0;
+        }
+        return (bitsets[chunk][low >>> 6] & (1L << low)) != 0;
+    }
+
+    /**
+     * Pass every id in the bitmap to the consumer, in ascending order
+     * @param consumer
+     */
+    public void forEach(LongConsumer consumer) {
+        for (int chunk = 0; chunk < keys.length; chunk++) {
+            long high = keys[chunk] << 16;
+            if (arrays[chunk] != null) {
+                for (char low : arrays[chunk]) {
+                    consumer.accept(high | low);
+                }
+            }
+            else {
+                long[] bitset = bitsets[chunk];
+                for (int word = 0; word < BITSET_WORDS; word++) {
+                    long bits = bitset[word];
+                    while (bits != 0) {
+                        consumer.accept(high | (word << 6) | Long.numberOfTrailingZeros(bits));
+                        bits &= bits - 1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copy the ids in the bitmap into the passed array, in ascending order, and return how many were copied.
+     * This allows the ids to be walked without a callback.
+     * @param dest - an array of at least <code>cardinality()</code> elements
+     * @return
+     */
+    public int toArray(long[] dest) {
+        int count = 0;
+        for (int chunk = 0; chunk < keys.length; chunk++) {
+            long high = keys[chunk] << 16;
+            if (arrays[chunk] != null) {
+                for (char low : arrays[chunk]) {
+                    dest[count++] = high | low;
+                }
+            }
+            else {
+                long[] bitset = bitsets[chunk];
+                for (int word = 0; word < BITSET_WORDS; word++) {
+                    long bits = bitset[word];
+                    while (bits != 0) {
+                        dest[count++] = high | (word << 6) | Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * An estimate of the memory used by the containers, in bytes
+     * @return
+     */
+    public long getSizeInBytes() {
+        long size = keys.length * 8L;
+        for (int chunk = 0; chunk < keys.length; chunk++) {
+            size += arrays[chunk] != null ? arrays[chunk].length * 2L : BITSET_WORDS * 8L;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        forEach(id -> sb.append(sb.length() > 1 ? ", " : "").append(id));
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,269 @@
+package com.aerospike.usecases.rtb.targeting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A boolean expression over segment ids, describing which devices a campaign targets. For example
+ * <code>(12 AND 40) OR (7 AND NOT 99)</code> targets devices which have both segments 12 and 40, or which have
+ * segment 7 but not segment 99.
+ * <p/>
+ * Expressions are built with the static factory methods or parsed from text with <code>parse</code>. They are
+ * immutable.
+ */
+public abstract class SegmentExpression {
+    private SegmentExpression() {
+    }
+
+    /**
+     * Evaluate the expression directly against a set of segments. <code>TargetingIndex</code> is much faster
+     * when there are many expressions to check.
+     * @param segments
+     * @return
+     */
+    public abstract boolean matches(SegmentBitmap segments);
+
+    public static SegmentExpression segment(long segmentId) {
+        return new Segment(segmentId);
+    }
+
+    public static SegmentExpression and(SegmentExpression ...children) {
+        return new And(Arrays.asList(children));
+    }
+
+    public static SegmentExpression or(SegmentExpression ...children) {
+        return new Or(Arrays.asList(children));
+    }
+
+    public static SegmentExpression not(SegmentExpression child) {
+        return new Not(child);
+    }
+
+    /**
+     * True if the device has the segment
+     */
+    public static final class Segment extends SegmentExpression {
+        private final long segmentId;
+
+        private Segment(long segmentId) {
+            this.segmentId = segmentId;
+        }
+
+        public long getSegmentId() {
+            return segmentId;
+        }
+
+        @Override
+        public boolean matches(SegmentBitmap segments) {
+            return segments.contains(segmentId);
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(segmentId);
+        }
+    }
+
+    /**
+     * True if every child is true
+     */
+    public static final class And extends SegmentExpression {
+        private final List<SegmentExpression> children;
+
+        private And(List<SegmentExpression> children) {
+            if (children.isEmpty()) {
+                throw new IllegalArgumentException("AND needs at least one child");
+            }
+            this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        }
+
+        public List<SegmentExpression> getChildren() {
+            return children;
+        }
+
+        @Override
+        public boolean matches(SegmentBitmap segments) {
+            for (SegmentExpression child : children) {
+                if (!child.matches(segments)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " AND ");
+        }
+    }
+
+    /**
+     * True if any child is true
+     */
+    public static final class Or extends SegmentExpression {
+        private final List<SegmentExpression> children;
+
+        private Or(List<SegmentExpression> children) {
+            if (children.isEmpty()) {
+                throw new IllegalArgumentException("OR needs at least one child");
+            }
+            this.children = Collections.unmodifiableList(new ArrayList<>(children));
+        }
+
+        public List<SegmentExpression> getChildren() {
+            return children;
+        }
+
+        @Override
+        public boolean matches(SegmentBitmap segments) {
+            for (SegmentExpression child : children) {
+                if (child.matches(segments)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return join(children, " OR ");
+        }
+    }
+
+    /**
+     * True if the child is false
+     */
+    public static final class Not extends SegmentExpression {
+        private final SegmentExpression child;
+
+        private Not(SegmentExpression child) {
+            this.child = child;
+        }
+
+        public SegmentExpression getChild() {
+            return child;
+        }
+
+        @Override
+        public boolean matches(SegmentBitmap segments) {
+            return !child.matches(segments);
+        }
+
+        @Override
+        public String toString() {
+            return child instanceof Segment ? "NOT " + child : "NOT (" + child + ")";
+        }
+    }
+
+    private static String join(List<SegmentExpression> children, String operator) {
+        StringBuilder sb = new StringBuilder();
+        for (SegmentExpression child : children) {
+            if (sb.length() > 0) {
+                sb.append(operator);
+            }
+            boolean bracket = child instanceof And || child instanceof Or;
+            sb.append(bracket ? "(" : "").append(child).append(bracket ? ")" : "");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parse an expression such as <code>(12 AND 40) OR (7 AND NOT 99)</code>. The operators are <code>AND</code>,
+     * <code>OR</code> and <code>NOT</code> (in any case) or <code>&amp;</code>, <code>|</code> and <code>!</code>.
+     * <code>NOT</code> binds tightest and <code>OR</code> loosest, and brackets can be used for grouping.
+     * @param text
+     * @return
+     * @throws IllegalArgumentException if the text is not a valid expression
+     */
+    public static SegmentExpression parse(String text) {
+        Parser parser = new Parser(text);
+        SegmentExpression result = parser.parseOr();
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected '" + text.charAt(parser.position) + "'");
+        }
+        return result;
+    }
+
+    private static class Parser {
+        private final String text;
+        private int position = 0;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("%s at position %d of segment expression '%s'", message, position, text));
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        /**
+         * Consume the operator if it is next, either as a keyword or a symbol
+         */
+        boolean accept(String keyword, char symbol) {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == symbol) {
+                position++;
+                return true;
+            }
+            int end = position + keyword.length();
+            if (text.regionMatches(true, position, keyword, 0, keyword.length())
+                    && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        SegmentExpression parseOr() {
+            List<SegmentExpression> children = new ArrayList<>();
+            children.add(parseAnd());
+            while (accept("OR", '|')) {
+                children.add(parseAnd());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        SegmentExpression parseAnd() {
+            List<SegmentExpression> children = new ArrayList<>();
+            children.add(parseUnary());
+            while (accept("AND", '&')) {
+                children.add(parseUnary());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        SegmentExpression parseUnary() {
+            if (accept("NOT", '!')) {
+                return new Not(parseUnary());
+            }
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '(') {
+                position++;
+                SegmentExpression result = parseOr();
+                skipWhitespace();
+                if (position >= text.length() || text.charAt(position) != ')') {
+                    throw error("Expected ')'");
+                }
+                position++;
+                return result;
+            }
+            int start = position;
+            while (position < text.length() && Character.isDigit(text.charAt(position))) {
+                position++;
+            }
+            if (start == position) {
+                throw error("Expected a segment id");
+            }
+            return new Segment(Long.parseLong(text.substring(start, position)));
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.aerospike.usecases.rtb.targeting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.aerospike.usecases.rtb.targeting.SegmentExpression.And;
+import com.aerospike.usecases.rtb.targeting.SegmentExpression.Not;
+import com.aerospike.usecases.rtb.targeting.SegmentExpression.Or;
+import com.aerospike.usecases.rtb.targeting.SegmentExpression.Segment;
+
+/**
+ * Find the campaigns a device qualifies for, given its active segments.
+ * <p/>
+ * Each campaign expression is compiled into disjunctive normal form: a set of clauses, any one of which
+ * qualifies the device, where each clause is a set of segments the device must have and a set it must not
+ * have. An inverted index maps each segment id to the clauses which require it. To match a device, the
+ * clauses of each of its segments are counted, and a clause is satisfied when its count reaches the number of
+ * segments it requires and none of its excluded segments are present. Only clauses which share at least
+ * one segment with the device are ever looked at, so matching cost depends on the device, not on the
+ * number of campaigns. Clauses which only exclude segments are checked for every device.
+ * <p/>
+ * The index is immutable and can be shared between threads, but each thread needs its own <code>Matcher</code>.
+ */
+public class TargetingIndex {
+    /** The most clauses a single campaign may expand to, to guard against exponential growth of nested expressions */
+    public static final int MAX_CLAUSES_PER_CAMPAIGN = 1024;
+
+    private static final long[] NO_SEGMENTS = new long[0];
+
+    private final int[] campaignIds;
+    // Per clause: the index of its campaign, how many segments it requires, and the segments it excludes
+    private final int[] clauseCampaigns;
+    private final int[] clauseRequired;
+    private final long[][] clauseExcluded;
+    // Clauses which do not require any segments
+    private final int[] unconditionalClauses;
+    // An open addressing hash table from segment id to the clauses which require it
+    private final long[] slotSegmentIds;
+    private final int[][] slotClauses;
+    private final int slotMask;
+
+    private TargetingIndex(int[] campaignIds, int[] clauseCampaigns, int[] clauseRequired, long[][] clauseExcluded,
+            int[] unconditionalClauses, long[] slotSegmentIds, int[][] slotClauses) {
+        this.campaignIds = campaignIds;
+        this.clauseCampaigns = clauseCampaigns;
+        this.clauseRequired = clauseRequired;
+        this.clauseExcluded = clauseExcluded;
+        this.unconditionalClauses = unconditionalClauses;
+        this.slotSegmentIds = slotSegmentIds;
+        this.slotClauses = slotClauses;
+        this.slotMask = slotSegmentIds.length - 1;
+    }
+
+    /**
+     * A conjunction of required and excluded segments, used while compiling
+     */
+    private static class Clause {
+        private final TreeSet<Long> required = new TreeSet<>();
+        private final TreeSet<Long> excluded = new TreeSet<>();
+
+        Clause merge(Clause other) {
+            Clause result = new Clause();
+            result.required.addAll(required);
+            result.required.addAll(other.required);
+            result.excluded.addAll(excluded);
+            result.excluded.addAll(other.excluded);
+            return result;
+        }
+
+        boolean isContradictory() {
+            for (Long segmentId : required) {
+                if (excluded.contains(segmentId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Convert the expression to a list of clauses, pushing any negation down to the segments as it goes.
+     */
+    private static List<Clause> toClauses(SegmentExpression expression, boolean negated, int campaignId) {
+        List<Clause> result = new ArrayList<>();
+        if (expression instanceof Segment) {
+            Clause clause = new Clause();
+            (negated ? clause.excluded : clause.required).add(((Segment)expression).getSegmentId());
+            result.add(clause);
+        }
+        else if (expression instanceof Not) {
+            result.addAll(toClauses(((Not)expression).getChild(), !negated, campaignId));
+        }
+        else {
+            // NOT (a AND b) is (NOT a) OR (NOT b), and NOT (a OR b) is (NOT a) AND (NOT b)
+            boolean isAnd = (expression instanceof And) != negated;
+            List<SegmentExpression> children = expression instanceof And ? ((And)expression).getChildren() : ((Or)expression).getChildren();
+            if (!isAnd) {
+                for (SegmentExpression child : children) {
+                    result.addAll(toClauses(child, negated, campaignId));
+                }
+            }
+            else {
+                result.add(new Clause());
+                for (SegmentExpression child : children) {
+                    List<Clause> childClauses = toClauses(child, negated, campaignId);
+                    List<Clause> product = new ArrayList<>();
+                    for (Clause left : result) {
+                        for (Clause right : childClauses) {
+                            Clause merged = left.merge(right);
+                            if (!merged.isContradictory()) {
+                                product.add(merged);
+                            }
+                        }
+                    }
+                    if (product.size() > MAX_CLAUSES_PER_CAMPAIGN) {
+                        throw new IllegalArgumentException(String.format("The expression of campaign %d expands to more than %d clauses",
+                                campaignId, MAX_CLAUSES_PER_CAMPAIGN));
+                    }
+                    result = product;
+                }
+            }
+        }
+        if (result.size() > MAX_CLAUSES_PER_CAMPAIGN) {
+            throw new IllegalArgumentException(String.format("The expression of campaign %d expands to more than %d clauses",
+                    campaignId, MAX_CLAUSES_PER_CAMPAIGN));
+        }
+        return result;
+    }
+
+    private static long[] toArray(TreeSet<Long> segmentIds) {
+        if (segmentIds.isEmpty()) {
+            return NO_SEGMENTS;
+        }
+        long[] result = new long[segmentIds.size()];
+        int i = 0;
+        for (Long segmentId : segmentIds) {
+            result[i++] = segmentId;
+        }
+        return result;
+    }
+
+    private static int slotFor(long segmentId, long[] slotSegmentIds, int[][] slotClauses) {
+        int mask = slotSegmentIds.length - 1;
+        int slot = (int)(mix(segmentId) & mask);
+        while (slotClauses[slot] != null && slotSegmentIds[slot] != segmentId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Compile the campaigns into an index
+     * @param campaigns
+     * @return
+     * @throws IllegalArgumentException if a campaign expression is too complex
+     */
+    public static TargetingIndex compile(List<Campaign> campaigns) {
+        int[] campaignIds = new int[campaigns.size()];
+        List<Clause> clauses = new ArrayList<>();
+        List<Integer> clauseCampaignList = new ArrayList<>();
+        for (int i = 0; i < campaignIds.length; i++) {
+            Campaign campaign = campaigns.get(i);
+            campaignIds[i] = campaign.getId();
+            for (Clause clause : toClauses(campaign.getExpression(), false, campaign.getId())) {
+                clauses.add(clause);
+                clauseCampaignList.add(i);
+            }
+        }
+
+        int clauseCount = clauses.size();
+        int[] clauseCampaigns = new int[clauseCount];
+        int[] clauseRequired = new int[clauseCount];
+        long[][] clauseExcluded = new long[clauseCount][];
+        List<Integer> unconditional = new ArrayList<>();
+        // Count the clauses of each segment so the posting lists can be sized exactly
+        Map<Long, Integer> postingSizes = new HashMap<>();
+        for (int i = 0; i < clauseCount; i++) {
+            Clause clause = clauses.get(i);
+            clauseCampaigns[i] = clauseCampaignList.get(i);
+            clauseRequired[i] = clause.required.size();
+            clauseExcluded[i] = toArray(clause.excluded);
+            if (clause.required.isEmpty()) {
+                unconditional.add(i);
+            }
+            for (Long segmentId : clause.required) {
+                postingSizes.merge(segmentId, 1, Integer::sum);
+            }
+        }
+
+        int tableSize = Integer.highestOneBit(Math.max(1, postingSizes.size() * 2 - 1)) << 1;
+        long[] slotSegmentIds = new long[tableSize];
+        int[][] slotClauses = new int[tableSize][];
+        int[] fill = new int[tableSize];
+        for (Map.Entry<Long, Integer> entry : postingSizes.entrySet()) {
+            int slot = slotFor(entry.getKey(), slotSegmentIds, slotClauses);
+            slotSegmentIds[slot] = entry.getKey();
+            slotClauses[slot] = new int[entry.getValue()];
+        }
+        for (int i = 0; i < clauseCount; i++) {
+            for (Long segmentId : clauses.get(i).required) {
+                int slot = slotFor(segmentId, slotSegmentIds, slotClauses);
+                slotClauses[slot][fill[slot]++] = i;
+            }
+        }
+        int[] unconditionalClauses = new int[unconditional.size()];
+        for (int i = 0; i < unconditionalClauses.length; i++) {
+            unconditionalClauses[i] = unconditional.get(i);
+        }
+        return new TargetingIndex(campaignIds, clauseCampaigns, clauseRequired, clauseExcluded,
+                unconditionalClauses, slotSegmentIds, slotClauses);
+    }
+
+    public int getCampaignCount() {
+        return campaignIds.length;
+    }
+
+    public int getClauseCount() {
+        return clauseCampaigns.length;
+    }
+
+    private int[] getClauses(long segmentId) {
+        int slot = (int)(mix(segmentId) & slotMask);
+        int[] clauses;
+        while ((clauses = slotClauses[slot]) != null) {
+            if (slotSegmentIds[slot] == segmentId) {
+                return clauses;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return null;
+    }
+
+    /**
+     * Create a matcher for this index. Matchers hold the working state of a match, so each thread needs its own.
+     * @return
+     */
+    public Matcher newMatcher() {
+        return new Matcher();
+    }
+
+    /**
+     * Matches devices against the index. After a call to <code>match</code>, the ids of the matching campaigns
+     * are available from <code>getMatch</code> until the next call. Matchers are re-usable but not thread safe.
+     */
+    public class Matcher {
+        private final int[] counts = new int[clauseCampaigns.length];
+        private final int[] touched = new int[clauseCampaigns.length];
+        private final int[] campaignStamps = new int[campaignIds.length];
+        private final int[] matches = new int[campaignIds.length];
+        private long[] segmentIds = new long[256];
+        private int stamp = 0;
+        private int matchCount = 0;
+
+        private Matcher() {
+        }
+
+        private boolean hasNoExcluded(int clause, SegmentBitmap segments) {
+            for (long excluded : clauseExcluded[clause]) {
+                if (segments.contains(excluded)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void addMatch(int clause) {
+            int campaign = clauseCampaigns[clause];
+            if (campaignStamps[campaign] != stamp) {
+                campaignStamps[campaign] = stamp;
+                matches[matchCount++] = campaignIds[campaign];
+            }
+        }
+
+        /**
+         * Find the campaigns the device with the passed segments qualifies for.
+         * @param segments - the active segments of the device
+         * @return The number of matching campaigns
+         */
+        public int match(SegmentBitmap segments) {
+            if (++stamp == 0) {
+                Arrays.fill(campaignStamps, 0);
+                stamp = 1;
+            }
+            matchCount = 0;
+            if (segmentIds.length < segments.cardinality()) {
+                segmentIds = new long[Math.max(segments.cardinality(), segmentIds.length * 2)];
+            }
+            int segmentCount = segments.toArray(segmentIds);
+            int touchedCount = 0;
+            for (int i = 0; i < segmentCount; i++) {
+                int[] clauses = getClauses(segmentIds[i]);
+                if (clauses == null) {
+                    continue;
+                }
+                for (int clause : clauses) {
+                    int count = ++counts[clause];
+                    if (count == 1) {
+                        touched[touchedCount++] = clause;
+                    }
+                    if (count == clauseRequired[clause] && hasNoExcluded(clause, segments)) {
+                        addMatch(clause);
+                    }
+                }
+            }
+            for (int i = 0; i < touchedCount; i++) {
+                counts[touched[i]] = 0;
+            }
+            for (int clause : unconditionalClauses) {
+                if (hasNoExcluded(clause, segments)) {
+                    addMatch(clause);
+                }
+            }
+            return matchCount;
+        }
+
+        /**
+         * Return the id of one of the campaigns which matched the last device
+         * @param index - from 0 to the value returned by <code>match</code>, exclusive
+         * @return
+         */
+        public int getMatch(int index) {
+            if (index >= matchCount) {
+                throw new IndexOutOfBoundsException("Match " + index + " requested but only " + matchCount + " campaigns matched");
+            }
+            return matches[index];
+        }
+
+        /**
+         * Return a copy of the ids of the campaigns which matched the last device
+         * @return
+         */
+        public int[] getMatches() {
+            return Arrays.copyOf(matches, matchCount);
+        }
+    }
+}
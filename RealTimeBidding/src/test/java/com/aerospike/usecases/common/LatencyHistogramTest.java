@@ -0,0 +1,126 @@
+package com.aerospike.usecases.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int LAST_BUCKET = LatencyHistogram.bucketIndex(MAX_VALUE);
+
+    @Test
+    public void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 64; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.bucketLowerBound(value));
+            assertEquals(value, LatencyHistogram.bucketUpperBound(value));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguousAndCoverEveryValue() {
+        assertEquals(0, LatencyHistogram.bucketLowerBound(0));
+        for (int index = 0; index < LAST_BUCKET; index++) {
+            assertEquals("Bucket " + index, LatencyHistogram.bucketUpperBound(index) + 1, LatencyHistogram.bucketLowerBound(index + 1));
+        }
+        assertEquals(MAX_VALUE, LatencyHistogram.bucketUpperBound(LAST_BUCKET));
+    }
+
+    @Test
+    public void valuesFallWithinTheBoundsOfTheirBucket() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long value = i < 10_000 ? i : random.nextLong() & MAX_VALUE;
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(value + " is below its bucket", LatencyHistogram.bucketLowerBound(index) <= value);
+            assertTrue(value + " is above its bucket", LatencyHistogram.bucketUpperBound(index) >= value);
+        }
+    }
+
+    @Test
+    public void powersOfTwoStartABucket() {
+        for (int bit = 6; bit < 40; bit++) {
+            long value = 1L << bit;
+            int index = LatencyHistogram.bucketIndex(value);
+            assertEquals(value, LatencyHistogram.bucketLowerBound(index));
+            assertEquals(index - 1, LatencyHistogram.bucketIndex(value - 1));
+        }
+    }
+
+    @Test
+    public void bucketWidthIsWithinAThirtySecondOfItsLowerBound() {
+        for (int index = 64; index <= LAST_BUCKET; index++) {
+            long lower = LatencyHistogram.bucketLowerBound(index);
+            long width = LatencyHistogram.bucketUpperBound(index) - lower + 1;
+            assertTrue("Bucket " + index + " is too wide", width * 32 <= lower);
+        }
+    }
+
+    @Test
+    public void valuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(MAX_VALUE, snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(50));
+        assertEquals(MAX_VALUE, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentilesOfExactBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50, snapshot.getMean());
+        assertEquals(1, snapshot.getValueAtPercentile(0));
+        assertEquals(50, snapshot.getValueAtPercentile(50));
+        assertEquals(99, snapshot.getValueAtPercentile(99));
+        assertEquals(100, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void percentileIsNeverAboveTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_001);
+
+        assertEquals(1_000_001, histogram.snapshot().getValueAtPercentile(99.9));
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0, snapshot.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void intervalSnapshotOnlyHoldsTheValuesOfTheInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000);
+        LatencyHistogram.Snapshot first = histogram.snapshot();
+        histogram.intervalSnapshot(null, first);
+
+        histogram.record(10);
+        histogram.record(20);
+        LatencyHistogram.Snapshot second = histogram.snapshot();
+        LatencyHistogram.Snapshot interval = histogram.intervalSnapshot(first, second);
+
+        assertEquals(3, second.getCount());
+        assertEquals(1_000, second.getMax());
+        assertEquals(2, interval.getCount());
+        assertEquals(15, interval.getMean());
+        assertEquals(20, interval.getMax());
+    }
+}
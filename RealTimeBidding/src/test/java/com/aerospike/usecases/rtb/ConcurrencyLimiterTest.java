@@ -0,0 +1,159 @@
+package com.aerospike.usecases.rtb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+
+public class ConcurrencyLimiterTest {
+    private static final AerospikeException OVERLOAD = new AerospikeException(ResultCode.DEVICE_OVERLOAD);
+    private static final AerospikeException ERROR = new AerospikeException(ResultCode.PARAMETER_ERROR);
+
+    /** Run a whole window of requests, each with the passed latency and outcome */
+    private static void runWindow(ConcurrencyLimiter limiter, long latencyMs, Throwable error) {
+        int count = limiter.getLimit();
+        for (int i = 0; i < count; i++) {
+            limiter.acquireUninterruptibly();
+        }
+        for (int i = 0; i < count; i++) {
+            limiter.release(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(latencyMs), error);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minimumMustBePositive() {
+        new ConcurrencyLimiter(1, 0, 10, 5, 0.01);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialLimitMustBeWithinTheBounds() {
+        new ConcurrencyLimiter(11, 1, 10, 5, 0.01);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void backoffRatioMustBeBelowOne() {
+        new ConcurrencyLimiter(5, 1, 10, 5, 0.01, 1.0);
+    }
+
+    @Test
+    public void limitGrowsByOnePerGoodWindowUpToTheMaximum() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 1_000, 0.01);
+
+        runWindow(limiter, 0, null);
+        assertEquals(9, limiter.getLimit());
+        runWindow(limiter, 0, null);
+        runWindow(limiter, 0, null);
+        runWindow(limiter, 0, null);
+        assertEquals(10, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void overloadCutsTheLimitOncePerWindow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(100, 1, 200, 1_000, 0.01);
+        long first = limiter.acquireUninterruptibly();
+        long second = limiter.acquireUninterruptibly();
+
+        limiter.release(first, OVERLOAD);
+        assertEquals(75, limiter.getLimit());
+        limiter.release(second, OVERLOAD);
+        assertEquals(75, limiter.getLimit());
+    }
+
+    @Test
+    public void limitIsNeverCutBelowTheMinimum() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 3, 10, 1_000, 0.01);
+
+        runWindow(limiter, 0, OVERLOAD);
+        assertEquals(3, limiter.getLimit());
+        runWindow(limiter, 0, OVERLOAD);
+        runWindow(limiter, 0, OVERLOAD);
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void slowWindowCutsTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 1, 0.5);
+
+        runWindow(limiter, 2, null);
+
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void errorRateAboveTheTargetCutsTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 1_000, 0.01);
+
+        runWindow(limiter, 0, ERROR);
+
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void errorRateWithinTheTargetGrowsTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10, 1_000, 0.25);
+        for (int i = 0; i < 4; i++) {
+            limiter.acquireUninterruptibly();
+        }
+        limiter.release(System.nanoTime(), ERROR);
+        for (int i = 0; i < 3; i++) {
+            limiter.release(System.nanoTime(), (Throwable)null);
+        }
+
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void batchWithAnOverloadedRecordCutsTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 1_000, 0.01);
+
+        limiter.release(limiter.acquireUninterruptibly(), new int[] { ResultCode.OK, ResultCode.KEY_BUSY, ResultCode.KEY_NOT_FOUND_ERROR });
+
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void wrappedTimeoutIsAnOverload() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10, 1_000, 0.01);
+
+        limiter.release(limiter.acquireUninterruptibly(), new CompletionException(new AerospikeException(ResultCode.TIMEOUT)));
+
+        assertEquals(6, limiter.getLimit());
+    }
+
+    @Test
+    public void fixedLimiterNeverChanges() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(4);
+
+        runWindow(limiter, 0, OVERLOAD);
+        runWindow(limiter, 10, null);
+
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void acquireBlocksAtTheLimit() throws InterruptedException {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(1);
+        long acquiredTime = limiter.acquire();
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            limiter.acquireUninterruptibly();
+            acquired.countDown();
+        });
+        waiter.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(acquiredTime, (Throwable)null);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+        assertEquals(1, limiter.getInFlight());
+    }
+}
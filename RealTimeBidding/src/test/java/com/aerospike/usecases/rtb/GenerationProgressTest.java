@@ -0,0 +1,93 @@
+package com.aerospike.usecases.rtb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GenerationProgressTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path progressFile() {
+        return folder.getRoot().toPath().resolve("progress.txt");
+    }
+
+    @Test
+    public void resumedRunKeepsTheSeedAndBaseTime() throws IOException {
+        Path file = progressFile();
+        try (GenerationProgress progress = new GenerationProgress(file, 1, 1000, 50, 10)) {
+            progress.complete(0, 100);
+        }
+
+        try (GenerationProgress progress = new GenerationProgress(file, 2, 2000, 50, 10)) {
+            assertEquals(1, progress.getSeed());
+            assertEquals(1000, progress.getBaseTime());
+        }
+    }
+
+    @Test
+    public void resumedRunSkipsTheCompletedChunks() throws IOException {
+        Path file = progressFile();
+        try (GenerationProgress progress = new GenerationProgress(file, 1, 1000, 50, 10)) {
+            progress.complete(100, 200);
+            progress.complete(0, 100);
+            progress.complete(300, 400);
+        }
+
+        try (GenerationProgress progress = new GenerationProgress(file, 1, 1000, 50, 10)) {
+            assertTrue(progress.isDone(0, 200));
+            assertTrue(progress.isDone(50, 150));
+            assertTrue(progress.isDone(300, 400));
+            assertFalse(progress.isDone(150, 250));
+            assertFalse(progress.isDone(200, 300));
+            assertEquals(250, progress.countDone(350));
+            assertEquals(300, progress.countDone(1000));
+        }
+    }
+
+    @Test
+    public void partiallyWrittenLastLineIsIgnored() throws IOException {
+        Path file = progressFile();
+        try (GenerationProgress progress = new GenerationProgress(file, 1, 1000, 50, 10)) {
+            progress.complete(0, 100);
+        }
+        Files.write(file, "100".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try (GenerationProgress progress = new GenerationProgress(file, 1, 1000, 50, 10)) {
+            progress.complete(100, 200);
+        }
+
+        try (GenerationProgress progress = new GenerationProgress(file, 1, 1000, 50, 10)) {
+            assertTrue(progress.isDone(0, 200));
+            assertEquals(200, progress.countDone(1000));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void runWithDifferentParametersIsRejected() throws IOException {
+        Path file = progressFile();
+        new GenerationProgress(file, 1, 1000, 50, 10).close();
+
+        new GenerationProgress(file, 1, 1000, 60, 10).close();
+    }
+
+    @Test
+    public void withoutAFileNothingIsRecorded() throws IOException {
+        try (GenerationProgress progress = new GenerationProgress(null, 7, 1000, 50, 10)) {
+            progress.complete(0, 100);
+            assertEquals(7, progress.getSeed());
+            assertFalse(progress.isDone(0, 100));
+        }
+        assertFalse(Files.exists(progressFile()));
+    }
+}
@@ -0,0 +1,157 @@
+package com.aerospike.usecases.rtb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+public class PackedSegmentCodecTest {
+    private static final long NOW = 1_767_225_600_000L;
+
+    private static SegmentInstance segment(long segmentId, long expiry, long flags, String partnerId) {
+        return new SegmentInstance(segmentId, new Date(expiry), flags, partnerId);
+    }
+
+    private static List<SegmentInstance> sorted(List<SegmentInstance> segments) {
+        List<SegmentInstance> result = new ArrayList<>(segments);
+        result.sort(Comparator.comparingLong(SegmentInstance::getSegmentId));
+        return result;
+    }
+
+    @Test
+    public void roundTripReturnsTheSegmentsInIdOrder() {
+        Random random = new Random(42);
+        List<SegmentInstance> segments = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String partnerId = random.nextInt(4) == 0 ? null : "partner" + random.nextInt(5);
+            segments.add(segment(i * 37L % 1000, NOW + random.nextInt(1_000_000_000), random.nextInt(1 << 20), partnerId));
+        }
+        Collections.shuffle(segments, random);
+
+        byte[] blob = PackedSegmentCodec.encode(segments);
+
+        assertEquals(sorted(segments), PackedSegmentCodec.decode(blob, Long.MIN_VALUE));
+    }
+
+    @Test
+    public void encodeDoesNotModifyTheList() {
+        List<SegmentInstance> segments = Arrays.asList(segment(3, NOW, 0, "a"), segment(1, NOW, 0, "b"));
+        List<SegmentInstance> copy = new ArrayList<>(segments);
+
+        PackedSegmentCodec.encode(segments);
+
+        assertEquals(copy, segments);
+    }
+
+    @Test
+    public void emptyDeviceRoundTrips() {
+        byte[] blob = PackedSegmentCodec.encode(Collections.emptyList());
+
+        assertTrue(PackedSegmentCodec.decode(blob, Long.MIN_VALUE).isEmpty());
+    }
+
+    @Test
+    public void lastDuplicateWins() {
+        List<SegmentInstance> segments = Arrays.asList(
+                segment(5, NOW, 1, "first"),
+                segment(2, NOW, 0, null),
+                segment(5, NOW + 1, 2, "last"));
+
+        List<SegmentInstance> decoded = PackedSegmentCodec.decode(PackedSegmentCodec.encode(segments), Long.MIN_VALUE);
+
+        assertEquals(Arrays.asList(segments.get(1), segments.get(2)), decoded);
+    }
+
+    @Test
+    public void extremeSegmentIdsRoundTrip() {
+        List<SegmentInstance> segments = Arrays.asList(
+                segment(Long.MAX_VALUE, NOW, 0, "p"),
+                segment(Long.MIN_VALUE, NOW, 0, "p"),
+                segment(-1, NOW, Long.MAX_VALUE, "p"),
+                segment(0, NOW, 0, "p"));
+
+        assertEquals(sorted(segments), PackedSegmentCodec.decode(PackedSegmentCodec.encode(segments), Long.MIN_VALUE));
+    }
+
+    @Test
+    public void activeAtIncludesSegmentsExpiringAtThatTime() {
+        List<SegmentInstance> segments = Arrays.asList(
+                segment(1, NOW - 1, 0, "p"),
+                segment(2, NOW, 0, "p"),
+                segment(3, NOW + 1, 0, "p"));
+
+        List<SegmentInstance> decoded = PackedSegmentCodec.decode(PackedSegmentCodec.encode(segments), NOW);
+
+        assertEquals(segments.subList(1, 3), decoded);
+    }
+
+    @Test
+    public void segmentWithoutExpiryIsOnlyDecodedWhenAllAreRequested() {
+        List<SegmentInstance> segments = Arrays.asList(
+                new SegmentInstance(1, null, 0, "p"),
+                segment(2, NOW, 0, "p"));
+        byte[] blob = PackedSegmentCodec.encode(segments);
+
+        List<SegmentInstance> all = PackedSegmentCodec.decode(blob, Long.MIN_VALUE);
+        assertEquals(2, all.size());
+        assertNull(all.get(0).getExpiry());
+
+        assertEquals(segments.subList(1, 2), PackedSegmentCodec.decode(blob, NOW));
+    }
+
+    @Test
+    public void largeDeviceIsCompressedAndRoundTrips() {
+        List<SegmentInstance> segments = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            segments.add(segment(i, NOW + i % 30, 0, "www.google.com"));
+        }
+
+        byte[] blob = PackedSegmentCodec.encode(segments);
+
+        assertTrue("The compressed flag should be set", (blob[1] & 0x01) != 0);
+        assertTrue(blob.length < PackedSegmentCodec.COMPRESSION_THRESHOLD);
+        assertEquals(segments, PackedSegmentCodec.decode(blob, Long.MIN_VALUE));
+    }
+
+    @Test
+    public void visitorSeesTheSamePartnerInstanceForEachSegment() {
+        List<SegmentInstance> segments = Arrays.asList(segment(1, NOW, 0, "p"), segment(2, NOW, 0, "p"));
+        List<String> partners = new ArrayList<>();
+
+        PackedSegmentCodec.visit(PackedSegmentCodec.encode(segments), (segmentId, expiry, flags, partnerId) -> partners.add(partnerId));
+
+        assertEquals(2, partners.size());
+        assertTrue(partners.get(0) == partners.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFormatIsRejected() {
+        byte[] blob = PackedSegmentCodec.encode(Arrays.asList(segment(1, NOW, 0, "p")));
+        blob[0] = 99;
+
+        PackedSegmentCodec.decode(blob, Long.MIN_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyBlobIsRejected() {
+        PackedSegmentCodec.decode(new byte[0], Long.MIN_VALUE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trailingBytesAreRejected() {
+        byte[] blob = PackedSegmentCodec.encode(Arrays.asList(segment(1, NOW, 0, "p")));
+
+        PackedSegmentCodec.decode(Arrays.copyOf(blob, blob.length + 1), Long.MIN_VALUE);
+    }
+}
@@ -0,0 +1,148 @@
+package com.aerospike.usecases.rtb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.ResultCode;
+import com.aerospike.usecases.rtb.model.SegmentInstance;
+
+public class RetryQueueTest {
+    private static final List<SegmentInstance> SEGMENTS = Arrays.asList(
+            new SegmentInstance(1, new Date(1_000), 0, "partner"),
+            new SegmentInstance(2, new Date(2_000), 4, null));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path deadLetterFile() {
+        return folder.getRoot().toPath().resolve("dead-letters.jsonl");
+    }
+
+    private static List<String> readLines(Path file) throws IOException {
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void nonRetryableFailureIsDeadLetteredStraightAway() throws Exception {
+        Path file = deadLetterFile();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger retries = new AtomicInteger();
+        try (RetryQueue queue = new RetryQueue(new ErrorTracker(null), 3, 10, 1, file)) {
+            queue.failed("saveDevice", "device1", () -> SEGMENTS, ResultCode.PARAMETER_ERROR, retries::incrementAndGet, result::complete);
+
+            assertFalse(result.get(0, TimeUnit.SECONDS));
+            assertEquals(1, queue.getDeadLetterCount());
+        }
+
+        assertEquals(0, retries.get());
+        List<String> lines = readLines(file);
+        assertEquals(2, lines.size());
+        JSONObject first = (JSONObject)JSONValue.parse(lines.get(0));
+        assertEquals("device1", first.get("deviceId"));
+        assertEquals(1L, first.get("segmentId"));
+        assertEquals(1_000L, first.get("expiry"));
+        assertEquals("partner", first.get("partnerId"));
+        assertEquals("saveDevice", first.get("operation"));
+        assertEquals((long)ResultCode.PARAMETER_ERROR, first.get("resultCode"));
+        assertEquals(1L, first.get("attempts"));
+        JSONObject second = (JSONObject)JSONValue.parse(lines.get(1));
+        assertEquals(2L, second.get("segmentId"));
+        assertEquals(4L, second.get("flags"));
+        assertFalse(second.containsKey("partnerId"));
+    }
+
+    @Test
+    public void retryableFailureIsRetried() throws Exception {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger retries = new AtomicInteger();
+        try (RetryQueue queue = new RetryQueue(new ErrorTracker(null), 3, 10, 1, deadLetterFile())) {
+            queue.failed("saveDevice", "device1", () -> SEGMENTS, new AerospikeException(ResultCode.DEVICE_OVERLOAD),
+                    retries::incrementAndGet, result::complete);
+            queue.awaitIdle();
+
+            assertTrue(result.get(0, TimeUnit.SECONDS));
+            assertEquals(1, retries.get());
+            assertEquals(0, queue.getDeadLetterCount());
+        }
+        assertTrue(readLines(deadLetterFile()).isEmpty());
+    }
+
+    @Test
+    public void writeIsDeadLetteredOnceItRunsOutOfRetries() throws Exception {
+        Path file = deadLetterFile();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        AtomicInteger retries = new AtomicInteger();
+        try (RetryQueue queue = new RetryQueue(new ErrorTracker(null), 2, 10, 1, file)) {
+            queue.failed("insertSegment", "device1", () -> SEGMENTS.subList(0, 1), ResultCode.KEY_BUSY, () -> {
+                retries.incrementAndGet();
+                throw new AerospikeException(ResultCode.KEY_BUSY);
+            }, result::complete);
+            queue.awaitIdle();
+
+            assertFalse(result.get(0, TimeUnit.SECONDS));
+            assertEquals(2, retries.get());
+            assertEquals(1, queue.getDeadLetterCount());
+        }
+
+        List<String> lines = readLines(file);
+        assertEquals(1, lines.size());
+        JSONObject line = (JSONObject)JSONValue.parse(lines.get(0));
+        assertEquals(3L, line.get("attempts"));
+        assertEquals((long)ResultCode.KEY_BUSY, line.get("resultCode"));
+    }
+
+    @Test
+    public void failureBeyondTheCapacityIsDeadLettered() throws Exception {
+        AtomicInteger failures = new AtomicInteger();
+        try (RetryQueue queue = new RetryQueue(new ErrorTracker(null), 3, 1, 1, null)) {
+            for (int i = 0; i < 3; i++) {
+                queue.failed("saveDevice", "device" + i, () -> SEGMENTS, ResultCode.TIMEOUT, () -> { }, success -> {
+                    if (!success) {
+                        failures.incrementAndGet();
+                    }
+                });
+            }
+            queue.awaitIdle();
+
+            assertEquals(2, failures.get());
+            assertEquals(2, queue.getDeadLetterCount());
+        }
+    }
+
+    @Test
+    public void closeGivesUpOnQueuedWrites() throws Exception {
+        Path file = deadLetterFile();
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        RetryQueue queue = new RetryQueue(new ErrorTracker(null), 3, 10, 1, file);
+        // The retries keep failing, so however many of them run before the close the write is given up on
+        queue.failed("saveDevice", "device1", Collections::emptyList, ResultCode.TIMEOUT, () -> {
+            throw new AerospikeException(ResultCode.TIMEOUT);
+        }, result::complete);
+
+        queue.close();
+
+        assertFalse(result.get(0, TimeUnit.SECONDS));
+        assertEquals(1, queue.getDeadLetterCount());
+        assertEquals(1, readLines(file).size());
+    }
+}
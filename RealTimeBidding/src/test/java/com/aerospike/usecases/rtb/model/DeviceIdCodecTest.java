@@ -0,0 +1,115 @@
+package com.aerospike.usecases.rtb.model;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class DeviceIdCodecTest {
+    private static final long[] IDS = {
+            0, 1, 0x2621, 0xffff, 0x10000, 123_456_789L, 0xffffffffffffL, 0x1000000000000L, Long.MAX_VALUE, -1
+    };
+
+    @Test
+    public void toStringMatchesTheFormatString() {
+        for (long id : IDS) {
+            assertEquals(String.format("73dacfc7-cd3a-%04x-8c43-%012x", id ^ 0x2621, id), DeviceIdCodec.toString(id));
+        }
+    }
+
+    @Test
+    public void parseIsTheInverseOfToString() {
+        for (long id : IDS) {
+            assertEquals(id, DeviceIdCodec.parse(DeviceIdCodec.toString(id)));
+        }
+    }
+
+    @Test
+    public void formatWritesAtTheOffset() {
+        char[] buffer = new char[DeviceIdCodec.MAX_STRING_LENGTH + 3];
+        int length = DeviceIdCodec.format(42, buffer, 3);
+
+        assertEquals(DeviceIdCodec.toString(42), new String(buffer, 3, length));
+    }
+
+    @Test
+    public void parseRejectsStringsNotProducedByToString() {
+        String valid = DeviceIdCodec.toString(42);
+        String[] invalid = {
+                "",
+                "not a device id",
+                valid.replace("73dacfc7", "73dacfc8"),
+                valid.replace("-8c43-", "-8c44-"),
+                // The group does not match the id
+                "73dacfc7-cd3a-0000-8c43-00000000002a",
+                // Padded with more digits than toString would use
+                "73dacfc7-cd3a-0260b-8c43-00000000002a",
+                "73dacfc7-cd3a-260b-8c43-000000000002a",
+                "73dacfc7-cd3a-260b-8c43-",
+                "73dacfc7-cd3a-260b-8c43-00000000002g"
+        };
+        for (String deviceId : invalid) {
+            try {
+                DeviceIdCodec.parse(deviceId);
+                fail("'" + deviceId + "' should not parse");
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void binaryFormRoundTrips() {
+        long[] ids = { 0, 1, 0xffff, 0x10000, 123_456_789L, DeviceIdCodec.MAX_BINARY_ID };
+        byte[] buffer = new byte[DeviceIdCodec.BINARY_LENGTH + 5];
+        for (long id : ids) {
+            assertEquals(id, DeviceIdCodec.fromBytes(DeviceIdCodec.toBytes(id), 0));
+            DeviceIdCodec.toBytes(id, buffer, 5);
+            assertEquals(id, DeviceIdCodec.fromBytes(buffer, 5));
+        }
+    }
+
+    @Test
+    public void binaryFormOfSmallIdsIsTheUuidOfTheString() {
+        for (long id : new long[] { 0, 1, 0x2621, 0xffff }) {
+            UUID uuid = UUID.fromString(DeviceIdCodec.toString(id));
+            byte[] expected = ByteBuffer.allocate(DeviceIdCodec.BINARY_LENGTH)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array();
+            assertArrayEquals(expected, DeviceIdCodec.toBytes(id));
+        }
+    }
+
+    @Test
+    public void binaryFormRejectsIdsOutOfRange() {
+        for (long id : new long[] { -1, DeviceIdCodec.MAX_BINARY_ID + 1, Long.MAX_VALUE }) {
+            try {
+                DeviceIdCodec.toBytes(id);
+                fail(id + " should not be stored in binary form");
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void fromBytesRejectsBytesNotProducedByToBytes() {
+        // Bytes 10 to 13 are the high bits of the id, which any value is valid for. Bytes 6 and 7 hold the group,
+        // which must match the low bits of the id in bytes 14 and 15.
+        for (int i : new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 14, 15 }) {
+            byte[] bytes = DeviceIdCodec.toBytes(0x12345);
+            bytes[i] ^= 0x40;
+            try {
+                DeviceIdCodec.fromBytes(bytes, 0);
+                fail("Corrupting byte " + i + " should be detected");
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.aerospike.usecases.rtb.targeting;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import org.junit.Test;
+
+public class SegmentBitmapTest {
+    private static long[] toArray(SegmentBitmap bitmap) {
+        long[] ids = new long[bitmap.cardinality()];
+        assertEquals(ids.length, bitmap.toArray(ids));
+        return ids;
+    }
+
+    private static void assertHoldsExactly(long[] expected, SegmentBitmap bitmap) {
+        long[] sorted = LongStream.of(expected).sorted().distinct().toArray();
+        assertEquals(sorted.length, bitmap.cardinality());
+        assertArrayEquals(sorted, toArray(bitmap));
+        List<Long> visited = new ArrayList<>();
+        bitmap.forEach(visited::add);
+        assertArrayEquals(sorted, visited.stream().mapToLong(Long::longValue).toArray());
+        for (long id : sorted) {
+            assertTrue(id + " should be in the bitmap", bitmap.contains(id));
+        }
+    }
+
+    @Test
+    public void emptyBitmapHoldsNothing() {
+        SegmentBitmap bitmap = SegmentBitmap.of();
+
+        assertTrue(bitmap.isEmpty());
+        assertFalse(bitmap.contains(0));
+        assertEquals(0, toArray(bitmap).length);
+    }
+
+    @Test
+    public void duplicatesAreCountedOnce() {
+        long[] ids = { 7, 3, 7, 100_000, 3, 3 };
+
+        SegmentBitmap bitmap = SegmentBitmap.of(ids);
+
+        assertHoldsExactly(ids, bitmap);
+        assertArrayEquals(new long[] { 7, 3, 7, 100_000, 3, 3 }, ids);
+        assertFalse(bitmap.contains(4));
+        assertFalse(bitmap.contains(100_001));
+    }
+
+    @Test
+    public void chunkBoundariesAndExtremeIds() {
+        long[] ids = { Long.MIN_VALUE, -65_537, -65_536, -1, 0, 65_535, 65_536, 131_071, Long.MAX_VALUE };
+
+        SegmentBitmap bitmap = SegmentBitmap.of(ids);
+
+        assertHoldsExactly(ids, bitmap);
+        assertFalse(bitmap.contains(-65_535));
+        assertFalse(bitmap.contains(1));
+        assertFalse(bitmap.contains(65_537));
+        assertFalse(bitmap.contains(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void chunksEitherSideOfTheBitsetThreshold() {
+        // 4,096 ids stay in an array and 4,097 ids switch to a bitset
+        long[] array = LongStream.range(0, 4_096).map(i -> i * 2).toArray();
+        long[] bitset = LongStream.range(0, 4_097).map(i -> (1L << 16) + i * 3).toArray();
+        long[] ids = LongStream.concat(LongStream.of(array), LongStream.of(bitset)).toArray();
+
+        SegmentBitmap bitmap = SegmentBitmap.of(ids);
+
+        assertHoldsExactly(ids, bitmap);
+        assertFalse(bitmap.contains(1));
+        assertFalse(bitmap.contains((1L << 16) + 1));
+        assertEquals(8 * 2 + 4_096 * 2 + 8_192, bitmap.getSizeInBytes());
+    }
+
+    @Test
+    public void fullChunkUsesEveryBit() {
+        long[] ids = LongStream.range(-65_536, 0).toArray();
+
+        assertHoldsExactly(ids, SegmentBitmap.of(ids));
+    }
+
+    @Test
+    public void randomIdsMatchASortedSet() {
+        Random random = new Random(42);
+        long[] ids = new long[20_000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = random.nextInt(200_000) - 50_000;
+        }
+
+        SegmentBitmap bitmap = SegmentBitmap.of(ids);
+
+        assertHoldsExactly(ids, bitmap);
+        long[] sorted = LongStream.of(ids).sorted().distinct().toArray();
+        for (long id = -60_000; id < 160_000; id++) {
+            assertEquals(Arrays.binarySearch(sorted, id) >= 0, bitmap.contains(id));
+        }
+    }
+}